@@ -0,0 +1,11 @@
+package videohdr.camera;
+
+/**
+ * Possible modes of the {@link HdrCamera}
+ */
+public enum CameraState {
+    MODE_FUSE,
+    MODE_UNDEREXPOSE,
+    MODE_OVEREXPOSE,
+    MODE_RECORD
+}
@@ -0,0 +1,62 @@
+package videohdr.camera;
+
+/**
+ * Logarithmic quantization grid for ISO and exposure time values. Adjustments made by the
+ * ExposureMeter are snapped onto this grid, so the capture sessions see a small set of
+ * recurring values and can reuse their capture requests.
+ *
+ * The grid is finer than the weakest auto metering step (5%), and snapping always moves at
+ * least one grid step in the direction of the requested change, so small factors still
+ * make progress.
+ */
+final class ExposureGrid {
+
+    //1/24 of a stop is ~2.9% per step
+    static final int STEPS_PER_STOP = 24;
+
+    private static final double LOG_2 = Math.log(2);
+
+    private ExposureGrid(){}
+
+    /**
+     * Scale an exposure time and snap the result onto the grid
+     * @param exposure current exposure time in ns
+     * @param factor scale factor, a factor of 1 returns the value unchanged
+     * @return scaled exposure time on the grid
+     */
+    static long snapExposure(long exposure, double factor){
+        if(factor == 1 || exposure <= 0) return exposure;
+        return Math.round(valueAt(snapIndex(exposure, factor)));
+    }
+
+    /**
+     * Scale an ISO value and snap the result onto the grid
+     * @param iso current sensitivity
+     * @param factor scale factor, a factor of 1 returns the value unchanged
+     * @return scaled sensitivity on the grid
+     */
+    static int snapIso(int iso, double factor){
+        if(factor == 1 || iso <= 0) return iso;
+        return (int) Math.round(valueAt(snapIndex(iso, factor)));
+    }
+
+    private static int snapIndex(double value, double factor){
+        int index = (int) Math.round(indexOf(value * factor));
+
+        //move at least one grid step into the direction of the change
+        if(factor > 1) {
+            while(Math.round(valueAt(index)) <= value) index++;
+        } else {
+            while(Math.round(valueAt(index)) >= value) index--;
+        }
+        return index;
+    }
+
+    private static double indexOf(double value){
+        return Math.log(value) / LOG_2 * STEPS_PER_STOP;
+    }
+
+    private static double valueAt(int index){
+        return Math.pow(2, (double) index / STEPS_PER_STOP);
+    }
+}
@@ -1,34 +1,21 @@
 package videohdr.camera;
 
-
-import android.os.Environment;
-import android.renderscript.RenderScript;
-import android.util.Log;
-import android.util.Size;
-import android.view.Surface;
-
 import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 
-import videohdr.renderscript.HistogramProcessor;
+import videohdr.metrics.StageMetrics;
+import videohdr.recorder.BitrateController;
+import videohdr.renderscript.HistogramListener;
 
 /**
  * Evaluates output from Histogram Processor and influences input values to AlternatingCaptureSession
  * (ISO and exposure time of bright/dark frame)
  * Created by Andreas Enz on 13.07.2015.
+ *
+ * Uses no Android classes and does not log on the metering thread, so it runs on a plain JVM
+ * as well, e.g. in the simulator. Changes are reported to the caller instead.
  */
-public class ExposureMeter implements HistogramProcessor.EventListener {
-
-    private static final String TAG = "ExposureMeter";
-
-    /* dev option to log histograms to a file,
-    * should be disabled since it interferes with resource
-    * management of MediaRecord*/
-    private static final boolean histLogEnabled = false;
+public class ExposureMeter implements HistogramListener, BitrateController.ContentSource {
 
     //timing constants
     private static final long MICRO_SECOND = 1000;
@@ -36,6 +23,8 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
     private static final long ONE_SECOND = MILLI_SECOND * 1000;
 
     public static final long FRAME_DURATION = ONE_SECOND / 30; //has to be accessible from exposure metering
+    //high frame rate mode: 60 captured frames result in 30 fused pairs per second
+    public static final long FRAME_DURATION_HIGH_RATE = ONE_SECOND / 60;
 
 
     //bounds for exposure time and iso
@@ -78,6 +67,19 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
     //the metering values
     private MeteringParam currentMeteringParam;
 
+    /* CONTENT STATISTICS of every metered frame, smoothed over about 10 frames */
+    private static final float CONTENT_SMOOTHING = 0.1f;
+    private final float[] mRecentMeans = new float[2]; //means of the previous two frames
+    private int mContentFrames = 0;
+    private volatile float mHistogramSpread = 0;
+    private volatile float mPairBrightnessDelta = 0;
+    private volatile float mTemporalBrightnessDelta = 0;
+
+    /*frame duration budget of the sensor and the resulting exposure cap. every exposure
+    * has to fit into half of the frame duration, just like MAX_DURATION for the default rate */
+    private volatile long mFrameDuration = FRAME_DURATION;
+    private volatile long mMaxDuration = MAX_DURATION;
+
     //auto metering values
     private boolean isAutoMetering;
     private static final double AUTO_EXP_INC_FACTOR_WEAK = 1.05f;
@@ -85,37 +87,32 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
     private static final double AUTO_EXP_DEC_FACTOR_WEAK = 0.95;
     private static final double AUTO_EXP_DEC_FACTOR_STRONG = 0.9f;
 
-    //Histogram processor
-    private HistogramProcessor mHistProc = null; //has to be created by setupHistogramProcessor
+    //evaluation time per histogram, reconfigurations are new capture values sent to the session
+    private final StageMetrics mEvaluationMetrics = new StageMetrics("exposure evaluation");
 
     private int totalMeteringPixels = 0;
 
-    //Log file for the histogram for this particular session
-    private BufferedWriter logFileWriter;
+    //Log file for the histogram for this particular session, histograms are logged if set
+    //and logging stops on the first write error
+    private volatile BufferedWriter logFileWriter;
     private int histogramTAG = 0;
+    //tag, separators and 256 counts of up to 10 digits
+    private final char[] mLogLine = new char[16 + 256 * 11];
 
 
     //The capture session we want to influence;
-    private HdrCamera mCamera;
+    private CameraStateSource mCamera;
     private EventListener mCaptureSession;
+    //gets every histogram after the evaluation, e.g. for the tone curve of the fusion
+    private volatile HistogramListener mHistogramListener;
 
 
-    public ExposureMeter(HdrCamera camera){
+    /**
+     * @param camera decides whether frames are evaluated, usually the HdrCamera
+     */
+    public ExposureMeter(CameraStateSource camera){
         mCamera = camera;
 
-        if(histLogEnabled) {
-            File logFile = Environment.getExternalStoragePublicDirectory(
-                    Environment.DIRECTORY_DCIM + "/Camera/HistLOG_" +
-                            new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".txt");
-
-            try {
-                logFileWriter = new BufferedWriter(new FileWriter(logFile, true));
-            } catch (IOException e) {
-                Log.d(TAG, "error creating the LogFileWriter");
-                logFileWriter = null;
-            }
-        }
-
         synchronized (this){
             currentMeteringParam = new MeteringParam(INITIAL_EVEN_ISO,
                                                         INITIAL_EVEN_EXPOSURE,
@@ -137,16 +134,16 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
      */
     private void evaluate(int[] frameHistogram){
         histogramTAG++;
-        HdrCamera.CameraState camState = mCamera.getCameraState();
+        CameraState camState = mCamera.getCameraState();
         if (totalMeteringPixels == 0 ||
-                !(camState == HdrCamera.CameraState.MODE_RECORD ||
-                camState == HdrCamera.CameraState.MODE_FUSE)) return;
+                !(camState == CameraState.MODE_RECORD ||
+                camState == CameraState.MODE_FUSE)) return;
 
 
 
 
         //first log this histogram with the current tag
-        if(histLogEnabled && !isAutoMetering && camState == HdrCamera.CameraState.MODE_RECORD){
+        if(!isAutoMetering && camState == CameraState.MODE_RECORD){
             logHistogram(frameHistogram);
         }
 
@@ -164,7 +161,6 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
             if(prev_mean_brightness == 0) {
                 //set values for next evaluation
                 prev_mean_brightness = mean_brightness;
-                Log.d(TAG, "First automatic evaluation of a frame");
                 return;
             }
 
@@ -174,14 +170,12 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
             if(!isOverExposedFrame && !isUnderExposedFrame){ //can't decide, brightness levels too similar
                 //initiate general spread of capture parameters
                 if(histogramTAG % 2 == 0){
-                    Log.d(TAG, "initiating spread in frame brightness");
                     boolean overChanged = changeOverExpParamAndSignalSuccess(AUTO_EXP_INC_FACTOR_STRONG);
                     boolean underChanged = changeUnderExpParamAndSignalSuccess(AUTO_EXP_DEC_FACTOR_STRONG);
 
                     if(overChanged || underChanged) {
                         mCaptureSession.onMeterEvent(currentMeteringParam);
-                    } else {
-                        Log.d(TAG, "no spread possible");
+                        mEvaluationMetrics.getReconfigurations().increment();
                     }
                 }
                 return;
@@ -286,6 +280,7 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
             if(histogramTAG % 2 == 0 && (paramsChanged || prev_paramsChanged)) {
                 //Log.d(TAG, "new capture values: " + currentMeteringParam.toString());
                 mCaptureSession.onMeterEvent(currentMeteringParam);
+                mEvaluationMetrics.getReconfigurations().increment();
             }
 
 
@@ -303,75 +298,136 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
 
 
 
-    /* HISTOGRAM PROCESSOR HANDLING */
+    /* HISTOGRAM INPUT */
     /**
-     * creates a new HistogramProcessor with the needed input size and returns the input surface to
-     * the Processor.
-     * @param rs Renderscript object
-     * @param inputSize input size of the frames
-     * @return the input surface for the HistogramProcessor
+     * Size of the frames the histograms passed to {@link #onHistogramAvailable(int[])} are
+     * computed from, set whenever the histogram source is created, e.g. the HistogramProcessor
+     * of the camera or a simulation.
+     * @param width 0 to stop the evaluation when the source goes away
      */
-    public Surface setupHistogramProcessor(RenderScript rs, Size inputSize){
-        mHistProc = new HistogramProcessor(rs,inputSize, this);
-        totalMeteringPixels = inputSize.getWidth() * inputSize.getHeight();
-        return mHistProc.getInputSurface();
+    public void setMeteringResolution(int width, int height){
+        totalMeteringPixels = width * height;
     }
 
     /**
-     * should be called when closing the camera and ensures no listener event is created from discarded
-     * HistogramProcessor
+     * @return metrics of the histogram evaluation, runs on the thread of the histogram stage
      */
-    public void destroyHistogramProcessor(){
-        mHistProc.disconnectListener(); //no more evaluation calls as soon as camera closes
-        totalMeteringPixels = 0;
-        mHistProc = null;
+    public StageMetrics getEvaluationMetrics(){
+        return mEvaluationMetrics;
     }
 
+    /* one line per histogram: [tag]::count,count,... formatted into a reused buffer, logging
+    * runs for every metered frame and must not allocate */
     private void logHistogram(int[] frameHistogram){
-        String histString = "[" + String.format("%08d",histogramTAG) + "]::";
-
-        int j = 0;
-        while(j < frameHistogram.length - 1) histString += frameHistogram[j++] + ",";
-        histString += frameHistogram[j];
-
-        if(logFileWriter != null){
-            try {
-                logFileWriter.append(histString);
-                logFileWriter.newLine();
-            } catch(IOException e){
-                Log.d(TAG, "error writing histogram to file");
-            }
+        BufferedWriter writer = logFileWriter;
+        if(writer == null) return;
+
+        int length = 0;
+        mLogLine[length++] = '[';
+        length = appendDecimal(histogramTAG, 8, length);
+        mLogLine[length++] = ']';
+        mLogLine[length++] = ':';
+        mLogLine[length++] = ':';
+        for(int j = 0; j < frameHistogram.length; j++){
+            if(j > 0) mLogLine[length++] = ',';
+            length = appendDecimal(frameHistogram[j], 1, length);
         }
 
+        try {
+            writer.write(mLogLine, 0, length);
+            writer.newLine();
+        } catch(IOException e){
+            logFileWriter = null;
+        }
+    }
+
+    /* write a non negative value zero padded to minDigits into mLogLine at position */
+    private int appendDecimal(int value, int minDigits, int position){
+        int digits = 1;
+        for(int v = value / 10; v > 0; v /= 10) digits++;
+        digits = Math.max(digits, minDigits);
+        for(int i = position + digits - 1; i >= position; i--){
+            mLogLine[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + digits;
     }
 
     public void setMeteringEventListener(EventListener listener){
         mCaptureSession = listener;
     }
 
+    /**
+     * Log the histograms evaluated while recording with manual metering, one line per histogram.
+     * The writer is owned and closed by the caller, after logging was stopped.
+     * @param writer gets the lines, null stops logging
+     */
+    public void setHistogramLog(BufferedWriter writer){
+        logFileWriter = writer;
+    }
+
+    /**
+     * @param listener called on the metering worker with every histogram, null to remove it
+     */
+    public void setHistogramListener(HistogramListener listener){
+        mHistogramListener = listener;
+    }
+
     /* SPLIT METHODS FOR EXPOSURE ADJUSTMENTS */
     //less problems with corner cases
-    public void adjustOverexposure(double factor){
-        if(mCaptureSession == null) return;
+    /**
+     * @return true if the values changed and were sent to the capture session
+     */
+    public boolean adjustOverexposure(double factor){
+        if(mCaptureSession == null) return false;
 
         if(changeOverExpParamAndSignalSuccess(factor)) { //values will be stored in 'currentMeteringParam'
-
-            Log.d(TAG, "OverExp values have changed: " + currentMeteringParam.toString());
             mCaptureSession.onMeterEvent(currentMeteringParam);
+            return true;
         }
+        return false;
     }
 
-    public void adjustUnderexposure(double factor){
-        if(mCaptureSession == null) return;
+    /**
+     * @return true if the values changed and were sent to the capture session
+     */
+    public boolean adjustUnderexposure(double factor){
+        if(mCaptureSession == null) return false;
 
 
         if(changeUnderExpParamAndSignalSuccess(factor)) {//values will be stored in 'currentMeteringParam'
-
-            Log.d(TAG, "UnderExp changed: " + currentMeteringParam.toString());
             mCaptureSession.onMeterEvent(currentMeteringParam);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Change the frame duration budget of the sensor. Exposure times are capped to half of the
+     * frame duration, current metering values are clamped to the new cap.
+     * Only takes effect on the sensor once a new capture session is configured.
+     * @param frameDuration duration of a single captured frame in ns
+     */
+    public void setFrameDuration(long frameDuration){
+        synchronized (this){
+            mFrameDuration = frameDuration;
+            mMaxDuration = frameDuration / 2;
+
+            if(currentMeteringParam.underexposeDuration > mMaxDuration)
+                currentMeteringParam.underexposeDuration = mMaxDuration;
+            if(currentMeteringParam.overexposeDuration > mMaxDuration)
+                currentMeteringParam.overexposeDuration = mMaxDuration;
         }
     }
 
+    public long getFrameDuration(){
+        return mFrameDuration;
+    }
+
+    public long getMaxExposureDuration(){
+        return mMaxDuration;
+    }
+
     public void startAutoMetering(){
         isAutoMetering = true;
     }
@@ -393,8 +449,9 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
             iso_o = currentMeteringParam.overexposeIso;
             iso_u = currentMeteringParam.underexposeIso;
         }
-        long dur_new_u = (long) (dur_u * factor);
-        int iso_new_u = (int) (iso_u * factor);
+        //scaled values are snapped to the grid so capture requests can be reused
+        long dur_new_u = ExposureGrid.snapExposure(dur_u, factor);
+        int iso_new_u = ExposureGrid.snapIso(iso_u, factor);
 
         if(iso_u != MIN_ISO){
             iso_new_u = (iso_new_u >= iso_o) ? iso_o :
@@ -402,8 +459,8 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
             dur_new_u = dur_u;
         }
         else {
-            if(dur_new_u > MAX_DURATION){
-                dur_new_u = MAX_DURATION;
+            if(dur_new_u > mMaxDuration){
+                dur_new_u = mMaxDuration;
                 iso_new_u = (iso_o != MIN_ISO) ? MIN_ISO + 1 : MIN_ISO;
             }
             else{
@@ -435,8 +492,9 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
             iso_o = currentMeteringParam.overexposeIso;
             iso_u = currentMeteringParam.underexposeIso;
         }
-        long dur_new_o = (long) (dur_o * factor);
-        int iso_new_o = (int) (iso_o * factor);
+        //scaled values are snapped to the grid so capture requests can be reused
+        long dur_new_o = ExposureGrid.snapExposure(dur_o, factor);
+        int iso_new_o = ExposureGrid.snapIso(iso_o, factor);
 
         if(iso_o != MIN_ISO){
             iso_new_o = (iso_new_o > MAX_ISO) ? MAX_ISO :
@@ -444,8 +502,8 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
             dur_new_o = dur_o;
         }
         else {
-            if(dur_new_o > MAX_DURATION){
-                dur_new_o = MAX_DURATION;
+            if(dur_new_o > mMaxDuration){
+                dur_new_o = mMaxDuration;
                 iso_new_o = MIN_ISO + 1;
             }
             else {
@@ -463,18 +521,70 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
         return haveValuesChanged;
     }
 
-    public void finish(){
-        try{
-            if(logFileWriter != null) logFileWriter.close();
-        } catch(IOException e) {
-            Log.d(TAG, "closing the logfile writer failed");
+    @Override
+    public void onHistogramAvailable(int[] frameHistogram) {
+        long start = System.nanoTime();
+        updateContentStatistics(frameHistogram);
+        evaluate(frameHistogram);
+        mEvaluationMetrics.onFrameProcessed(0, System.nanoTime() - start, 0);
+
+        HistogramListener listener = mHistogramListener;
+        if(listener != null) listener.onHistogramAvailable(frameHistogram);
+    }
+
+    /* spread of the brightness within a frame, brightness difference between the exposures of
+    * a pair and between consecutive frames of the same exposure */
+    private void updateContentStatistics(int[] frameHistogram){
+        if(totalMeteringPixels == 0) return;
+
+        long sum = 0;
+        long squareSum = 0;
+        for(int i = 0; i < frameHistogram.length; i++){
+            sum += (long) frameHistogram[i] * i;
+            squareSum += (long) frameHistogram[i] * i * i;
+        }
+        float mean = (float) sum / totalMeteringPixels;
+        float variance = (float) squareSum / totalMeteringPixels - mean * mean;
+        float spread = (float) Math.sqrt(Math.max(0, variance));
+
+        mHistogramSpread += CONTENT_SMOOTHING * (spread - mHistogramSpread);
+        if(mContentFrames >= 1) {
+            float pairDelta = Math.abs(mean - mRecentMeans[1]);
+            mPairBrightnessDelta += CONTENT_SMOOTHING * (pairDelta - mPairBrightnessDelta);
+        }
+        if(mContentFrames >= 2) {
+            float temporalDelta = Math.abs(mean - mRecentMeans[0]);
+            mTemporalBrightnessDelta += CONTENT_SMOOTHING * (temporalDelta - mTemporalBrightnessDelta);
         }
+        mRecentMeans[0] = mRecentMeans[1];
+        mRecentMeans[1] = mean;
+        mContentFrames++;
     }
 
+    /**
+     * @return standard deviation of the brightness within a frame (0 - 128), smoothed
+     */
+    @Override
+    public float getHistogramSpread(){
+        return mHistogramSpread;
+    }
 
+    /**
+     * @return mean brightness difference between consecutive frames, i.e. between the under-
+     * and overexposure of a pair (0 - 255), smoothed
+     */
     @Override
-    public void onHistogramAvailable(int[] frameHistogram) {
-        evaluate(frameHistogram);
+    public float getPairBrightnessDelta(){
+        return mPairBrightnessDelta;
+    }
+
+    /**
+     * @return mean brightness change between frames of the same exposure (0 - 255), a measure
+     * of scene changes, smoothed
+     */
+    @Override
+    public float getTemporalBrightnessDelta(){
+        return mTemporalBrightnessDelta;
     }
 
 
@@ -491,6 +601,13 @@ public class ExposureMeter implements HistogramProcessor.EventListener {
 
     /* HELPER METHODS AND CLASSES*/
 
+    /**
+     * Current mode of the camera, histograms are only evaluated while fusing or recording
+     */
+    public interface CameraStateSource {
+        CameraState getCameraState();
+    }
+
     //Listener Interface to Inform subscribers that the Exposure Parameters have changed
     public interface EventListener {
         /**
@@ -6,22 +6,42 @@ import android.content.res.Configuration;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.*;
 import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Environment;
 import android.os.Handler;
-import android.os.HandlerThread;
 import android.renderscript.RenderScript;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
 import java.util.Arrays;
+import java.util.Date;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import videohdr.camera.capture.AlternatingCaptureSession;
+import videohdr.camera.capture.CaptureTelemetry;
 import videohdr.camera.capture.OverExpCaptureSession;
 import videohdr.camera.capture.SimpleCaptureSession;
 import videohdr.camera.capture.UnderExpCaptureSession;
+import videohdr.metrics.Counter;
+import videohdr.metrics.MetricsRegistry;
+import videohdr.metrics.StageMetrics;
+import videohdr.pipeline.PipelineScheduler;
+import videohdr.pipeline.Worker;
+import videohdr.renderscript.HistogramProcessor;
 import videohdr.renderscript.PreviewFuseProcessor;
+import videohdr.trace.FrameTracer;
 import videohdr.view.AutoFitTextureView;
+import videohdr.recorder.BitrateController;
+import videohdr.recorder.FrameMetadataWriter;
+import videohdr.recorder.RawPairRecorder;
+import videohdr.recorder.RecordingSink;
+import videohdr.recorder.ThroughputProfile;
 import videohdr.recorder.VideoRecorder;
 import videohdr.recorder.VideoSizeConfiguration;
 
@@ -31,10 +51,15 @@ import videohdr.recorder.VideoSizeConfiguration;
  * Any method concerning the camera hardware should go in here.
  *
  */
-public class HdrCamera {
+public class HdrCamera implements ExposureMeter.CameraStateSource {
 
     private static final String TAG = "HdrCamera";
 
+    /* dev option to log histograms to a file,
+    * should be disabled since it interferes with resource
+    * management of MediaRecord*/
+    private static final boolean histLogEnabled = false;
+
     /* CAMERA DEVICE AND SESSION VARIABLES*/
     private CameraManager mManager;
     private CameraDevice mCameraDevice;
@@ -64,33 +89,56 @@ public class HdrCamera {
     private List<Surface> mConsumerSurfaces = Arrays.asList(null, null, null);
 
     /* Object handling the Video recording of this camera */
-    /* currently deactivated to debug preview surface stuff. Because this needs debugging itself:
-     * the second time a VideoRecorder is created MediaRecorder.prepare() fails. this occurs usually
-     * after tilting the phone after a preview can be seen */
-    private VideoRecorder mVideoRecorder;
+    /* created together with the other consumer surfaces when the camera is opened and kept
+     * until it is closed, recordings are started and stopped on the same recorder */
+    private RecordingSink mRecorder;
 
     //PreviewFuseProcessor in charge of fusing double exposure frames by passing it through a renderscript
     private PreviewFuseProcessor mPreviewFuseProcessor;
-    /*exposure metering object. should persist throughout lifetime of app. but the contained histogramProcessor
-    * needs to be explicitly created/destroyed every time the camera is opened/closed
+    /*exposure metering object. should persist throughout lifetime of app. but the histogramProcessor
+    * feeding it needs to be explicitly created/destroyed every time the camera is opened/closed
     * */
     private ExposureMeter mExposureMeter;
+    private HistogramProcessor mHistogramProcessor;
+    //Log file for the histograms of the meter, null unless the dev option is enabled
+    private BufferedWriter mHistogramLog;
     //Renderscript object used for two scripts: preview fusion and histogram
     private RenderScript mRS;
 
     //Configurable Capture Session that triggers camera frame capture
     private SimpleCaptureSession mCaptureSession;
+    //per frame capture results of all capture sessions of this camera
+    private final CaptureTelemetry mCaptureTelemetry = new CaptureTelemetry();
+    /* capture values of every frame, stored next to the recorded videos */
+    private final FrameMetadataWriter mFrameMetadata = new FrameMetadataWriter();
+    //metrics of all stages of the current session
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    //worker threads of the camera operations and all processing stages
+    private final PipelineScheduler mScheduler = new PipelineScheduler();
     //Listener for preview changes made from the camera
     private ConfigurePreviewListener mConfigPreviewListener;
 
-    //possible camera modes
-    public enum CameraState {
-        MODE_FUSE,
-        MODE_UNDEREXPOSE,
-        MODE_OVEREXPOSE,
-        MODE_RECORD
-    }
     private CameraState mCameraState = CameraState.MODE_FUSE;
+    //time of the last stopRecording(), -1 before the first one
+    private long mLastStopTime = -1;
+
+    //window after a recording start/stop in which lost frames are attributed to the transition
+    private static final long TRANSITION_WINDOW_MS = 1000;
+
+    /* pre-roll: encoded frames kept before the record button is pressed. at the default
+    * bitrate the memory limit allows ~1.3s */
+    private static final long PRE_ROLL_DURATION_MS = 2000;
+    private static final int PRE_ROLL_MEMORY = 16 * 1024 * 1024;
+
+    /* high frame rate mode: capture at 60 fps and fuse one output frame per exposure pair */
+    private boolean mHighFrameRate = false;
+    /* raw capture mode: record uncompressed frames instead of an H.264 video */
+    private boolean mRawCapture = false;
+    /* pixels per second the processing stages can handle, refined after every session */
+    private ThroughputProfile mThroughputProfile = ThroughputProfile.createDefault();
+    /* storage the recordings have to fit into, no limit by default */
+    private long mStorageBudgetBytes = 0;
+    private long mStorageBudgetSeconds = 0;
 
     /**
      * Creator Method of this class. Instantiate the Camera with desired capabilities like
@@ -108,19 +156,15 @@ public class HdrCamera {
         mManager = (CameraManager) activity.getSystemService(Context.CAMERA_SERVICE);
         mRS = RenderScript.create(activity);
         mExposureMeter = new ExposureMeter(this);
+        if(histLogEnabled) openHistogramLog();
+        mCaptureTelemetry.setExpectedFrameDuration(mExposureMeter.getFrameDuration());
 
         //pick an actual camera device: we want a back facing camera with certain capabilities
         createWithCapabilities();
 
-        //starting camera thread
-        HandlerThread mCameraThread = new HandlerThread("CameraOpsThread");
-        mCameraThread.start();
-        mCameraHandler = new Handler(mCameraThread.getLooper());
-
-        //starting recorder thread
-        HandlerThread mRecorderThread = new HandlerThread("RecorderOpsThread");
-        mRecorderThread.start();
-        mRecorderHandler = new Handler(mRecorderThread.getLooper());
+        //camera and recorder operations run on workers of the scheduler
+        mCameraHandler = mScheduler.getHandler(Worker.CAMERA);
+        mRecorderHandler = mScheduler.getHandler(Worker.RECORDER);
     }
 
 
@@ -261,12 +305,18 @@ public class HdrCamera {
             public void run() {
 
                 mCaptureSession.close();
+                logThroughput();
+                mExposureMeter.setHistogramListener(null);
                 mPreviewFuseProcessor.stop(); //no longer fuse
-                mExposureMeter.destroyHistogramProcessor();
-
-                if (mVideoRecorder != null) {
-                    mVideoRecorder.release();
-                    mVideoRecorder = null;
+                //no more evaluation calls as soon as camera closes
+                mHistogramProcessor.disconnectListener();
+                mHistogramProcessor.stop();
+                mHistogramProcessor = null;
+                mExposureMeter.setMeteringResolution(0, 0);
+
+                if (mRecorder != null) {
+                    mRecorder.release();
+                    mRecorder = null;
                 }
 
 
@@ -290,11 +340,18 @@ public class HdrCamera {
         //get possible sizes for use from the camera characteristics
         StreamConfigurationMap map = mCameraCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
 
-        mPreviewSize = VideoSizeConfiguration.choosePreviewSize(map);
+        //only sizes the camera can deliver within the frame duration budget
+        long frameDuration = mExposureMeter.getFrameDuration();
+
+        //sizes that keep fusion, metering and encoder within the frame time
+        VideoSizeConfiguration.SizeSelection sizes =
+                VideoSizeConfiguration.chooseSizes(map, frameDuration, mThroughputProfile);
+        mPreviewSize = sizes.previewSize;
 
-        mRecordSize = VideoSizeConfiguration.chooseVideoSize(map);
+        mRecordSize = mRawCapture ? VideoSizeConfiguration.chooseRawSize(map, frameDuration) :
+                sizes.videoSize;
 
-        mMeteringSize = VideoSizeConfiguration.chooseMeteringSize(map);
+        mMeteringSize = sizes.meteringSize;
 
     }
 
@@ -329,23 +386,51 @@ public class HdrCamera {
         Surface previewSurface = new Surface(texture); //create surface for the textureView
 
         //set up exposure metering with the appropriate histogram input
-        Surface meteringSurface = mExposureMeter.setupHistogramProcessor(mRS,mMeteringSize);
+        mHistogramProcessor = new HistogramProcessor(mRS, mMeteringSize, mExposureMeter, mScheduler);
+        mExposureMeter.setMeteringResolution(mMeteringSize.getWidth(), mMeteringSize.getHeight());
+        Surface meteringSurface = mHistogramProcessor.getInputSurface();
+        mMetrics.clear();
+        mMetrics.register(mHistogramProcessor.getMetrics());
+        mMetrics.register(mExposureMeter.getEvaluationMetrics());
 
         //set up PreviewFuseProcessor
-        mPreviewFuseProcessor = new PreviewFuseProcessor(mRS, mPreviewSize);
+        mPreviewFuseProcessor = new PreviewFuseProcessor(mRS, mPreviewSize, mScheduler);
+        mPreviewFuseProcessor.setPairedOutput(mHighFrameRate);
+        mPreviewFuseProcessor.setFrameDuration(mExposureMeter.getFrameDuration());
+        mExposureMeter.setHistogramListener(mPreviewFuseProcessor);
         Surface previewFuseSurface = mPreviewFuseProcessor.getInputSurface();
+        mMetrics.register(mPreviewFuseProcessor.getMetrics());
 
 
-        //set up the VideoRecorder for the correct size and orientation of captured frames
-        mVideoRecorder = new VideoRecorder(mAssociatedActivity, rotation, mRecordSize);
-        Surface recorderSurface = mVideoRecorder.getRecorderSurface();
+        //set up the recorder for the correct size and orientation of captured frames
+        if(mRawCapture) {
+            mRecorder = new RawPairRecorder(mRecordSize, mFrameMetadata);
+        } else {
+            int frameRate = (int) (TimeUnit.SECONDS.toNanos(1) / mExposureMeter.getFrameDuration());
+            VideoRecorder videoRecorder = new VideoRecorder(mAssociatedActivity, rotation, mRecordSize, frameRate);
+            videoRecorder.setPreRoll(PRE_ROLL_DURATION_MS, PRE_ROLL_MEMORY, frameRate);
+            videoRecorder.setFrameMetadata(mFrameMetadata);
+            BitrateController bitrateController = new BitrateController(mExposureMeter,
+                    VideoRecorder.MIN_BIT_RATE, VideoRecorder.DEFAULT_BIT_RATE);
+            bitrateController.setStorageBudget(mStorageBudgetBytes, mStorageBudgetSeconds);
+            videoRecorder.setBitrateController(bitrateController);
+            mMetrics.register(videoRecorder.getMetrics());
+            mRecorder = videoRecorder;
+        }
+        Surface recorderSurface = mRecorder.getRecorderSurface();
 
         //connect output of the fuse script to the preview texture
         mPreviewFuseProcessor.setOutputSurface(previewSurface);
 
-        mConsumerSurfaces.set(0,previewFuseSurface);
-        mConsumerSurfaces.set(1,recorderSurface);
-        mConsumerSurfaces.set(2,meteringSurface);
+        //without a recorder the camera keeps running for preview and metering
+        if(recorderSurface == null) {
+            Log.e(TAG, "recorder could not be set up, recording is disabled");
+            mRecorder.release();
+            mRecorder = null;
+            mConsumerSurfaces = Arrays.asList(previewFuseSurface, meteringSurface);
+        } else {
+            mConsumerSurfaces = Arrays.asList(previewFuseSurface, recorderSurface, meteringSurface);
+        }
     }
 
     public void startUnderexposeCapture(){
@@ -382,11 +467,90 @@ public class HdrCamera {
     }
 
     public void adjustUnderExposureManually(double factor){
-        mExposureMeter.adjustUnderexposure(factor);
+        if(mExposureMeter.adjustUnderexposure(factor)) {
+            Log.d(TAG, "UnderExp changed: " + mExposureMeter.getMeteringValues());
+        }
     }
 
     public void adjustOverexposureManually(double factor){
-        mExposureMeter.adjustOverexposure(factor);
+        if(mExposureMeter.adjustOverexposure(factor)) {
+            Log.d(TAG, "OverExp values have changed: " + mExposureMeter.getMeteringValues());
+        }
+    }
+
+    /**
+     * Switch between 30 fps capture (one fused frame per captured frame) and 60 fps capture
+     * (one fused frame per exposure pair, 30 fused frames per second). Output sizes are
+     * chosen according to the frame duration, so this takes effect the next time the camera
+     * is opened.
+     * @param enabled true for 60 fps capture
+     */
+    public void setHighFrameRateMode(boolean enabled){
+        mHighFrameRate = enabled;
+        mExposureMeter.setFrameDuration(enabled ?
+                ExposureMeter.FRAME_DURATION_HIGH_RATE : ExposureMeter.FRAME_DURATION);
+        Log.d(TAG, "frame duration set to " + mExposureMeter.getFrameDuration() + "ns, max exposure " +
+                mExposureMeter.getMaxExposureDuration() + "ns");
+        mCaptureTelemetry.setExpectedFrameDuration(mExposureMeter.getFrameDuration());
+    }
+
+    public boolean isHighFrameRateMode(){
+        return mHighFrameRate;
+    }
+
+    /**
+     * Record both exposures of every pair uncompressed (Y plane and 4:2:0 chroma with the
+     * capture values of every frame) instead of an H.264 video, for offline fusion.
+     * Takes effect the next time the camera is opened.
+     * @param enabled true for uncompressed recording
+     */
+    public void setRawCaptureMode(boolean enabled){
+        mRawCapture = enabled;
+    }
+
+    public boolean isRawCaptureMode(){
+        return mRawCapture;
+    }
+
+    /**
+     * Use the throughput of a known device for choosing frame sizes instead of the defaults.
+     * Takes effect the next time the camera is opened.
+     */
+    public void setThroughputProfile(ThroughputProfile profile){
+        mThroughputProfile = profile;
+    }
+
+    public ThroughputProfile getThroughputProfile(){
+        return mThroughputProfile;
+    }
+
+    /**
+     * Limit the bitrate of recordings so {@code durationSeconds} of video fit into {@code bytes}.
+     * Takes effect the next time the camera is opened.
+     * @param bytes storage available for recordings, 0 for no limit
+     */
+    public void setStorageBudget(long bytes, long durationSeconds){
+        mStorageBudgetBytes = bytes;
+        mStorageBudgetSeconds = durationSeconds;
+    }
+
+    /**
+     * Record per frame trace events of all stages, see {@link FrameTracer}
+     */
+    public void setTracingEnabled(boolean enabled){
+        FrameTracer.setEnabled(enabled);
+    }
+
+    /**
+     * Write the trace events of the last {@code windowMs} as Chrome trace JSON. Does file I/O,
+     * call it off the UI thread.
+     * @return number of events written
+     */
+    public int exportTrace(File file, long windowMs) throws IOException {
+        long now = System.nanoTime();
+        int events = FrameTracer.writeChromeTrace(file, now - TimeUnit.MILLISECONDS.toNanos(windowMs), now);
+        Log.d(TAG, events + " trace events written to " + file);
+        return events;
     }
 
     /* GETTER & SETTER METHODS */
@@ -395,59 +559,183 @@ public class HdrCamera {
         return mCameraDevice;
     }
 
+    @Override
     public CameraState getCameraState(){
         return mCameraState;
     }
 
+    public CaptureTelemetry getCaptureTelemetry(){
+        return mCaptureTelemetry;
+    }
+
+    /**
+     * @return metrics of the metering, fusion and encoding stages of the current session
+     */
+    public MetricsRegistry getMetricsRegistry(){
+        return mMetrics;
+    }
+
+    /**
+     * @return fusion of the current session, the capture session reports the frames it captured
+     */
+    public PreviewFuseProcessor getPreviewFuseProcessor(){
+        return mPreviewFuseProcessor;
+    }
+
+    /**
+     * @return writer the capture session appends the values of every completed frame to
+     */
+    public FrameMetadataWriter getFrameMetadataWriter(){
+        return mFrameMetadata;
+    }
+
+    /**
+     * @return frame interval, drop and exposure latency statistics of the captured frames
+     */
+    public CaptureTelemetry.Stats getCaptureStats(){
+        return mCaptureTelemetry.getStats();
+    }
+
     /* RECORDER OPERATION METHODS */
+    /* The encoder of the VideoRecorder runs as long as the camera is open, starting and stopping
+    * a recording only attaches/detaches the output file. Preview, fusion and metering keep
+    * running through both transitions. */
     public void startRecording() throws IllegalStateException {
         Log.d(TAG, "trying to start recording");
+        final RecordingSink recorder = mRecorder;
+        if(recorder == null) {
+            Log.e(TAG, "recording is disabled, the recorder could not be set up");
+            return;
+        }
         mRecorderHandler.post(new Runnable() {
             @Override
             public void run() {
-                mVideoRecorder.start();
+                try {
+                    recorder.start();
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "recording could not be started: " + e.getMessage());
+                }
             }
         });
         mCameraState = CameraState.MODE_RECORD;
+        measureTransition("start", mLastStopTime >= 0 ?
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - mLastStopTime) : -1);
     }
 
     public void stopRecording() throws IllegalStateException {
         Log.d(TAG, "trying to stop recording");
+        final RecordingSink recorder = mRecorder;
+        if(recorder == null) {
+            Log.e(TAG, "recording is disabled, the recorder could not be set up");
+            return;
+        }
         mRecorderHandler.post(new Runnable() {
             @Override
             public void run() {
-                mVideoRecorder.stop();
+                try {
+                    recorder.stop();
+                } catch (IllegalStateException e) {
+                    Log.e(TAG, "recording could not be stopped: " + e.getMessage());
+                }
+                Log.d(TAG, recorder.getStatistics());
             }
         });
-        /* preview needs to be restarted because stopping the videorecorder will put the
-        * used MediaRecorder into the Initialize state, which means no output surface is available.
-        * This also means the whole camera surface connection is reset and needs to be built again.
-        * essentially we need to do the whole thing that is done when opening the camera*/
-        mCaptureSession.close(); //stop camera outputs
-        mPreviewFuseProcessor.stop(); //no longer fuse
-        mExposureMeter.destroyHistogramProcessor();
-
         mCameraState = CameraState.MODE_FUSE;
+        mLastStopTime = System.nanoTime();
+        measureTransition("stop", -1);
+    }
 
-        setupSurfaces(); //reconnect surfaces
+    public void cleanup(){
+        /* any resource cleanup? */
+        closeHistogramLog();
+        //stops the workers after the pending camera operations, e.g. closing the camera
+        mScheduler.shutdown();
+    }
 
-        //restart session
-        mCaptureSession = new AlternatingCaptureSession(HdrCamera.this,
-                mConsumerSurfaces,
-                mExposureMeter,
-                mCameraHandler);
 
 
+    /* HELPER METHODS */
+
+    /* histograms of manual metering while recording go to a new file in DCIM/Camera */
+    private void openHistogramLog(){
+        File logFile = Environment.getExternalStoragePublicDirectory(
+                Environment.DIRECTORY_DCIM + "/Camera/HistLOG_" +
+                        new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date()) + ".txt");
+        try {
+            mHistogramLog = new BufferedWriter(new FileWriter(logFile, true));
+            mExposureMeter.setHistogramLog(mHistogramLog);
+        } catch (IOException e) {
+            Log.d(TAG, "error creating the LogFileWriter");
+            mHistogramLog = null;
+        }
     }
 
-    public void cleanup(){
-        /* any resource cleanup? */
-        mExposureMeter.finish();
+    private void closeHistogramLog(){
+        if(mHistogramLog == null) return;
+        mExposureMeter.setHistogramLog(null);
+        try{
+            mHistogramLog.close();
+        } catch(IOException e) {
+            Log.d(TAG, "closing the logfile writer failed");
+        }
+        mHistogramLog = null;
     }
 
+    /* count the frames lost by the camera, fusion and metering within a short window after a
+    * recording transition, a start is reported with the time since the previous stop */
+    private void measureTransition(final String transition, long sinceStopMs){
+        final String gap = sinceStopMs >= 0 ? " " + sinceStopMs + "ms after the last stop" : "";
+        final Counter fusion = mPreviewFuseProcessor.getMetrics().getDroppedFrames();
+        final Counter metering = mHistogramProcessor.getMetrics().getDroppedFrames();
+        final long fusionDropped = fusion.get();
+        final long meteringDropped = metering.get();
+        CaptureTelemetry.Stats stats = mCaptureTelemetry.getStats();
+        final long captureLost = stats.droppedFrames + stats.failedFrames;
+
+        mCameraHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                CaptureTelemetry.Stats stats = mCaptureTelemetry.getStats();
+                Log.d(TAG, "frames lost after recording " + transition + gap + ": camera " +
+                        (stats.droppedFrames + stats.failedFrames - captureLost) + ", fusion " +
+                        (fusion.get() - fusionDropped) + ", metering " +
+                        (metering.get() - meteringDropped));
+            }
+        }, TRANSITION_WINDOW_MS);
+    }
 
+    /* log whether fusion and metering kept up with the camera frame rate */
+    private void logThroughput(){
+        Log.d(TAG, "fusion: " + mPreviewFuseProcessor.getOutputFrameCount() + " fused outputs, " +
+                mPreviewFuseProcessor.getDroppedPairCount() + " dropped pairs");
+        Log.d(TAG, mPreviewFuseProcessor.getResolutionGovernor().toString());
+        Log.d(TAG, mPreviewFuseProcessor.getQualityGovernor().toString());
+        Log.d(TAG, mPreviewFuseProcessor.getToneCurves().toString());
+        Log.d(TAG, mCaptureTelemetry.getStats().toString());
+        Log.d(TAG, mMetrics.toString());
+        Log.d(TAG, mScheduler.toString());
+
+        //the next session chooses its sizes with what the stages reached in this one, fusion
+        //worked at the sizes the governor chose
+        float fusionScale = (float) Math.sqrt(
+                mPreviewFuseProcessor.getResolutionGovernor().getMeanAreaScale());
+        Size fusionSize = new Size(Math.round(mPreviewSize.getWidth() * fusionScale),
+                Math.round(mPreviewSize.getHeight() * fusionScale));
+        updateThroughputProfile(ThroughputProfile.Stage.FUSION, fusionSize,
+                mPreviewFuseProcessor.getMetrics());
+        updateThroughputProfile(ThroughputProfile.Stage.METERING, mMeteringSize,
+                mHistogramProcessor.getMetrics());
+        Log.d(TAG, mThroughputProfile.toString());
+    }
 
-    /* HELPER METHODS */
+    private void updateThroughputProfile(ThroughputProfile.Stage stage, Size size,
+                                         StageMetrics metrics){
+        long processed = metrics.getProcessedFrames().get();
+        long dropped = metrics.getDroppedFrames().get();
+        if(processed + dropped == 0) return;
+        mThroughputProfile.updateFromMeasurement(stage, size, metrics.getFramesPerSecond(),
+                (float) dropped / (processed + dropped));
+    }
 
     private boolean hasCapability(int[] capabilities, int capability) {
         for (int c : capabilities) {
@@ -25,6 +25,8 @@ public class AlternatingCaptureSession extends SimpleCaptureSession {
 
     //list of the double exposure capture requests
     private List<CaptureRequest> mDoubleExposure = Arrays.asList(null,null);
+    //the burst in mDoubleExposure is running, resubmitting the same requests is skipped
+    private boolean mBurstSubmitted = false;
 
     /**
      * Creator of this class.
@@ -40,6 +42,16 @@ public class AlternatingCaptureSession extends SimpleCaptureSession {
         super(device, consumers, meter, cameraHandler);
     }
 
+    /* camera thread: results of the burst submitted before the current one match neither
+    * request and are reported as unknown, so are both frames if the exposures are equal */
+    @Override
+    protected int getPairPosition(CaptureRequest request){
+        if(mDoubleExposure.get(0) == mDoubleExposure.get(1)) return -1;
+        if(request == mDoubleExposure.get(0)) return 0;
+        if(request == mDoubleExposure.get(1)) return 1;
+        return -1;
+    }
+
     /*for now only for the previewBuilder */
     /**
      * Create and execute (enqueue) a capture request. These are the only request settings the should
@@ -52,25 +64,34 @@ public class AlternatingCaptureSession extends SimpleCaptureSession {
         long mEvenExposure = param.getUnderexposeDuration();
         long mOddExposure = param.getOverexposeDuration();
 
+        CaptureRequest prevEven = mDoubleExposure.get(0);
+        CaptureRequest prevOdd = mDoubleExposure.get(1);
+
         //evenFrame -> should be the short exposure (darker frame)
-        mRequestBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, evenIso);
-        mRequestBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, mEvenExposure);
-        //mPreviewBuilder.setTag(mEvenExposureTag);
-        mDoubleExposure.set(0, mRequestBuilder.build());
+        mDoubleExposure.set(0, getCaptureRequest(evenIso, mEvenExposure));
 
 
         //oddFrame -> should be the longer exposure (brighter frame)
-        mRequestBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, oddIso);
-        mRequestBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, mOddExposure);
-        //mHdrBuilder.setTag(mOddExposureTag);
-        mDoubleExposure.set(1, mRequestBuilder.build());
+        mDoubleExposure.set(1, getCaptureRequest(oddIso, mOddExposure));
+
+        /* the meter also reports unchanged values, the requests come from the cache so the
+        * running burst can be kept. Restarting it allocates in the framework on every event */
+        if(mBurstSubmitted && mDoubleExposure.get(0) == prevEven && mDoubleExposure.get(1) == prevOdd) {
+            return;
+        }
+
+        //measure until the first changed request is captured
+        mTelemetry.onCaptureValuesSubmitted(mDoubleExposure.get(0) != prevEven ?
+                mDoubleExposure.get(0) : mDoubleExposure.get(1));
 
         try {
             //Log.d(TAG, "trying to change parameters for alternating capture session");
             /* starting a repeating burst (in this specific class consisting of two exposures repeated
             until a new capture request is provided*/
             mCaptureSession.setRepeatingBurst(mDoubleExposure, mCaptureCallback, mCameraHandler);
+            mBurstSubmitted = true;
         } catch (CameraAccessException e) {
+            mBurstSubmitted = false;
             Log.d(TAG, "FAILED setRepeatingBurst");
             e.printStackTrace();
         }
@@ -0,0 +1,122 @@
+package videohdr.camera.capture;
+
+import android.hardware.camera2.CaptureRequest;
+
+/**
+ * Bounded LRU cache of built capture requests of a single session, keyed by ISO and exposure
+ * time. The ExposureMeter snaps its values to a quantization grid, so manual scrolling and
+ * the auto metering loop revisit the same keys and a request only has to be built once.
+ *
+ * Keys and timestamps are kept in primitive arrays, a lookup never allocates.
+ */
+public class CaptureRequestCache {
+
+    public static final int DEFAULT_CAPACITY = 32;
+
+    private final long[] mKeys;
+    private final CaptureRequest[] mRequests;
+    private final long[] mLastUsed;
+
+    private int mSize = 0;
+    private long mUseCounter = 0;
+
+    //metrics
+    private long mHits = 0;
+    private long mMisses = 0;
+    private long mEvictions = 0;
+
+    public CaptureRequestCache(){
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum number of cached requests
+     */
+    public CaptureRequestCache(int capacity){
+        if(capacity <= 0) throw new IllegalArgumentException("capacity has to be positive");
+        mKeys = new long[capacity];
+        mRequests = new CaptureRequest[capacity];
+        mLastUsed = new long[capacity];
+    }
+
+    /**
+     * @return the cached request for these capture values or null if there is none
+     */
+    public synchronized CaptureRequest get(int iso, long exposure){
+        long key = toKey(iso, exposure);
+        for(int i = 0; i < mSize; i++){
+            if(mKeys[i] == key){
+                mLastUsed[i] = ++mUseCounter;
+                mHits++;
+                return mRequests[i];
+            }
+        }
+        mMisses++;
+        return null;
+    }
+
+    /**
+     * Store a request, evicting the least recently used one if the cache is full
+     */
+    public synchronized void put(int iso, long exposure, CaptureRequest request){
+        long key = toKey(iso, exposure);
+        int slot = -1;
+        for(int i = 0; i < mSize; i++){
+            if(mKeys[i] == key){
+                slot = i;
+                break;
+            }
+        }
+
+        if(slot < 0) {
+            if(mSize < mKeys.length) {
+                slot = mSize++;
+            } else {
+                slot = 0;
+                for (int i = 1; i < mSize; i++) {
+                    if (mLastUsed[i] < mLastUsed[slot]) slot = i;
+                }
+                mEvictions++;
+            }
+        }
+
+        mKeys[slot] = key;
+        mRequests[slot] = request;
+        mLastUsed[slot] = ++mUseCounter;
+    }
+
+    /**
+     * Drop all requests, e.g. when the builder they were created from has changed
+     */
+    public synchronized void clear(){
+        for(int i = 0; i < mSize; i++) mRequests[i] = null;
+        mSize = 0;
+    }
+
+    public synchronized int size(){
+        return mSize;
+    }
+
+    public synchronized long getHitCount(){
+        return mHits;
+    }
+
+    public synchronized long getMissCount(){
+        return mMisses;
+    }
+
+    public synchronized long getEvictionCount(){
+        return mEvictions;
+    }
+
+    /* exposure times stay far below 2^32 ns (~4.3s), iso fits in the upper half */
+    private static long toKey(int iso, long exposure){
+        return ((long) iso << 32) | (exposure & 0xFFFFFFFFL);
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "CaptureRequestCache: " + mSize + "/" + mKeys.length + " entries, " + mHits +
+                " hits, " + mMisses + " misses, " + mEvictions + " evictions";
+    }
+}
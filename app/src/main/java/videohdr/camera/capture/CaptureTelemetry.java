@@ -0,0 +1,277 @@
+package videohdr.camera.capture;
+
+import android.hardware.camera2.CaptureRequest;
+import android.os.SystemClock;
+
+/**
+ * Telemetry of completed and failed captures.
+ *
+ * The capture callback (camera thread) is the only producer and writes one record per frame
+ * into preallocated arrays of a ring buffer. It never locks and never allocates. Consumers
+ * (UI, logging) call {@link #getStats()}, which drains new records into a rolling window and
+ * computes frame interval jitter, drop counts and the latency until new capture values are
+ * applied by the camera.
+ */
+public class CaptureTelemetry {
+
+    private static final int DEFAULT_CAPACITY = 256;
+    private static final int DEFAULT_WINDOW = 120;
+
+    //frames arriving later than this factor times the frame duration count as late
+    private static final float LATE_FRAME_FACTOR = 1.5f;
+
+    private static final byte FLAG_FAILED = 1;
+
+    /* RING BUFFER, written by the camera thread only */
+    private final int mCapacity;
+    private final long[] mSensorTimestamps;
+    private final long[] mFrameNumbers;
+    private final long[] mExposures;
+    private final int[] mIsos;
+    private final long[] mApplyLatencies;
+    private final byte[] mFlags;
+
+    //number of records written so far, published after a record is complete
+    private volatile long mWriteIndex = 0;
+
+    /* request whose results show that new capture values have been applied */
+    private volatile CaptureRequest mPendingRequest = null;
+    private volatile long mPendingRequestTime = 0;
+
+    private volatile long mExpectedFrameDuration = 0;
+
+    /* CONSUMER STATE, guarded by this */
+    private long mReadIndex = 0;
+    private final int mWindowSize;
+    private final long[] mIntervals;
+    private int mWindowPos = 0;
+    private int mWindowCount = 0;
+    private long mLastTimestamp = -1;
+    private long mLastFrameNumber = -1;
+    private long mLastExposure = -1;
+    private int mLastIso = -1;
+
+    private long mCompletedFrames = 0;
+    private long mFailedFrames = 0;
+    private long mDroppedFrames = 0;
+    private long mLateFrames = 0;
+    private long mLostRecords = 0;
+
+    private long mLatencyCount = 0;
+    private long mLatencySum = 0;
+    private long mLatencyMax = 0;
+    private long mLatencyLast = -1;
+
+    public CaptureTelemetry(){
+        this(DEFAULT_CAPACITY, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param capacity number of records the ring buffer can hold until the consumer drains it
+     * @param windowSize number of frame intervals used for the rolling statistics
+     */
+    public CaptureTelemetry(int capacity, int windowSize){
+        mCapacity = capacity;
+        mSensorTimestamps = new long[capacity];
+        mFrameNumbers = new long[capacity];
+        mExposures = new long[capacity];
+        mIsos = new int[capacity];
+        mApplyLatencies = new long[capacity];
+        mFlags = new byte[capacity];
+
+        mWindowSize = windowSize;
+        mIntervals = new long[windowSize];
+    }
+
+    /**
+     * Frame duration the sensor is configured with, used to detect late frames
+     * @param frameDuration in ns
+     */
+    public void setExpectedFrameDuration(long frameDuration){
+        mExpectedFrameDuration = frameDuration;
+    }
+
+    /**
+     * Mark the point in time new capture values were submitted. The first completed capture of
+     * {@code request} ends the measurement of the exposure-applied latency. Can be called from
+     * any thread that submits capture requests.
+     * @param request first request of the new repeating burst that carries changed values
+     */
+    public void onCaptureValuesSubmitted(CaptureRequest request){
+        mPendingRequestTime = SystemClock.elapsedRealtimeNanos();
+        mPendingRequest = request;
+    }
+
+    /* PRODUCER METHODS - camera thread only */
+
+    public void onCaptureCompleted(CaptureRequest request, long sensorTimestamp, long frameNumber,
+                                   long exposure, int iso){
+        long latency = -1;
+        if(request != null && request == mPendingRequest){
+            latency = SystemClock.elapsedRealtimeNanos() - mPendingRequestTime;
+            mPendingRequest = null;
+        }
+        write(sensorTimestamp, frameNumber, exposure, iso, latency, (byte) 0);
+    }
+
+    public void onCaptureFailed(long frameNumber){
+        write(-1, frameNumber, -1, -1, -1, FLAG_FAILED);
+    }
+
+    private void write(long sensorTimestamp, long frameNumber, long exposure, int iso,
+                       long latency, byte flags){
+        long index = mWriteIndex;
+        int slot = (int) (index % mCapacity);
+        mSensorTimestamps[slot] = sensorTimestamp;
+        mFrameNumbers[slot] = frameNumber;
+        mExposures[slot] = exposure;
+        mIsos[slot] = iso;
+        mApplyLatencies[slot] = latency;
+        mFlags[slot] = flags;
+        mWriteIndex = index + 1; //publish record
+    }
+
+    /* CONSUMER METHODS */
+
+    /**
+     * Drain all new records and compute the current statistics
+     * @return snapshot of the capture statistics
+     */
+    public synchronized Stats getStats(){
+        drain();
+
+        long sum = 0;
+        long max = 0;
+        for(int i = 0; i < mWindowCount; i++){
+            sum += mIntervals[i];
+            if(mIntervals[i] > max) max = mIntervals[i];
+        }
+        double mean = mWindowCount > 0 ? (double) sum / mWindowCount : 0;
+        double variance = 0;
+        for(int i = 0; i < mWindowCount; i++){
+            double d = mIntervals[i] - mean;
+            variance += d * d;
+        }
+        double jitter = mWindowCount > 0 ? Math.sqrt(variance / mWindowCount) : 0;
+
+        return new Stats(mCompletedFrames, mFailedFrames, mDroppedFrames, mLateFrames, mLostRecords,
+                mLastExposure, mLastIso, (long) mean, (long) jitter, max,
+                mLatencyLast, mLatencyCount > 0 ? mLatencySum / mLatencyCount : -1, mLatencyMax);
+    }
+
+    private void drain(){
+        long writeIndex = mWriteIndex;
+        /*the producer may already be writing record writeIndex, which shares its slot with
+        * writeIndex - mCapacity. only the last mCapacity - 1 records are intact*/
+        if(writeIndex - mReadIndex >= mCapacity) {
+            //producer overtook the consumer, oldest records are gone
+            mLostRecords += writeIndex - mCapacity + 1 - mReadIndex;
+            mReadIndex = writeIndex - mCapacity + 1;
+        }
+
+        while(mReadIndex < writeIndex){
+            int slot = (int) (mReadIndex % mCapacity);
+            long timestamp = mSensorTimestamps[slot];
+            long frameNumber = mFrameNumbers[slot];
+            long exposure = mExposures[slot];
+            int iso = mIsos[slot];
+            long latency = mApplyLatencies[slot];
+            byte flags = mFlags[slot];
+
+            //the record could have been overwritten while reading it
+            if(mWriteIndex - mReadIndex >= mCapacity){
+                mLostRecords++;
+                mReadIndex++;
+                continue;
+            }
+            mReadIndex++;
+            consume(timestamp, frameNumber, exposure, iso, latency, flags);
+        }
+    }
+
+    private void consume(long timestamp, long frameNumber, long exposure, int iso, long latency,
+                         byte flags){
+        if(mLastFrameNumber >= 0 && frameNumber > mLastFrameNumber + 1){
+            mDroppedFrames += frameNumber - mLastFrameNumber - 1;
+        }
+        if(frameNumber > mLastFrameNumber) mLastFrameNumber = frameNumber;
+
+        if((flags & FLAG_FAILED) != 0){
+            mFailedFrames++;
+            return;
+        }
+        mCompletedFrames++;
+        mLastExposure = exposure;
+        mLastIso = iso;
+
+        if(mLastTimestamp >= 0 && timestamp > mLastTimestamp){
+            long interval = timestamp - mLastTimestamp;
+            mIntervals[mWindowPos] = interval;
+            mWindowPos = (mWindowPos + 1) % mWindowSize;
+            if(mWindowCount < mWindowSize) mWindowCount++;
+
+            long expected = mExpectedFrameDuration;
+            if(expected > 0 && interval > expected * LATE_FRAME_FACTOR) mLateFrames++;
+        }
+        mLastTimestamp = timestamp;
+
+        if(latency >= 0){
+            mLatencyLast = latency;
+            mLatencySum += latency;
+            mLatencyCount++;
+            if(latency > mLatencyMax) mLatencyMax = latency;
+        }
+    }
+
+    /**
+     * Immutable snapshot of the capture statistics. Intervals and latencies are in ns,
+     * latencies are -1 if not measured yet.
+     */
+    public static class Stats {
+        public final long completedFrames;
+        public final long failedFrames;
+        public final long droppedFrames;
+        public final long lateFrames;
+        public final long lostRecords;
+
+        public final long lastExposure;
+        public final int lastIso;
+
+        public final long meanInterval;
+        public final long intervalJitter;
+        public final long maxInterval;
+
+        public final long lastApplyLatency;
+        public final long meanApplyLatency;
+        public final long maxApplyLatency;
+
+        Stats(long completedFrames, long failedFrames, long droppedFrames, long lateFrames,
+              long lostRecords, long lastExposure, int lastIso, long meanInterval, long intervalJitter, long maxInterval,
+              long lastApplyLatency, long meanApplyLatency, long maxApplyLatency){
+            this.completedFrames = completedFrames;
+            this.failedFrames = failedFrames;
+            this.droppedFrames = droppedFrames;
+            this.lateFrames = lateFrames;
+            this.lostRecords = lostRecords;
+            this.lastExposure = lastExposure;
+            this.lastIso = lastIso;
+            this.meanInterval = meanInterval;
+            this.intervalJitter = intervalJitter;
+            this.maxInterval = maxInterval;
+            this.lastApplyLatency = lastApplyLatency;
+            this.meanApplyLatency = meanApplyLatency;
+            this.maxApplyLatency = maxApplyLatency;
+        }
+
+        @Override
+        public String toString(){
+            return "frames: " + completedFrames + " completed, " + failedFrames + " failed, " +
+                    droppedFrames + " dropped, " + lateFrames + " late \n" +
+                    "last frame: ISO " + lastIso + ", DUR " + lastExposure + " \n" +
+                    "interval: mean " + meanInterval / 1000 + "us, jitter " + intervalJitter / 1000 +
+                    "us, max " + maxInterval / 1000 + "us \n" +
+                    "exposure applied after: last " + lastApplyLatency / 1000 + "us, mean " +
+                    meanApplyLatency / 1000 + "us, max " + maxApplyLatency / 1000 + "us";
+        }
+    }
+}
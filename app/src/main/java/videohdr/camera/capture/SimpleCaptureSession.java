@@ -3,7 +3,9 @@ package videohdr.camera.capture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
 import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CaptureFailure;
 import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
 import android.hardware.camera2.TotalCaptureResult;
 import android.os.Handler;
 import android.util.Log;
@@ -13,6 +15,9 @@ import java.util.List;
 
 import videohdr.camera.ExposureMeter;
 import videohdr.camera.HdrCamera;
+import videohdr.recorder.FrameMetadataWriter;
+import videohdr.renderscript.PreviewFuseProcessor;
+import videohdr.trace.FrameTracer;
 
 /**
  * This class was created to abstract and simplify the android API for this applications
@@ -34,6 +39,9 @@ public abstract class SimpleCaptureSession implements ExposureMeter.EventListene
     /*builder for the camera device we are using for the alternating session preview*/
     protected CaptureRequest.Builder mRequestBuilder;
 
+    /*requests built from mRequestBuilder, reused whenever capture values are revisited*/
+    protected final CaptureRequestCache mRequestCache = new CaptureRequestCache();
+
     //consumer surfaces of this alternating session
     protected List<Surface> mConsumerSurfaces;
 
@@ -45,6 +53,13 @@ public abstract class SimpleCaptureSession implements ExposureMeter.EventListene
 
     private final ExposureMeter mExposureMeter;
 
+    //per frame capture results are recorded here
+    protected final CaptureTelemetry mTelemetry;
+    //per frame capture values stored with the recording
+    protected final FrameMetadataWriter mFrameMetadata;
+    //gets the frame number of every frame, used to find the pairs in paired output
+    private final PreviewFuseProcessor mFusion;
+
 
     /**
      * State Callback for the Capture Session
@@ -63,7 +78,7 @@ public abstract class SimpleCaptureSession implements ExposureMeter.EventListene
 
                     //set auto exposure mode to off, otherwise we can't do manual double exposure
                     mRequestBuilder.set(CaptureRequest.CONTROL_AE_MODE, CaptureRequest.CONTROL_AE_MODE_OFF);
-                    mRequestBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, ExposureMeter.FRAME_DURATION);
+                    mRequestBuilder.set(CaptureRequest.SENSOR_FRAME_DURATION, mExposureMeter.getFrameDuration());
                     mRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_VIDEO);
 
                     ExposureMeter.MeteringParam param = mExposureMeter.getMeteringValues();
@@ -89,7 +104,8 @@ public abstract class SimpleCaptureSession implements ExposureMeter.EventListene
 
 
     /**
-     * Here meta information of the completed frames can be accessed, not used for now
+     * Here meta information of the completed frames can be accessed. Timestamp, frame number
+     * and capture values of every frame are recorded by the CaptureTelemetry
      */
     protected final CameraCaptureSession.CaptureCallback mCaptureCallback =
             new CameraCaptureSession.CaptureCallback() {
@@ -108,14 +124,31 @@ public abstract class SimpleCaptureSession implements ExposureMeter.EventListene
                 @Override
                 public void onCaptureCompleted(CameraCaptureSession session, CaptureRequest request, TotalCaptureResult result) {
                     super.onCaptureCompleted(session, request, result);
+
+                    Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+                    Long exposure = result.get(CaptureResult.SENSOR_EXPOSURE_TIME);
+                    Integer iso = result.get(CaptureResult.SENSOR_SENSITIVITY);
+                    mTelemetry.onCaptureCompleted(request,
+                            timestamp != null ? timestamp : -1,
+                            result.getFrameNumber(),
+                            exposure != null ? exposure : -1,
+                            iso != null ? iso : -1);
+                    mFusion.onFrameCaptured(result.getFrameNumber(), getPairPosition(request));
+                    if(timestamp != null) {
+                        FrameTracer.onFrameCaptured(timestamp);
+                        mFrameMetadata.append(timestamp, result.getFrameNumber(),
+                                iso != null ? iso : -1, exposure != null ? exposure : -1);
+                    }
                 }
 
-                /*
                 @Override
                 public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
                     super.onCaptureFailed(session, request, failure);
+                    mTelemetry.onCaptureFailed(failure.getFrameNumber());
+                    mFusion.onCaptureFailed(failure.getFrameNumber(), failure.wasImageCaptured());
                 }
 
+                /*
                 @Override
                 public void onCaptureSequenceCompleted(CameraCaptureSession session, int sequenceId, long frameNumber) {
                     super.onCaptureSequenceCompleted(session, sequenceId, frameNumber);
@@ -144,11 +177,22 @@ public abstract class SimpleCaptureSession implements ExposureMeter.EventListene
         mConsumerSurfaces = consumers;
         mExposureMeter = meter;
         mCameraHandler = cameraHandler;
+        mTelemetry = device.getCaptureTelemetry();
+        mFrameMetadata = device.getFrameMetadataWriter();
+        mFusion = device.getPreviewFuseProcessor();
 
 
         createSessionAndCaptureBuilder();
     }
 
+    /**
+     * @return position of the frame of {@code request} within an exposure pair, 0 for the first
+     * and 1 for the second exposure, -1 if the session doesn't capture pairs
+     */
+    protected int getPairPosition(CaptureRequest request){
+        return -1;
+    }
+
     /**
      * initialize CameraCaptureSession and CaptureRequest.Builder objects for this session
      * @return success
@@ -181,8 +225,28 @@ public abstract class SimpleCaptureSession implements ExposureMeter.EventListene
      */
     protected abstract void setCaptureParameters(ExposureMeter.MeteringParam param);
 
+    /**
+     * Get the capture request for the given values from the cache, or build it with
+     * mRequestBuilder if these values are requested for the first time.
+     * @param iso sensor sensitivity
+     * @param exposure exposure time in ns
+     * @return capture request with all session settings and the given capture values
+     */
+    protected CaptureRequest getCaptureRequest(int iso, long exposure){
+        CaptureRequest request = mRequestCache.get(iso, exposure);
+        if(request == null) {
+            mRequestBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, iso);
+            mRequestBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposure);
+            request = mRequestBuilder.build();
+            mRequestCache.put(iso, exposure, request);
+        }
+        return request;
+    }
+
     public void close(){
+        Log.d(TAG, mRequestCache.toString());
         mCaptureSession.close();
+        mRequestCache.clear();
     }
 
     @Override
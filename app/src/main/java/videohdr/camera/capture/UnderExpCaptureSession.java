@@ -46,9 +46,8 @@ public class UnderExpCaptureSession extends SimpleCaptureSession {
         long exposureDuration = param.getUnderexposeDuration();
 
         //evenFrame -> should be the short exposure (darker frame)
-        mRequestBuilder.set(CaptureRequest.SENSOR_SENSITIVITY, iso);
-        mRequestBuilder.set(CaptureRequest.SENSOR_EXPOSURE_TIME, exposureDuration);
-        CaptureRequest mSingleExposure = mRequestBuilder.build();
+        CaptureRequest mSingleExposure = getCaptureRequest(iso, exposureDuration);
+        mTelemetry.onCaptureValuesSubmitted(mSingleExposure);
 
         try {
             //set a repeating request (single request, repeated until a new request is provided)
@@ -0,0 +1,136 @@
+package videohdr.fusion;
+
+/**
+ * Fusion of consecutive frames on the CPU, the same integer math as the fuse kernel of
+ * "preview_fuse.rs" (see {@link videohdr.renderscript.PreviewFuseProcessor}). Used to measure and
+ * simulate the fusion stage off the device and as the reference of the kernel. The tone curve of
+ * the kernel is not applied, it matches the kernel with the identity curve, see
+ * {@link ToneMappingStage} for tone mapping on the CPU.
+ *
+ * Every pixel of the output is the weighted mean of the pixel in the current and the previous
+ * frame, converted to RGB. Not thread safe, one instance per processing thread.
+ */
+public class CpuFusion {
+
+    /* weight modes of the fusion, also used by preview_fuse.rs and FusionEngines */
+    public static final int WEIGHT_EQUAL = 0;
+    public static final int WEIGHT_PIXEL = 1;
+    public static final int WEIGHT_SMOOTHED = 2;
+
+    static final int STORED_WEIGHT_SCALE = 200;
+
+    //weights will be computed as fractional parts of 10^5
+    public static final int[] WEIGHTS = {25000,25732,26464,27194,27923,28650,29374,30095,30811,31523,32231,32932,33628,
+            34316,34998,35672,36337,36993,37640,38277,38903,39518,40121,40712,41290,41855,42406,
+            42942,43463,43968,44458,44930,45385,45823,46241,46641,47022,47382,47721,48039,48336,
+            48610,48861,49089,49293,49472,49626,49754,49856,49931,49979,49999,50000,50000,50000,
+            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
+            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
+            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
+            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
+            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
+            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
+            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
+            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
+            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,49990,
+            49954,49889,49798,49680,49536,49367,49173,48955,48713,48448,48161,47851,47520,47168,
+            46796,46404,45992,45562,45114,44649,44166,43667,43152,42622,42077,41518,40945,40359,
+            39761,39150,38528,37896,37253,36600,35939,35268,34590,33904,33211,32512,31807,31097,
+            30382,29663,28940,28214,27486,26756,26025,25292,24560,23828,23097,22367,21639,20914,
+            20192,19474,18760,18051,17347,16649,15957,15273,14596,13927,13267,12617,11976,11345,
+            10726,10118,9522,8938,8368};
+
+    private final int mWidth;
+    private final int mHeight;
+    //previous frame at full resolution: Y, U, V and the stored smoothed weight, one byte each
+    private final int[] mPrevFrame;
+    private int mWeightMode = WEIGHT_PIXEL;
+
+    public CpuFusion(int width, int height){
+        mWidth = width;
+        mHeight = height;
+        mPrevFrame = new int[width * height];
+    }
+
+    public void setWeightMode(int weightMode){
+        mWeightMode = weightMode;
+    }
+
+    /**
+     * Fuse {@code frame} with the previous frame and keep it for the next call
+     * @param out ARGB pixels, at least width * height
+     */
+    public void fuse(YuvFrame frame, int[] out){
+        int width = mWidth;
+        int chromaWidth = width / 2;
+        byte[] yPlane = frame.y;
+        for(int row = 0; row < mHeight; row++){
+            int offset = row * width;
+            int chromaOffset = (row / 2) * chromaWidth;
+            for(int col = 0; col < width; col++){
+                int i = offset + col;
+                int c = chromaOffset + col / 2;
+                int y = yPlane[i] & 0xff;
+                int u = frame.u[c] & 0xff;
+                int v = frame.v[c] & 0xff;
+                int prev = mPrevFrame[i];
+                int prevY = prev >>> 24;
+                int prevU = (prev >>> 16) & 0xff;
+                int prevV = (prev >>> 8) & 0xff;
+
+                int stored = 255;
+                int mergedY;
+                int mergedU;
+                int mergedV;
+                if(mWeightMode == WEIGHT_PIXEL) {
+                    int curWeight = WEIGHTS[y];
+                    int prevWeight = WEIGHTS[prevY];
+                    int sum = curWeight + prevWeight;
+                    mergedY = prevWeight * prevY / sum + curWeight * y / sum;
+                    mergedU = prevWeight * prevU / sum + curWeight * u / sum;
+                    mergedV = prevWeight * prevV / sum + curWeight * v / sum;
+                } else {
+                    int share;
+                    if(mWeightMode == WEIGHT_SMOOTHED) {
+                        int curWeight = smoothedWeight(yPlane, width, mHeight, col, row);
+                        stored = curWeight / STORED_WEIGHT_SCALE;
+                        share = curWeight * 1024 / (curWeight + (prev & 0xff) * STORED_WEIGHT_SCALE);
+                    } else {
+                        share = 512;
+                    }
+                    mergedY = ((1024 - share) * prevY + share * y) / 1024;
+                    mergedU = ((1024 - share) * prevU + share * u) / 1024;
+                    mergedV = ((1024 - share) * prevV + share * v) / 1024;
+                }
+                out[i] = YuvConverter.toArgb(mergedY, mergedU, mergedV);
+                mPrevFrame[i] = y << 24 | u << 16 | v << 8 | stored;
+            }
+        }
+    }
+
+    /* mean of the weights of the 3x3 neighbourhood, like smoothedWeight() of the kernel */
+    static int smoothedWeight(byte[] yPlane, int width, int height, int x, int y){
+        int x0 = x > 0 ? x - 1 : 0;
+        int y0 = y > 0 ? y - 1 : 0;
+        int x1 = Math.min(x + 1, width - 1);
+        int y1 = Math.min(y + 1, height - 1);
+        int top = y0 * width;
+        int middle = y * width;
+        int bottom = y1 * width;
+        int sum = WEIGHTS[yPlane[top + x0] & 0xff] + WEIGHTS[yPlane[top + x] & 0xff] +
+                WEIGHTS[yPlane[top + x1] & 0xff] +
+                WEIGHTS[yPlane[middle + x0] & 0xff] + WEIGHTS[yPlane[middle + x] & 0xff] +
+                WEIGHTS[yPlane[middle + x1] & 0xff] +
+                WEIGHTS[yPlane[bottom + x0] & 0xff] + WEIGHTS[yPlane[bottom + x] & 0xff] +
+                WEIGHTS[yPlane[bottom + x1] & 0xff];
+        return sum / 9;
+    }
+
+    public int getWidth(){
+        return mWidth;
+    }
+
+    public int getHeight(){
+        return mHeight;
+    }
+}
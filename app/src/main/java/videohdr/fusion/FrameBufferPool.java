@@ -0,0 +1,278 @@
+package videohdr.fusion;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import videohdr.metrics.Counter;
+
+/**
+ * Pool of direct frame buffers for the CPU side of the pipeline, keyed by format and size.
+ * Frames are allocated on the first request of a key and reused after their last
+ * {@link PooledFrame#release()}, so steady state processing does not allocate.
+ *
+ * All buffers of the pool together, in use or free, never exceed the byte budget given at
+ * construction. If a new buffer would exceed it, free buffers of other keys are dropped first,
+ * otherwise the request fails and {@link #acquire} returns null: the caller drops the frame,
+ * just like a stage that can't keep up. Peak memory is the budget.
+ *
+ * With leak detection on (debug builds) every acquisition records its call site, and frames held
+ * longer than LEAK_AGE_MS are reported with it by {@link #checkLeaks(List)}.
+ */
+public class FrameBufferPool {
+
+    //frames held longer than this are reported as leaked
+    private static final long LEAK_AGE_MS = 2000;
+
+    /**
+     * Memory layout of a frame, all planes are stored one after another without padding
+     */
+    public enum Format {
+        //Y, then U and V at half resolution
+        I420(new int[]{4, 1, 1}, new int[]{2, 1, 1}),
+        //Y, then interleaved UV at half resolution
+        NV12(new int[]{4, 2}, new int[]{2, 2}),
+        //one plane of 4 bytes per pixel
+        RGBA(new int[]{16}, new int[]{8});
+
+        //bytes of every plane per 4 pixels, row stride per 2 pixels of width
+        private final int[] mQuarterBytes;
+        private final int[] mHalfStrides;
+
+        Format(int[] quarterBytes, int[] halfStrides){
+            mQuarterBytes = quarterBytes;
+            mHalfStrides = halfStrides;
+        }
+
+        public int getPlaneCount(){
+            return mQuarterBytes.length;
+        }
+
+        public int frameBytes(int width, int height){
+            int bytes = 0;
+            for(int i = 0; i < mQuarterBytes.length; i++) bytes += planeBytes(i, width, height);
+            return bytes;
+        }
+
+        public int planeBytes(int plane, int width, int height){
+            return width * height / 4 * mQuarterBytes[plane];
+        }
+
+        public int planeOffset(int plane, int width, int height){
+            int offset = 0;
+            for(int i = 0; i < plane; i++) offset += planeBytes(i, width, height);
+            return offset;
+        }
+
+        public int rowStride(int plane, int width){
+            return width / 2 * mHalfStrides[plane];
+        }
+    }
+
+    /* free frames of one format and size */
+    private static class FreeList {
+        final Format format;
+        final int width;
+        final int height;
+        final ArrayDeque<PooledFrame> frames = new ArrayDeque<>();
+
+        FreeList(Format format, int width, int height){
+            this.format = format;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private final long mMaxBytes;
+    private final List<FreeList> mFreeLists = new ArrayList<>();
+    private long mAllocatedBytes = 0;
+    private long mPeakBytes = 0;
+    private int mFramesInUse = 0;
+
+    private volatile boolean mLeakDetection = false;
+    private final List<PooledFrame> mInUse = new ArrayList<>();
+
+    //metrics
+    private final Counter mHits = new Counter("hits");
+    private final Counter mMisses = new Counter("misses");
+    private final Counter mExhausted = new Counter("exhausted");
+    private final Counter mEvictions = new Counter("evictions");
+
+    /**
+     * @param maxBytes budget for all buffers of the pool
+     */
+    public FrameBufferPool(long maxBytes){
+        if(maxBytes <= 0) throw new IllegalArgumentException("budget has to be positive");
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Enable recording the call site of every acquisition, costs a stack trace per frame
+     */
+    public void setLeakDetection(boolean enabled){
+        mLeakDetection = enabled;
+    }
+
+    /**
+     * Allocate free frames up front, as far as the budget allows
+     * @return number of frames allocated
+     */
+    public synchronized int reserve(Format format, int width, int height, int count){
+        FreeList list = getFreeList(format, width, height);
+        long frameBytes = format.frameBytes(width, height);
+        int reserved = 0;
+        while(list.frames.size() < count && mAllocatedBytes + frameBytes <= mMaxBytes){
+            list.frames.push(allocate(format, width, height));
+            reserved++;
+        }
+        return reserved;
+    }
+
+    /**
+     * Take a frame out of the pool, allocating it if there is no free one of this format and size
+     * @return frame with one reference, or null if the budget is exhausted
+     */
+    public PooledFrame acquire(Format format, int width, int height){
+        if((width & 1) != 0 || (height & 1) != 0) {
+            throw new IllegalArgumentException("width and height have to be even");
+        }
+        PooledFrame frame;
+        synchronized (this) {
+            FreeList list = getFreeList(format, width, height);
+            frame = list.frames.poll();
+            if(frame != null) {
+                mHits.increment();
+            } else {
+                mMisses.increment();
+                if(!makeRoom(format.frameBytes(width, height), list)) {
+                    mExhausted.increment();
+                    return null;
+                }
+                frame = allocate(format, width, height);
+            }
+            mFramesInUse++;
+            frame.onAcquire();
+            if(mLeakDetection) {
+                frame.mAcquireSite = new Throwable("frame acquired here");
+                frame.mAcquireTime = System.currentTimeMillis();
+                mInUse.add(frame);
+            }
+        }
+        return frame;
+    }
+
+    /* called by the frame when its last reference is released */
+    synchronized void recycle(PooledFrame frame){
+        mFramesInUse--;
+        if(frame.mAcquireSite != null) {
+            mInUse.remove(frame);
+            frame.mAcquireSite = null;
+        }
+        FreeList list = getFreeList(frame.getFormat(), frame.getWidth(), frame.getHeight());
+        list.frames.push(frame);
+    }
+
+    /**
+     * Find every frame that is held longer than LEAK_AGE_MS, only with leak detection on
+     * @param leaks gets one throwable per leaked frame, with the frame and its age as message and
+     *              the call site that acquired it as cause, e.g. to be logged
+     * @return number of leaked frames
+     */
+    public synchronized int checkLeaks(List<Throwable> leaks){
+        long now = System.currentTimeMillis();
+        int count = 0;
+        for(PooledFrame frame : mInUse){
+            if(now - frame.mAcquireTime < LEAK_AGE_MS) continue;
+            count++;
+            leaks.add(new Throwable("leaked " + frame + ", held for " +
+                    (now - frame.mAcquireTime) + "ms", frame.mAcquireSite));
+        }
+        return count;
+    }
+
+    /**
+     * Drop all free frames, frames in use are not affected
+     */
+    public synchronized void trim(){
+        for(FreeList list : mFreeLists){
+            mAllocatedBytes -= (long) list.frames.size() * list.format.frameBytes(list.width, list.height);
+            list.frames.clear();
+        }
+    }
+
+    private FreeList getFreeList(Format format, int width, int height){
+        for(int i = 0; i < mFreeLists.size(); i++){
+            FreeList list = mFreeLists.get(i);
+            if(list.format == format && list.width == width && list.height == height) return list;
+        }
+        FreeList list = new FreeList(format, width, height);
+        mFreeLists.add(list);
+        return list;
+    }
+
+    private PooledFrame allocate(Format format, int width, int height){
+        PooledFrame frame = new PooledFrame(this, format, width, height);
+        mAllocatedBytes += format.frameBytes(width, height);
+        mPeakBytes = Math.max(mPeakBytes, mAllocatedBytes);
+        return frame;
+    }
+
+    /* drop free frames of other keys until a frame of frameBytes fits into the budget */
+    private boolean makeRoom(long frameBytes, FreeList keep){
+        for(int i = 0; i < mFreeLists.size() && mAllocatedBytes + frameBytes > mMaxBytes; i++){
+            FreeList list = mFreeLists.get(i);
+            if(list == keep) continue;
+            long listFrameBytes = list.format.frameBytes(list.width, list.height);
+            while(!list.frames.isEmpty() && mAllocatedBytes + frameBytes > mMaxBytes){
+                list.frames.pop();
+                mAllocatedBytes -= listFrameBytes;
+                mEvictions.increment();
+            }
+        }
+        return mAllocatedBytes + frameBytes <= mMaxBytes;
+    }
+
+    /* GETTER */
+
+    public long getMaxBytes(){
+        return mMaxBytes;
+    }
+
+    public synchronized long getAllocatedBytes(){
+        return mAllocatedBytes;
+    }
+
+    public synchronized long getPeakBytes(){
+        return mPeakBytes;
+    }
+
+    public synchronized int getFramesInUse(){
+        return mFramesInUse;
+    }
+
+    public Counter getHits(){
+        return mHits;
+    }
+
+    public Counter getMisses(){
+        return mMisses;
+    }
+
+    /**
+     * @return requests that failed because the budget was exhausted
+     */
+    public Counter getExhausted(){
+        return mExhausted;
+    }
+
+    public Counter getEvictions(){
+        return mEvictions;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "frame buffer pool: " + mFramesInUse + " frames in use, " + mAllocatedBytes / 1024 +
+                "kB allocated (peak " + mPeakBytes / 1024 + "kB of " + mMaxBytes / 1024 + "kB), " +
+                mHits + ", " + mMisses + ", " + mExhausted + ", " + mEvictions;
+    }
+}
@@ -0,0 +1,82 @@
+package videohdr.fusion;
+
+/**
+ * The fusion of {@link CpuFusion} as a {@link PixelStage}: every pixel of the tile is replaced by
+ * the weighted mean of itself and the pixel of the previous frame, still in YUV. The results are
+ * the same as those of CpuFusion.
+ */
+public class FusionStage implements PixelStage {
+
+    private final int mWidth;
+    private final int mHeight;
+    //previous frame at full resolution: Y, U, V and the stored smoothed weight, one byte each
+    private final int[] mPrevFrame;
+    private int mWeightMode = CpuFusion.WEIGHT_PIXEL;
+
+    public FusionStage(int width, int height){
+        mWidth = width;
+        mHeight = height;
+        mPrevFrame = new int[width * height];
+    }
+
+    /**
+     * @param weightMode one of the WEIGHT_ constants of {@link CpuFusion}
+     */
+    public void setWeightMode(int weightMode){
+        mWeightMode = weightMode;
+    }
+
+    @Override
+    public void onFrameStart(YuvFrame frame) {
+    }
+
+    @Override
+    public void process(TilePipeline.Tile tile) {
+        int[] weights = CpuFusion.WEIGHTS;
+        byte[] yPlane = tile.frame.y;
+        int i = 0;
+        for(int row = tile.top; row < tile.top + tile.height; row++){
+            int offset = row * mWidth;
+            for(int col = tile.left; col < tile.left + tile.width; col++){
+                int y = tile.y[i];
+                int u = tile.u[i];
+                int v = tile.v[i];
+                int prev = mPrevFrame[offset + col];
+                int prevY = prev >>> 24;
+                int prevU = (prev >>> 16) & 0xff;
+                int prevV = (prev >>> 8) & 0xff;
+
+                int stored = 255;
+                if(mWeightMode == CpuFusion.WEIGHT_PIXEL) {
+                    int curWeight = weights[y];
+                    int prevWeight = weights[prevY];
+                    int sum = curWeight + prevWeight;
+                    tile.y[i] = prevWeight * prevY / sum + curWeight * y / sum;
+                    tile.u[i] = prevWeight * prevU / sum + curWeight * u / sum;
+                    tile.v[i] = prevWeight * prevV / sum + curWeight * v / sum;
+                } else {
+                    int share;
+                    if(mWeightMode == CpuFusion.WEIGHT_SMOOTHED) {
+                        int curWeight = CpuFusion.smoothedWeight(yPlane, mWidth, mHeight, col, row);
+                        stored = curWeight / CpuFusion.STORED_WEIGHT_SCALE;
+                        share = curWeight * 1024 /
+                                (curWeight + (prev & 0xff) * CpuFusion.STORED_WEIGHT_SCALE);
+                    } else {
+                        share = 512;
+                    }
+                    tile.y[i] = ((1024 - share) * prevY + share * y) / 1024;
+                    tile.u[i] = ((1024 - share) * prevU + share * u) / 1024;
+                    tile.v[i] = ((1024 - share) * prevV + share * v) / 1024;
+                }
+                mPrevFrame[offset + col] = y << 24 | u << 16 | v << 8 | stored;
+                i++;
+            }
+        }
+    }
+
+    @Override
+    public long getBytesPerFrame(int width, int height) {
+        //the previous frame is read and written
+        return 8L * width * height;
+    }
+}
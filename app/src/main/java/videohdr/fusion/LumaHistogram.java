@@ -0,0 +1,25 @@
+package videohdr.fusion;
+
+/**
+ * Histogram of the Y plane, what the metering stage computes with ScriptIntrinsicHistogram
+ */
+public final class LumaHistogram {
+
+    public static final int BINS = 256;
+
+    private LumaHistogram(){
+    }
+
+    /**
+     * @param histogram BINS counters, overwritten
+     */
+    public static void compute(YuvFrame frame, int[] histogram){
+        for(int i = 0; i < BINS; i++){
+            histogram[i] = 0;
+        }
+        byte[] y = frame.y;
+        for(int i = 0; i < y.length; i++){
+            histogram[y[i] & 0xff]++;
+        }
+    }
+}
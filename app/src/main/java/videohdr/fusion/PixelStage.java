@@ -0,0 +1,23 @@
+package videohdr.fusion;
+
+/**
+ * A per pixel processing step of a {@link TilePipeline}. It is called once for every tile of a
+ * frame, in order, and works on the scratch planes of the tile in place. Stages may keep state
+ * across frames (e.g. the previous frame of the fusion) but must only touch the pixels of the
+ * tile they are given.
+ */
+public interface PixelStage {
+
+    /**
+     * Called once per frame before its first tile
+     */
+    void onFrameStart(YuvFrame frame);
+
+    void process(TilePipeline.Tile tile);
+
+    /**
+     * @return bytes the stage reads and writes outside of the tile per frame, its own state and
+     * its output
+     */
+    long getBytesPerFrame(int width, int height);
+}
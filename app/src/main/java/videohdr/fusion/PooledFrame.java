@@ -0,0 +1,130 @@
+package videohdr.fusion;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A frame buffer of a {@link FrameBufferPool}: one direct buffer holding all planes of the frame,
+ * with a view per plane. The frame is reference counted, whoever passes it on to another stage
+ * calls {@link #retain()} for it and every holder calls {@link #release()} once. The buffer goes
+ * back to the pool when the last reference is released and must not be used after that.
+ *
+ * Plane views are created once and shared by all holders, use absolute get/put on them.
+ */
+public final class PooledFrame {
+
+    private final FrameBufferPool mPool;
+    private final FrameBufferPool.Format mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final ByteBuffer mBuffer;
+    private final ByteBuffer[] mPlanes;
+    private final AtomicInteger mReferences = new AtomicInteger();
+
+    //sensor timestamp of the frame in ns, set by the producer
+    public long timestamp;
+
+    /* debug information, set by the pool with leak detection on */
+    Throwable mAcquireSite;
+    long mAcquireTime;
+
+    PooledFrame(FrameBufferPool pool, FrameBufferPool.Format format, int width, int height){
+        mPool = pool;
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mBuffer = ByteBuffer.allocateDirect(format.frameBytes(width, height));
+        mPlanes = new ByteBuffer[format.getPlaneCount()];
+        for(int i = 0; i < mPlanes.length; i++){
+            ByteBuffer view = mBuffer.duplicate();
+            int offset = format.planeOffset(i, width, height);
+            view.position(offset);
+            view.limit(offset + format.planeBytes(i, width, height));
+            mPlanes[i] = view.slice();
+        }
+    }
+
+    /* called by the pool when the frame is handed out */
+    void onAcquire(){
+        mReferences.set(1);
+        timestamp = 0;
+        mBuffer.clear();
+        for(ByteBuffer plane : mPlanes){
+            plane.clear();
+        }
+    }
+
+    /**
+     * Add a reference, for passing the frame on to another holder
+     * @return this frame
+     */
+    public PooledFrame retain(){
+        int references;
+        do {
+            references = mReferences.get();
+            if(references <= 0) throw new IllegalStateException("frame was already returned to the pool");
+        } while(!mReferences.compareAndSet(references, references + 1));
+        return this;
+    }
+
+    /**
+     * Drop a reference, the last one returns the frame to the pool
+     */
+    public void release(){
+        int references = mReferences.decrementAndGet();
+        if(references == 0) {
+            mPool.recycle(this);
+        } else if(references < 0) {
+            mReferences.incrementAndGet();
+            throw new IllegalStateException("frame released more often than it was acquired");
+        }
+    }
+
+    /* GETTER */
+
+    public FrameBufferPool.Format getFormat(){
+        return mFormat;
+    }
+
+    public int getWidth(){
+        return mWidth;
+    }
+
+    public int getHeight(){
+        return mHeight;
+    }
+
+    /**
+     * @return all planes in one buffer, in the layout of the format
+     */
+    public ByteBuffer getBuffer(){
+        return mBuffer;
+    }
+
+    /**
+     * @param plane 0 for Y (or RGBA), 1 and 2 for U and V (I420) or 1 for UV (NV12)
+     */
+    public ByteBuffer getPlane(int plane){
+        return mPlanes[plane];
+    }
+
+    public int getPlaneCount(){
+        return mPlanes.length;
+    }
+
+    /**
+     * @return bytes between the starts of two rows of the plane
+     */
+    public int getRowStride(int plane){
+        return mFormat.rowStride(plane, mWidth);
+    }
+
+    public int getReferenceCount(){
+        return mReferences.get();
+    }
+
+    @Override
+    public String toString(){
+        return mFormat + " " + mWidth + "x" + mHeight + " frame, " + mReferences.get() + " references";
+    }
+}
@@ -0,0 +1,45 @@
+package videohdr.fusion;
+
+/**
+ * Last stage of a {@link TilePipeline} for the preview: converts the tile to RGB with the tables
+ * of a {@link TableYuvConverter} and writes it to the ARGB output of the frame.
+ */
+public class RgbOutputStage implements PixelStage {
+
+    private final TableYuvConverter mConverter;
+
+    public RgbOutputStage(TableYuvConverter converter){
+        mConverter = converter;
+    }
+
+    /**
+     * Stage for camera frames, full range BT.601
+     */
+    public RgbOutputStage(){
+        this(new TableYuvConverter(TableYuvConverter.ColorSpace.BT601_FULL));
+    }
+
+    @Override
+    public void onFrameStart(YuvFrame frame) {
+    }
+
+    @Override
+    public void process(TilePipeline.Tile tile) {
+        TableYuvConverter converter = mConverter;
+        int[] out = tile.out;
+        int frameWidth = tile.frame.width;
+        int i = 0;
+        for(int row = tile.top; row < tile.top + tile.height; row++){
+            int offset = row * frameWidth + tile.left;
+            for(int col = 0; col < tile.width; col++){
+                out[offset + col] = converter.toArgb(tile.y[i], tile.u[i], tile.v[i]);
+                i++;
+            }
+        }
+    }
+
+    @Override
+    public long getBytesPerFrame(int width, int height) {
+        return 4L * width * height;
+    }
+}
@@ -0,0 +1,178 @@
+package videohdr.fusion;
+
+/**
+ * YUV to RGB conversion through precomputed tables: the contribution of every Y, U and V value
+ * to each RGB channel is looked up, so a pixel costs five lookups, additions and a clamp lookup
+ * instead of the multiplications and divisions of {@link YuvConverter#toArgb}.
+ *
+ * The tables are built for a color space, i.e. matrix and range. BT601_FULL is the JFIF
+ * transform camera2 specifies for YUV_420_888, its tables hold exactly the fixed point terms of
+ * YuvConverter and "preview_fuse.rs", so the results are bit identical. The other color spaces
+ * are rounded per term and are within 1 of the exact transform.
+ *
+ * The tables can be shared by several threads, they are not modified after construction.
+ */
+public class TableYuvConverter {
+
+    public enum ColorSpace {
+        //JFIF, Y and UV use the full 0 - 255
+        BT601_FULL(0.299, 0.114, false),
+        //Y 16 - 235, UV 16 - 240, what most encoders expect
+        BT601_LIMITED(0.299, 0.114, true),
+        BT709_FULL(0.2126, 0.0722, false),
+        BT709_LIMITED(0.2126, 0.0722, true);
+
+        //luma coefficients of red and blue
+        private final double mKr;
+        private final double mKb;
+        private final boolean mLimitedRange;
+
+        ColorSpace(double kr, double kb, boolean limitedRange){
+            mKr = kr;
+            mKb = kb;
+            mLimitedRange = limitedRange;
+        }
+
+        public boolean isLimitedRange(){
+            return mLimitedRange;
+        }
+
+        /**
+         * @return exact transform of one pixel, for checks: R, G and B, not clamped
+         */
+        public double[] toRgb(int y, int u, int v){
+            double luma = mLimitedRange ? (y - 16) * 255.0 / 219 : y;
+            double chromaScale = mLimitedRange ? 255.0 / 224 : 1;
+            double cb = (u - 128) * chromaScale;
+            double cr = (v - 128) * chromaScale;
+            double kg = 1 - mKr - mKb;
+            return new double[]{
+                    luma + 2 * (1 - mKr) * cr,
+                    luma - 2 * mKb * (1 - mKb) / kg * cb - 2 * mKr * (1 - mKr) / kg * cr,
+                    luma + 2 * (1 - mKb) * cb};
+        }
+    }
+
+    /* the clamp table covers sums from -CLAMP_OFFSET to CLAMP_SIZE - CLAMP_OFFSET - 1, the
+    * chroma tables include the offset */
+    private static final int CLAMP_OFFSET = 512;
+    private static final int CLAMP_SIZE = 1536;
+
+    private final ColorSpace mColorSpace;
+    private final int[] mLuma = new int[256];
+    private final int[] mRedV = new int[256];
+    private final int[] mGreenU = new int[256];
+    private final int[] mGreenV = new int[256];
+    private final int[] mBlueU = new int[256];
+    private final int[] mClamp = new int[CLAMP_SIZE];
+
+    public TableYuvConverter(ColorSpace colorSpace){
+        mColorSpace = colorSpace;
+        for(int i = 0; i < 256; i++){
+            if(colorSpace == ColorSpace.BT601_FULL) {
+                //the fixed point terms of YuvConverter.toArgb
+                mLuma[i] = i;
+                mRedV[i] = i * 1436 / 1024 - 179;
+                mGreenU[i] = -(i * 46549 / 131072) + 44;
+                mGreenV[i] = -(i * 93604 / 131072) + 91;
+                mBlueU[i] = i * 1814 / 1024 - 227;
+            } else {
+                //contributions of U and V alone, the luma term is 0 for Y 16 (limited) or 0
+                double[] chromaU = colorSpace.toRgb(colorSpace.mLimitedRange ? 16 : 0, i, 128);
+                double[] chromaV = colorSpace.toRgb(colorSpace.mLimitedRange ? 16 : 0, 128, i);
+                mLuma[i] = (int) Math.round(colorSpace.toRgb(i, 128, 128)[0]);
+                mRedV[i] = (int) Math.round(chromaV[0]);
+                mGreenU[i] = (int) Math.round(chromaU[1]);
+                mGreenV[i] = (int) Math.round(chromaV[1]);
+                mBlueU[i] = (int) Math.round(chromaU[2]);
+            }
+            mRedV[i] += CLAMP_OFFSET;
+            mGreenV[i] += CLAMP_OFFSET;
+            mBlueU[i] += CLAMP_OFFSET;
+        }
+        for(int i = 0; i < CLAMP_SIZE; i++){
+            mClamp[i] = YuvConverter.clamp(i - CLAMP_OFFSET);
+        }
+    }
+
+    /**
+     * @return opaque ARGB pixel
+     */
+    public int toArgb(int y, int u, int v){
+        int luma = mLuma[y];
+        return 0xff000000 | mClamp[luma + mRedV[v]] << 16 |
+                mClamp[luma + mGreenU[u] + mGreenV[v]] << 8 | mClamp[luma + mBlueU[u]];
+    }
+
+    /**
+     * Convert a whole frame, block by block: the chroma terms of a 2x2 block are looked up once
+     * and applied to its four luma values
+     * @param out ARGB pixels, at least width * height
+     */
+    public void convert(YuvFrame frame, int[] out){
+        int width = frame.width;
+        int chromaWidth = width / 2;
+        for(int chromaRow = 0; chromaRow < frame.height / 2; chromaRow++){
+            convertRows(frame.y, 2 * chromaRow * width, frame.u, frame.v, chromaRow * chromaWidth,
+                    width, out, 2 * chromaRow * width);
+        }
+    }
+
+    /**
+     * Convert the two rows of luma that share a row of chroma
+     * @param yOffset start of the first row in {@code y}, the second row follows at
+     *                {@code width}
+     * @param chromaOffset start of the chroma row in {@code u} and {@code v}
+     * @param width even number of pixels per row
+     * @param outOffset start of the first output row, the second row follows at {@code width}
+     */
+    public void convertRows(byte[] y, int yOffset, byte[] u, byte[] v, int chromaOffset, int width,
+                            int[] out, int outOffset){
+        int[] luma = mLuma;
+        int[] clamp = mClamp;
+        for(int col = 0; col < width; col += 2){
+            int cu = u[chromaOffset] & 0xff;
+            int cv = v[chromaOffset] & 0xff;
+            chromaOffset++;
+            int red = mRedV[cv];
+            int green = mGreenU[cu] + mGreenV[cv];
+            int blue = mBlueU[cu];
+
+            int top = yOffset + col;
+            int bottom = top + width;
+            int l = luma[y[top] & 0xff];
+            out[outOffset + col] = 0xff000000 | clamp[l + red] << 16 | clamp[l + green] << 8 |
+                    clamp[l + blue];
+            l = luma[y[top + 1] & 0xff];
+            out[outOffset + col + 1] = 0xff000000 | clamp[l + red] << 16 |
+                    clamp[l + green] << 8 | clamp[l + blue];
+            l = luma[y[bottom] & 0xff];
+            out[outOffset + width + col] = 0xff000000 | clamp[l + red] << 16 |
+                    clamp[l + green] << 8 | clamp[l + blue];
+            l = luma[y[bottom + 1] & 0xff];
+            out[outOffset + width + col + 1] = 0xff000000 | clamp[l + red] << 16 |
+                    clamp[l + green] << 8 | clamp[l + blue];
+        }
+    }
+
+    /* GETTER */
+
+    public ColorSpace getColorSpace(){
+        return mColorSpace;
+    }
+
+    /**
+     * Tables without the clamp offset, for the fusion script: luma, red of V, green of U,
+     * green of V and blue of U
+     */
+    public int[][] getScriptTables(){
+        int[][] tables = {mLuma.clone(), mRedV.clone(), mGreenU.clone(), mGreenV.clone(),
+                mBlueU.clone()};
+        for(int i = 0; i < 256; i++){
+            tables[1][i] -= CLAMP_OFFSET;
+            tables[3][i] -= CLAMP_OFFSET;
+            tables[4][i] -= CLAMP_OFFSET;
+        }
+        return tables;
+    }
+}
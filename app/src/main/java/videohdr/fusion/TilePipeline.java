@@ -0,0 +1,164 @@
+package videohdr.fusion;
+
+/**
+ * Runs a chain of {@link PixelStage}s over a frame in a single traversal: the frame is cut into
+ * tiles, every tile is loaded once into scratch planes, all stages run on it while it is in the
+ * cache and the last stage writes the result. Intermediate results never go to memory at frame
+ * size, so adding a stage costs its arithmetic only, not another pass over the frame.
+ *
+ * The default tile of TILE_WIDTH x TILE_HEIGHT keeps the three scratch planes within 12kB, half
+ * of the smallest L1 data cache of the target phones, leaving room for the rows the stages read
+ * from their own state. With {@link #separatePasses} the tile is the whole frame, which runs the
+ * same stages as one full frame pass each, the reference for benchmarks.
+ *
+ * Not thread safe, one instance per processing thread.
+ */
+public class TilePipeline {
+
+    public static final int TILE_WIDTH = 64;
+    public static final int TILE_HEIGHT = 16;
+
+    /**
+     * Pixels of one tile, Y, U and V at full resolution, row after row with a stride of the
+     * tile width. Stages replace the values in place.
+     */
+    public static final class Tile {
+        //position in the frame and size, tiles at the right and bottom edge may be smaller
+        public int left;
+        public int top;
+        public int width;
+        public int height;
+        public final int[] y;
+        public final int[] u;
+        public final int[] v;
+        //frame the tile was loaded from
+        public YuvFrame frame;
+        //ARGB output of the frame, width of the frame per row
+        public int[] out;
+
+        Tile(int capacity){
+            y = new int[capacity];
+            u = new int[capacity];
+            v = new int[capacity];
+        }
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mTileWidth;
+    private final int mTileHeight;
+    private final PixelStage[] mStages;
+    private final Tile mTile;
+
+    /**
+     * @param tileWidth even width of the tiles
+     * @param tileHeight even height of the tiles
+     */
+    public TilePipeline(int width, int height, int tileWidth, int tileHeight, PixelStage... stages){
+        if((tileWidth & 1) != 0 || (tileHeight & 1) != 0) {
+            throw new IllegalArgumentException("tile width and height have to be even");
+        }
+        if(stages.length == 0) throw new IllegalArgumentException("no stages");
+        mWidth = width;
+        mHeight = height;
+        mTileWidth = Math.min(tileWidth, width);
+        mTileHeight = Math.min(tileHeight, height);
+        mStages = stages.clone();
+        mTile = new Tile(mTileWidth * mTileHeight);
+    }
+
+    /**
+     * Pipeline with cache sized tiles
+     */
+    public TilePipeline(int width, int height, PixelStage... stages){
+        this(width, height, TILE_WIDTH, TILE_HEIGHT, stages);
+    }
+
+    /**
+     * The stages as separate passes over the whole frame, with frame sized intermediates
+     */
+    public static TilePipeline separatePasses(int width, int height, PixelStage... stages){
+        return new TilePipeline(width, height, width, height, stages);
+    }
+
+    /**
+     * Run all stages over {@code frame}
+     * @param out ARGB pixels for the output stage, at least width * height, may be null if the
+     *            last stage writes elsewhere
+     */
+    public void process(YuvFrame frame, int[] out){
+        for(PixelStage stage : mStages){
+            stage.onFrameStart(frame);
+        }
+        Tile tile = mTile;
+        tile.frame = frame;
+        tile.out = out;
+        for(int top = 0; top < mHeight; top += mTileHeight){
+            for(int left = 0; left < mWidth; left += mTileWidth){
+                tile.left = left;
+                tile.top = top;
+                tile.width = Math.min(mTileWidth, mWidth - left);
+                tile.height = Math.min(mTileHeight, mHeight - top);
+                load(frame, tile);
+                for(PixelStage stage : mStages){
+                    stage.process(tile);
+                }
+            }
+        }
+        tile.frame = null;
+        tile.out = null;
+    }
+
+    /* copy the tile out of the frame, upsampling the chroma */
+    private void load(YuvFrame frame, Tile tile){
+        int width = frame.width;
+        int chromaWidth = width / 2;
+        int i = 0;
+        for(int row = tile.top; row < tile.top + tile.height; row++){
+            int offset = row * width;
+            int chromaOffset = (row / 2) * chromaWidth;
+            for(int col = tile.left; col < tile.left + tile.width; col++){
+                int c = chromaOffset + col / 2;
+                tile.y[i] = frame.y[offset + col] & 0xff;
+                tile.u[i] = frame.u[c] & 0xff;
+                tile.v[i] = frame.v[c] & 0xff;
+                i++;
+            }
+        }
+    }
+
+    /**
+     * @return bytes moved to and from memory per frame: the input, the state and output of the
+     * stages and, with frame sized tiles, the scratch planes every stage reads and writes
+     */
+    public long getBytesPerFrame(){
+        long pixels = (long) mWidth * mHeight;
+        long bytes = YuvFrame.frameBytes(mWidth, mHeight);
+        for(PixelStage stage : mStages){
+            bytes += stage.getBytesPerFrame(mWidth, mHeight);
+        }
+        if(mTileWidth == mWidth && mTileHeight == mHeight) {
+            //three int planes written by the load and read and written by every stage
+            bytes += 12 * pixels + mStages.length * 24 * pixels;
+        }
+        return bytes;
+    }
+
+    /* GETTER */
+
+    public int getWidth(){
+        return mWidth;
+    }
+
+    public int getHeight(){
+        return mHeight;
+    }
+
+    public int getTileWidth(){
+        return mTileWidth;
+    }
+
+    public int getTileHeight(){
+        return mTileHeight;
+    }
+}
@@ -0,0 +1,156 @@
+package videohdr.fusion;
+
+import videohdr.metrics.Counter;
+import videohdr.metrics.LatencyHistogram;
+
+/**
+ * Global tone curve of a scene, derived from the luma histogram of the fused frame by clip
+ * limited histogram equalization: bins are clipped at CLIP_LIMIT times the mean bin, so large
+ * flat areas don't stretch the curve, and the equalized curve is mixed with the identity by
+ * STRENGTH. Dark and bright ranges that hold few pixels get compressed, the ranges with the
+ * content of the scene get more of the 256 output values.
+ *
+ * The curve is kept until the histogram changes by more than the threshold, measured as the
+ * largest difference of the cumulative histograms. The equalized curve follows the cumulative
+ * histogram, so this bounds how far the curve would move: 0.02 is 255 * 0.02 * STRENGTH, about
+ * 3 output levels. Luma that moved by up to SHIFT_TOLERANCE levels is not counted, the fusion
+ * rounds the two frames of a pair differently and large flat areas would flip between
+ * neighbouring bins every frame. A steady scene reuses its curve, the rebuild cost is paid on
+ * scene changes only. Rebuild time and cache hits are recorded.
+ *
+ * Not thread safe, one instance per processing thread.
+ */
+public class ToneCurveCache {
+
+    public static final int CURVE_SIZE = LumaHistogram.BINS;
+    //largest difference of the cumulative histograms to the one of the cached curve
+    public static final float DEFAULT_THRESHOLD = 0.02f;
+
+    //luma levels a bin may move without counting as a change
+    private static final int SHIFT_TOLERANCE = 2;
+    private static final float CLIP_LIMIT = 3f;
+    private static final float STRENGTH = 0.6f;
+
+    private final int[] mCurve = new int[CURVE_SIZE];
+    //histogram the cached curve was built from
+    private final int[] mCurveHistogram = new int[CURVE_SIZE];
+    private long mCurveTotal = 0;
+    private float mThreshold = DEFAULT_THRESHOLD;
+    private final float[] mClipped = new float[CURVE_SIZE];
+    private final double[] mCumulative = new double[CURVE_SIZE];
+    private final double[] mCurveCumulative = new double[CURVE_SIZE];
+
+    //metrics
+    private final Counter mHits = new Counter("curve cache hits");
+    private final Counter mRebuilds = new Counter("curve rebuilds");
+    private final LatencyHistogram mRebuildTime = new LatencyHistogram("curve rebuild");
+
+    public ToneCurveCache(){
+        for(int i = 0; i < CURVE_SIZE; i++) mCurve[i] = i;
+    }
+
+    /**
+     * @param threshold difference of the cumulative histograms (0 - 1) for a new curve
+     */
+    public void setThreshold(float threshold){
+        mThreshold = threshold;
+    }
+
+    /**
+     * Rebuild the curve if {@code histogram} differs too much from the one of the cached curve
+     * @param histogram CURVE_SIZE bins of the luma of the frame
+     * @return true if the curve was rebuilt
+     */
+    public boolean update(int[] histogram){
+        long total = 0;
+        for(int count : histogram) total += count;
+        if(total == 0) return false;
+        if(mCurveTotal > 0 && distance(histogram, total) <= mThreshold) {
+            mHits.increment();
+            return false;
+        }
+
+        long start = System.nanoTime();
+        build(histogram, total);
+        System.arraycopy(histogram, 0, mCurveHistogram, 0, CURVE_SIZE);
+        mCurveTotal = total;
+        mRebuildTime.recordSince(start);
+        mRebuilds.increment();
+        return true;
+    }
+
+    /* largest difference of the normalized cumulative histograms, where either may be shifted
+    * by up to SHIFT_TOLERANCE levels */
+    private float distance(int[] histogram, long total){
+        long cumulative = 0;
+        long curveCumulative = 0;
+        for(int i = 0; i < CURVE_SIZE; i++){
+            cumulative += histogram[i];
+            curveCumulative += mCurveHistogram[i];
+            mCumulative[i] = (double) cumulative / total;
+            mCurveCumulative[i] = (double) curveCumulative / mCurveTotal;
+        }
+        double distance = 0;
+        for(int i = 0; i < CURVE_SIZE; i++){
+            int shifted = Math.min(i + SHIFT_TOLERANCE, CURVE_SIZE - 1);
+            distance = Math.max(distance, mCumulative[i] - mCurveCumulative[shifted]);
+            distance = Math.max(distance, mCurveCumulative[i] - mCumulative[shifted]);
+        }
+        return (float) distance;
+    }
+
+    private void build(int[] histogram, long total){
+        //clip the bins and spread the excess over all bins
+        float limit = CLIP_LIMIT * total / CURVE_SIZE;
+        float excess = 0;
+        for(int i = 0; i < CURVE_SIZE; i++){
+            float count = Math.min(histogram[i], limit);
+            excess += histogram[i] - count;
+            mClipped[i] = count;
+        }
+        float share = excess / CURVE_SIZE;
+
+        float cumulative = 0;
+        for(int i = 0; i < CURVE_SIZE; i++){
+            cumulative += mClipped[i] + share;
+            float equalized = 255f * cumulative / total;
+            mCurve[i] = Math.min(255, Math.round(STRENGTH * equalized + (1 - STRENGTH) * i));
+        }
+    }
+
+    /* GETTER */
+
+    /**
+     * @return the current curve, CURVE_SIZE output values, must not be modified
+     */
+    public int[] getCurve(){
+        return mCurve;
+    }
+
+    public Counter getHits(){
+        return mHits;
+    }
+
+    public Counter getRebuilds(){
+        return mRebuilds;
+    }
+
+    public LatencyHistogram getRebuildTime(){
+        return mRebuildTime;
+    }
+
+    /**
+     * @return share of the updates that reused the cached curve (0 - 1)
+     */
+    public float getHitRate(){
+        long lookups = mHits.get() + mRebuilds.get();
+        return lookups > 0 ? (float) mHits.get() / lookups : 0;
+    }
+
+    @Override
+    public String toString(){
+        LatencyHistogram.Snapshot rebuild = mRebuildTime.snapshot();
+        return String.format("tone curve cache: %.1f%% hits, %d rebuilds of %.1fus mean, %.1fus max",
+                getHitRate() * 100, mRebuilds.get(), rebuild.getMean() / 1e3, rebuild.getMax() / 1e3);
+    }
+}
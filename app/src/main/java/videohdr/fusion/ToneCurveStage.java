@@ -0,0 +1,52 @@
+package videohdr.fusion;
+
+/**
+ * Maps the luma of every pixel through a 256 entry curve, chroma is left alone. The curve can be
+ * replaced between frames, it takes effect with the next frame.
+ */
+public class ToneCurveStage implements PixelStage {
+
+    public static final int CURVE_SIZE = 256;
+
+    private final int[] mCurve = new int[CURVE_SIZE];
+    private final int[] mPendingCurve = new int[CURVE_SIZE];
+    private boolean mCurveChanged = false;
+
+    public ToneCurveStage(){
+        for(int i = 0; i < CURVE_SIZE; i++) mCurve[i] = i;
+    }
+
+    /**
+     * @param curve output luma (0 - 255) for every input luma, copied
+     */
+    public synchronized void setCurve(int[] curve){
+        if(curve.length != CURVE_SIZE) throw new IllegalArgumentException("curve needs 256 entries");
+        System.arraycopy(curve, 0, mPendingCurve, 0, CURVE_SIZE);
+        mCurveChanged = true;
+    }
+
+    @Override
+    public void onFrameStart(YuvFrame frame) {
+        synchronized (this) {
+            if(!mCurveChanged) return;
+            System.arraycopy(mPendingCurve, 0, mCurve, 0, CURVE_SIZE);
+            mCurveChanged = false;
+        }
+    }
+
+    @Override
+    public void process(TilePipeline.Tile tile) {
+        int[] curve = mCurve;
+        int[] y = tile.y;
+        int length = tile.width * tile.height;
+        for(int i = 0; i < length; i++){
+            y[i] = curve[y[i]];
+        }
+    }
+
+    @Override
+    public long getBytesPerFrame(int width, int height) {
+        //the curve stays in the cache
+        return 0;
+    }
+}
@@ -0,0 +1,46 @@
+package videohdr.fusion;
+
+/**
+ * Global tone mapping after the fusion: a {@link ToneCurveStage} whose curve comes from a
+ * {@link ToneCurveCache}. The luma histogram of the fused frame is collected from every
+ * HISTOGRAM_ROW_STEP-th row while the tiles pass, the curve for the next frame is looked up
+ * from it, so the per pixel cost stays one table lookup. The curve follows the scene with a
+ * delay of one frame.
+ */
+public class ToneMappingStage extends ToneCurveStage {
+
+    //rows of the frame counted in the histogram
+    private static final int HISTOGRAM_ROW_STEP = 4;
+
+    private final ToneCurveCache mCache = new ToneCurveCache();
+    private final int[] mHistogram = new int[ToneCurveCache.CURVE_SIZE];
+    private boolean mHistogramValid = false;
+
+    @Override
+    public void onFrameStart(YuvFrame frame) {
+        if(mHistogramValid && mCache.update(mHistogram)) {
+            setCurve(mCache.getCurve());
+        }
+        for(int i = 0; i < mHistogram.length; i++) mHistogram[i] = 0;
+        mHistogramValid = true;
+        super.onFrameStart(frame);
+    }
+
+    @Override
+    public void process(TilePipeline.Tile tile) {
+        int[] histogram = mHistogram;
+        int[] y = tile.y;
+        int firstRow = (HISTOGRAM_ROW_STEP - tile.top % HISTOGRAM_ROW_STEP) % HISTOGRAM_ROW_STEP;
+        for(int row = firstRow; row < tile.height; row += HISTOGRAM_ROW_STEP){
+            int offset = row * tile.width;
+            for(int col = 0; col < tile.width; col++){
+                histogram[y[offset + col]]++;
+            }
+        }
+        super.process(tile);
+    }
+
+    public ToneCurveCache getCache(){
+        return mCache;
+    }
+}
@@ -0,0 +1,46 @@
+package videohdr.fusion;
+
+/**
+ * YUV to RGB conversion with the fixed point JFIF transform, the reference of the BT601_FULL
+ * tables of {@link TableYuvConverter} that "preview_fuse.rs" uses
+ */
+public final class YuvConverter {
+
+    private YuvConverter(){
+    }
+
+    /**
+     * R = Y + 1.402 * (V - 128)
+     * G = Y - 0.34414 * (U - 128) - 0.71414 * (V - 128)
+     * B = Y + 1.772 * (U - 128)
+     * @return opaque ARGB pixel
+     */
+    public static int toArgb(int y, int u, int v){
+        int r = y + v * 1436 / 1024 - 179;
+        int g = y - u * 46549 / 131072 + 44 - v * 93604 / 131072 + 91;
+        int b = y + u * 1814 / 1024 - 227;
+        return 0xff000000 | clamp(r) << 16 | clamp(g) << 8 | clamp(b);
+    }
+
+    /**
+     * Convert a whole frame
+     * @param out ARGB pixels, at least width * height
+     */
+    public static void convert(YuvFrame frame, int[] out){
+        int width = frame.width;
+        int chromaWidth = width / 2;
+        for(int row = 0; row < frame.height; row++){
+            int offset = row * width;
+            int chromaOffset = (row / 2) * chromaWidth;
+            for(int col = 0; col < width; col++){
+                int c = chromaOffset + col / 2;
+                out[offset + col] = toArgb(frame.y[offset + col] & 0xff, frame.u[c] & 0xff,
+                        frame.v[c] & 0xff);
+            }
+        }
+    }
+
+    static int clamp(int value){
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+}
@@ -0,0 +1,66 @@
+package videohdr.fusion;
+
+/**
+ * A frame in I420 layout: full resolution Y plane followed by U and V at half resolution in both
+ * directions, the CPU counterpart of a YUV_420_888 allocation. Width and height have to be even.
+ */
+public class YuvFrame {
+
+    public final int width;
+    public final int height;
+    public final byte[] y;
+    public final byte[] u;
+    public final byte[] v;
+
+    //sensor timestamp of the frame in ns, set by the frame source
+    public long timestamp;
+
+    public YuvFrame(int width, int height){
+        this.width = width;
+        this.height = height;
+        y = new byte[width * height];
+        u = new byte[width * height / 4];
+        v = new byte[width * height / 4];
+    }
+
+    /**
+     * Fill the frame with a synthetic scene: a diagonal brightness ramp from deep shadows to
+     * highlights with a bright window, scaled by {@code exposure} and clipped like a sensor.
+     * The scene drifts with {@code frameIndex} so consecutive frames differ.
+     * @param exposure brightness factor, e.g. 0.25 for the short and 2 for the long exposure
+     */
+    public void fillSynthetic(long frameIndex, float exposure){
+        int shift = (int) (frameIndex % width);
+        for(int row = 0; row < height; row++){
+            int offset = row * width;
+            boolean windowRow = row > height / 4 && row < height / 2;
+            for(int col = 0; col < width; col++){
+                int scene = ((col + shift) % width) * 160 / width + row * 60 / height;
+                if(windowRow && col > width / 2 && col < width * 3 / 4) scene = 600;
+                y[offset + col] = (byte) Math.min(255, (int) (scene * exposure));
+            }
+        }
+        int chromaWidth = width / 2;
+        for(int row = 0; row < height / 2; row++){
+            for(int col = 0; col < chromaWidth; col++){
+                int i = row * chromaWidth + col;
+                u[i] = (byte) (128 + (col * 32 / chromaWidth) - 16);
+                v[i] = (byte) (128 + (row * 32 / (height / 2)) - 16);
+            }
+        }
+    }
+
+    public void copyFrom(YuvFrame other){
+        System.arraycopy(other.y, 0, y, 0, y.length);
+        System.arraycopy(other.u, 0, u, 0, u.length);
+        System.arraycopy(other.v, 0, v, 0, v.length);
+        timestamp = other.timestamp;
+    }
+
+    /**
+     * @return bytes of a frame of this size, the size of a frame in a raw I420 file
+     */
+    public static int frameBytes(int width, int height){
+        return width * height * 3 / 2;
+    }
+}
@@ -0,0 +1,105 @@
+package videohdr.fusion;
+
+import java.nio.ByteBuffer;
+
+import videohdr.metrics.Counter;
+
+/**
+ * Output stage of a {@link TilePipeline} for the recording branch: writes the fused tile as
+ * YUV 4:2:0, planar (I420) or semi-planar (NV12), into a frame of a {@link FrameBufferPool}.
+ * That is what the encoder takes, the fused frame never goes through RGB.
+ *
+ * A frame is acquired at the start of every processed frame and handed over with
+ * {@link #takeFrame()}. If the pool is exhausted the frame is not written and counted as dropped.
+ */
+public class YuvOutputStage implements PixelStage {
+
+    private final FrameBufferPool mPool;
+    private final FrameBufferPool.Format mFormat;
+    private PooledFrame mFrame;
+    private final Counter mDroppedFrames = new Counter("dropped output frames");
+
+    /**
+     * @param format I420 or NV12
+     */
+    public YuvOutputStage(FrameBufferPool pool, FrameBufferPool.Format format){
+        if(format == FrameBufferPool.Format.RGBA) {
+            throw new IllegalArgumentException("YUV output needs a YUV format");
+        }
+        mPool = pool;
+        mFormat = format;
+    }
+
+    @Override
+    public void onFrameStart(YuvFrame frame) {
+        //a frame nobody took is overwritten
+        if(mFrame == null) {
+            mFrame = mPool.acquire(mFormat, frame.width, frame.height);
+            if(mFrame == null) {
+                mDroppedFrames.increment();
+                return;
+            }
+        }
+        mFrame.timestamp = frame.timestamp;
+    }
+
+    @Override
+    public void process(TilePipeline.Tile tile) {
+        PooledFrame frame = mFrame;
+        if(frame == null) return;
+        int frameWidth = frame.getWidth();
+        int tileWidth = tile.width;
+        ByteBuffer yPlane = frame.getPlane(0);
+        int i = 0;
+        for(int row = tile.top; row < tile.top + tile.height; row++){
+            int offset = row * frameWidth + tile.left;
+            for(int col = 0; col < tileWidth; col++){
+                yPlane.put(offset + col, (byte) tile.y[i++]);
+            }
+        }
+
+        //chroma is the mean of every 2x2 block, tiles start at even positions
+        int chromaStride = frame.getRowStride(1);
+        for(int row = 0; row < tile.height; row += 2){
+            int chromaRow = (tile.top + row) / 2;
+            for(int col = 0; col < tileWidth; col += 2){
+                int top = row * tileWidth + col;
+                int bottom = top + tileWidth;
+                int u = (tile.u[top] + tile.u[top + 1] + tile.u[bottom] + tile.u[bottom + 1] + 2) >> 2;
+                int v = (tile.v[top] + tile.v[top + 1] + tile.v[bottom] + tile.v[bottom + 1] + 2) >> 2;
+                int chromaCol = (tile.left + col) / 2;
+                if(mFormat == FrameBufferPool.Format.NV12) {
+                    int index = chromaRow * chromaStride + chromaCol * 2;
+                    frame.getPlane(1).put(index, (byte) u);
+                    frame.getPlane(1).put(index + 1, (byte) v);
+                } else {
+                    int index = chromaRow * chromaStride + chromaCol;
+                    frame.getPlane(1).put(index, (byte) u);
+                    frame.getPlane(2).put(index, (byte) v);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the last written frame, the caller owns its reference, or null if it was dropped
+     */
+    public PooledFrame takeFrame(){
+        PooledFrame frame = mFrame;
+        mFrame = null;
+        return frame;
+    }
+
+    @Override
+    public long getBytesPerFrame(int width, int height) {
+        return mFormat.frameBytes(width, height);
+    }
+
+    public FrameBufferPool.Format getFormat(){
+        return mFormat;
+    }
+
+    public Counter getDroppedFrames(){
+        return mDroppedFrames;
+    }
+}
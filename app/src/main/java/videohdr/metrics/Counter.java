@@ -0,0 +1,41 @@
+package videohdr.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic event count, safe to update from any thread without locking
+ */
+public class Counter {
+
+    private final String mName;
+    private final AtomicLong mValue = new AtomicLong();
+
+    public Counter(String name){
+        mName = name;
+    }
+
+    public String getName(){
+        return mName;
+    }
+
+    public void increment(){
+        mValue.incrementAndGet();
+    }
+
+    public void add(long delta){
+        if(delta != 0) mValue.addAndGet(delta);
+    }
+
+    public long get(){
+        return mValue.get();
+    }
+
+    public void reset(){
+        mValue.set(0);
+    }
+
+    @Override
+    public String toString(){
+        return mName + " " + mValue.get();
+    }
+}
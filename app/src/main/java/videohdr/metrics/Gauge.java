@@ -0,0 +1,33 @@
+package videohdr.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Last value of a quantity that goes up and down, e.g. a queue depth or a tier
+ */
+public class Gauge {
+
+    private final String mName;
+    private final AtomicLong mValue = new AtomicLong();
+
+    public Gauge(String name){
+        mName = name;
+    }
+
+    public String getName(){
+        return mName;
+    }
+
+    public void set(long value){
+        mValue.set(value);
+    }
+
+    public long get(){
+        return mValue.get();
+    }
+
+    @Override
+    public String toString(){
+        return mName + " " + mValue.get();
+    }
+}
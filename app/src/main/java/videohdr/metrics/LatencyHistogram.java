@@ -0,0 +1,170 @@
+package videohdr.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of durations in ns with logarithmic buckets: every power of two is split into
+ * SUB_BUCKETS buckets, so a recorded value is off by at most 1/SUB_BUCKETS (12.5%). Values
+ * above MAX_VALUE_NS land in the last bucket, the exact maximum is tracked separately.
+ *
+ * Recording uses atomics only and doesn't allocate, it can be called from any number of threads
+ * in the hot path of a stage. A snapshot copies the buckets one after the other, so it may miss
+ * values recorded while it is taken.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    //about 275s, far beyond any frame time
+    private static final int MAX_EXPONENT = 38;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    public static final long MAX_VALUE_NS = (1L << (MAX_EXPONENT + 1)) - 1;
+
+    private final String mName;
+    private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public LatencyHistogram(String name){
+        mName = name;
+    }
+
+    public String getName(){
+        return mName;
+    }
+
+    /**
+     * @param valueNs duration in ns, negative values are ignored
+     */
+    public void record(long valueNs){
+        if(valueNs < 0) return;
+        mBuckets.incrementAndGet(bucketIndex(Math.min(valueNs, MAX_VALUE_NS)));
+        mCount.incrementAndGet();
+        mSum.addAndGet(valueNs);
+
+        long max = mMax.get();
+        while(valueNs > max && !mMax.compareAndSet(max, valueNs)) {
+            max = mMax.get();
+        }
+    }
+
+    /**
+     * Record the time since {@code startNs}, a value of {@link System#nanoTime()}
+     */
+    public void recordSince(long startNs){
+        record(System.nanoTime() - startNs);
+    }
+
+    static int bucketIndex(long value){
+        if(value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /* smallest value of a bucket */
+    static long bucketLowerBound(int index){
+        if(index < SUB_BUCKETS) return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /* largest value of a bucket */
+    static long bucketUpperBound(int index){
+        return index + 1 < BUCKETS ? bucketLowerBound(index + 1) - 1 : MAX_VALUE_NS;
+    }
+
+    public Snapshot snapshot(){
+        long[] buckets = new long[BUCKETS];
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++){
+            buckets[i] = mBuckets.get(i);
+            count += buckets[i];
+        }
+        return new Snapshot(mName, buckets, count, mSum.get(), mMax.get());
+    }
+
+    /**
+     * Start over, for measurements of a new session. Values recorded concurrently may be lost.
+     */
+    public void reset(){
+        for(int i = 0; i < BUCKETS; i++){
+            mBuckets.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    public long getCount(){
+        return mCount.get();
+    }
+
+    /**
+     * Values of the histogram at the time of {@link #snapshot()}
+     */
+    public static class Snapshot {
+        private final String mName;
+        private final long[] mBuckets;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(String name, long[] buckets, long count, long sum, long max){
+            mName = name;
+            mBuckets = buckets;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public String getName(){
+            return mName;
+        }
+
+        public long getCount(){
+            return mCount;
+        }
+
+        public long getMean(){
+            return mCount > 0 ? mSum / mCount : 0;
+        }
+
+        public long getMax(){
+            return mMax;
+        }
+
+        /**
+         * @param quantile 0 - 1
+         * @return upper bound of the bucket containing the quantile in ns, at most the maximum
+         */
+        public long getValueAtQuantile(double quantile){
+            if(mCount == 0) return 0;
+            long rank = (long) Math.ceil(Math.max(0, Math.min(1, quantile)) * mCount);
+            if(rank < 1) rank = 1;
+            long seen = 0;
+            for(int i = 0; i < mBuckets.length; i++){
+                seen += mBuckets[i];
+                if(seen >= rank) return Math.min(bucketUpperBound(i), mMax);
+            }
+            return mMax;
+        }
+
+        public long getP50(){
+            return getValueAtQuantile(0.5);
+        }
+
+        public long getP99(){
+            return getValueAtQuantile(0.99);
+        }
+
+        @Override
+        public String toString(){
+            return mName + ": n " + mCount + ", p50 " + getP50() / 1000 + "us, p99 " +
+                    getP99() / 1000 + "us, max " + mMax / 1000 + "us";
+        }
+    }
+}
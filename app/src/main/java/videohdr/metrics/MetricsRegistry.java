@@ -0,0 +1,59 @@
+package videohdr.metrics;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Collects the metrics of all pipeline stages so they can be read in one place. Stages
+ * are registered when the pipeline is set up, updating them afterwards doesn't touch the registry.
+ * Everything is lock free, the registry can stay enabled in release builds.
+ */
+public class MetricsRegistry {
+
+    private final List<StageMetrics> mStages = new CopyOnWriteArrayList<>();
+
+    /**
+     * Add a stage, a stage that was already registered is kept once
+     */
+    public void register(StageMetrics stage){
+        if(stage != null && !mStages.contains(stage)) mStages.add(stage);
+    }
+
+    public void unregister(StageMetrics stage){
+        mStages.remove(stage);
+    }
+
+    /**
+     * Remove all stages, before the stages of a new session are registered
+     */
+    public void clear(){
+        mStages.clear();
+    }
+
+    public List<StageMetrics.Snapshot> snapshot(){
+        List<StageMetrics.Snapshot> snapshots = new ArrayList<>(mStages.size());
+        for(StageMetrics stage : mStages){
+            snapshots.add(stage.snapshot());
+        }
+        return snapshots;
+    }
+
+    /**
+     * Start over, e.g. when a new session starts
+     */
+    public void reset(){
+        for(StageMetrics stage : mStages){
+            stage.reset();
+        }
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder builder = new StringBuilder("metrics:");
+        for(StageMetrics.Snapshot snapshot : snapshot()){
+            builder.append("\n  ").append(snapshot);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,157 @@
+package videohdr.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Metrics every processing stage of the pipeline reports: how long a frame waited for the stage,
+ * how long the stage worked on it, frames it processed and dropped, its frame rate and how often
+ * it changed its configuration (resolution, engine, exposure, bitrate, ...), plus gauges for its
+ * current state. The stage creates it and updates it on its own thread, see
+ * {@link MetricsRegistry} for reading it. If a stage keeps up with the camera, every run
+ * processes exactly one frame and the drop count stays at zero.
+ */
+public class StageMetrics {
+
+    private final String mStageName;
+    private final LatencyHistogram mQueueWait;
+    private final LatencyHistogram mProcessingTime;
+    private final Counter mProcessedFrames;
+    private final Counter mDroppedFrames;
+    private final Counter mReconfigurations;
+    private final List<Gauge> mGauges = new CopyOnWriteArrayList<>();
+    //System.nanoTime() of the first processing run, 0 before
+    private volatile long mStartTime = 0;
+
+    public StageMetrics(String stageName){
+        mStageName = stageName;
+        mQueueWait = new LatencyHistogram("queue wait");
+        mProcessingTime = new LatencyHistogram("processing");
+        mProcessedFrames = new Counter("processed");
+        mDroppedFrames = new Counter("dropped");
+        mReconfigurations = new Counter("reconfigurations");
+    }
+
+    public String getStageName(){
+        return mStageName;
+    }
+
+    /**
+     * Account for one processing run
+     * @param queueWaitNs time the oldest pending frame waited before the run started
+     * @param processingNs duration of the run
+     * @param droppedFrames frames skipped by the run
+     */
+    public void onFrameProcessed(long queueWaitNs, long processingNs, int droppedFrames){
+        if(mStartTime == 0) mStartTime = System.nanoTime() - processingNs;
+        mQueueWait.record(queueWaitNs);
+        mProcessingTime.record(processingNs);
+        mProcessedFrames.increment();
+        if(droppedFrames > 0) mDroppedFrames.add(droppedFrames);
+    }
+
+    public LatencyHistogram getQueueWait(){
+        return mQueueWait;
+    }
+
+    public LatencyHistogram getProcessingTime(){
+        return mProcessingTime;
+    }
+
+    public Counter getProcessedFrames(){
+        return mProcessedFrames;
+    }
+
+    public Counter getDroppedFrames(){
+        return mDroppedFrames;
+    }
+
+    public Counter getReconfigurations(){
+        return mReconfigurations;
+    }
+
+    /**
+     * @return processed frames per second since the first processing run
+     */
+    public float getFramesPerSecond(){
+        long start = mStartTime;
+        long elapsed = System.nanoTime() - start;
+        if(start == 0 || elapsed <= 0) return 0;
+        return mProcessedFrames.get() * 1e9f / elapsed;
+    }
+
+    /**
+     * @return a new gauge of this stage, to be created when the stage is set up
+     */
+    public Gauge createGauge(String name){
+        Gauge gauge = new Gauge(name);
+        mGauges.add(gauge);
+        return gauge;
+    }
+
+    public void reset(){
+        mQueueWait.reset();
+        mProcessingTime.reset();
+        mProcessedFrames.reset();
+        mDroppedFrames.reset();
+        mReconfigurations.reset();
+        mStartTime = 0;
+    }
+
+    public Snapshot snapshot(){
+        Gauge[] gauges = mGauges.toArray(new Gauge[0]);
+        String[] gaugeNames = new String[gauges.length];
+        long[] gaugeValues = new long[gauges.length];
+        for(int i = 0; i < gauges.length; i++){
+            gaugeNames[i] = gauges[i].getName();
+            gaugeValues[i] = gauges[i].get();
+        }
+        return new Snapshot(mStageName, mQueueWait.snapshot(), mProcessingTime.snapshot(),
+                mProcessedFrames.get(), mDroppedFrames.get(), getFramesPerSecond(),
+                mReconfigurations.get(), gaugeNames, gaugeValues);
+    }
+
+    /**
+     * Values of a stage at the time of {@link #snapshot()}
+     */
+    public static class Snapshot {
+        public final String stageName;
+        public final LatencyHistogram.Snapshot queueWait;
+        public final LatencyHistogram.Snapshot processingTime;
+        public final long processedFrames;
+        public final long droppedFrames;
+        public final float framesPerSecond;
+        public final long reconfigurations;
+        public final String[] gaugeNames;
+        public final long[] gaugeValues;
+
+        Snapshot(String stageName, LatencyHistogram.Snapshot queueWait,
+                 LatencyHistogram.Snapshot processingTime, long processedFrames, long droppedFrames,
+                 float framesPerSecond, long reconfigurations, String[] gaugeNames,
+                 long[] gaugeValues){
+            this.stageName = stageName;
+            this.queueWait = queueWait;
+            this.processingTime = processingTime;
+            this.processedFrames = processedFrames;
+            this.droppedFrames = droppedFrames;
+            this.framesPerSecond = framesPerSecond;
+            this.reconfigurations = reconfigurations;
+            this.gaugeNames = gaugeNames;
+            this.gaugeValues = gaugeValues;
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder builder = new StringBuilder(stageName).append(": ")
+                    .append(processedFrames).append(" processed, ")
+                    .append(droppedFrames).append(" dropped, ")
+                    .append(String.format("%.1f", framesPerSecond)).append(" fps, ")
+                    .append(reconfigurations).append(" reconfigurations; ")
+                    .append(queueWait).append("; ").append(processingTime);
+            for(int i = 0; i < gaugeNames.length; i++){
+                builder.append("; ").append(gaugeNames[i]).append(' ').append(gaugeValues[i]);
+            }
+            return builder.toString();
+        }
+    }
+}
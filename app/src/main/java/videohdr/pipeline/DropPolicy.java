@@ -0,0 +1,11 @@
+package videohdr.pipeline;
+
+/**
+ * Frames dropped by a {@link PipelineStage} when more frames arrived than the queue depth allows
+ */
+public enum DropPolicy {
+    //process the newest frames, e.g. the preview
+    DROP_OLDEST,
+    //process the frames in the order they arrived and drop what does not fit
+    DROP_NEWEST
+}
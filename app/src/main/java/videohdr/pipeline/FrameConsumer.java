@@ -0,0 +1,23 @@
+package videohdr.pipeline;
+
+/**
+ * Work of a {@link PipelineStage}, called on the worker thread of the stage. Every arrived frame
+ * results in exactly one call, in arrival order, so the consumer can take the frames off its
+ * input (e.g. Allocation.ioReceive()) one by one.
+ */
+public interface FrameConsumer {
+
+    /**
+     * The next frame of the input was dropped by the queue of the stage, it only has to be
+     * taken off the input
+     */
+    void discardFrame();
+
+    /**
+     * Process the next frame of the input
+     * @param queueWaitNs time the oldest frame of this run waited for the worker
+     * @param droppedFrames frames of this run dropped by the queue, reported with the first
+     *                      processed frame of the run and 0 for the others
+     */
+    void processFrame(long queueWaitNs, int droppedFrames);
+}
@@ -0,0 +1,171 @@
+package videohdr.pipeline;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import videohdr.metrics.StageMetrics;
+
+/**
+ * Owns the worker threads of the camera pipeline. There is a fixed worker per kind of work, they
+ * are started with the scheduler and live until {@link #shutdown()}:
+ * - CAMERA: camera device and capture session callbacks
+ * - RECORDER: starting and stopping recordings
+ * - FUSION, METERING: RenderScript stages
+ *
+ * Stages are registered as bounded queues on a worker with {@link #register}, they are
+ * unregistered when the camera closes and registered again with the next session, without
+ * creating new threads. Encoder and writer threads are owned by the recorder components.
+ */
+public class PipelineScheduler {
+
+    private static final String TAG = "PipelineScheduler";
+
+    //time unregistering waits for a running stage, shutdown waits for every worker
+    private static final long STOP_TIMEOUT_MS = 1000;
+
+    private final HandlerThread[] mThreads = new HandlerThread[Worker.values().length];
+    private final Handler[] mHandlers = new Handler[Worker.values().length];
+    private final Executor[] mExecutors = new Executor[Worker.values().length];
+    private final List<PipelineStage> mStages = new CopyOnWriteArrayList<>();
+    private volatile boolean mShutdown = false;
+
+    public PipelineScheduler(){
+        this(null);
+    }
+
+    /**
+     * @param stageExecutor runs the registered stages instead of their workers, e.g. directly on
+     *                      the thread that signals the frames in a test, null for the workers.
+     *                      The workers are started either way, for their handlers.
+     */
+    public PipelineScheduler(Executor stageExecutor){
+        for(Worker worker : Worker.values()){
+            HandlerThread thread = new HandlerThread(worker.getThreadName());
+            thread.start();
+            mThreads[worker.ordinal()] = thread;
+            final Handler handler = new Handler(thread.getLooper());
+            mHandlers[worker.ordinal()] = handler;
+            mExecutors[worker.ordinal()] = stageExecutor != null ? stageExecutor : new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            };
+        }
+    }
+
+    /**
+     * @return handler of the worker, for APIs that deliver their callbacks to a handler
+     */
+    public Handler getHandler(Worker worker){
+        return mHandlers[worker.ordinal()];
+    }
+
+    /**
+     * Register a stage on a worker
+     * @param queueDepth frames processed per run at most, the others are dropped
+     * @param consumer work of the stage, called on the worker
+     * @param metrics metrics of the stage that get the queue depth and utilization gauges,
+     *                may be null
+     */
+    public PipelineStage register(String name, Worker worker, int queueDepth, DropPolicy dropPolicy,
+                                  FrameConsumer consumer, StageMetrics metrics){
+        if(mShutdown) throw new IllegalStateException("scheduler is shut down");
+        PipelineStage stage = new PipelineStage(name, worker, mExecutors[worker.ordinal()],
+                queueDepth, dropPolicy, consumer, metrics);
+        mStages.add(stage);
+        return stage;
+    }
+
+    /**
+     * Remove a stage from its worker. When this returns the stage does not run any more, so its
+     * resources can be released. Called from the worker of the stage it returns at once.
+     */
+    public void unregister(PipelineStage stage){
+        if(!mStages.remove(stage)) return;
+        stage.close();
+        Log.d(TAG, "unregistered " + stage);
+        awaitIdle(stage.getWorker());
+    }
+
+    /**
+     * Unregister all stages and stop every worker after the work already posted to it.
+     * Waits up to STOP_TIMEOUT_MS for every worker to finish.
+     */
+    public void shutdown(){
+        if(mShutdown) return;
+        mShutdown = true;
+        for(PipelineStage stage : mStages){
+            unregister(stage);
+        }
+
+        for(HandlerThread thread : mThreads){
+            thread.quitSafely();
+        }
+        for(HandlerThread thread : mThreads){
+            if(thread == Thread.currentThread()) continue;
+            try {
+                thread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if(thread.isAlive()) Log.e(TAG, thread.getName() + " did not stop in time");
+        }
+        Log.d(TAG, "all workers stopped");
+    }
+
+    /* wait until the worker has finished what it is running right now */
+    private void awaitIdle(Worker worker){
+        if(mThreads[worker.ordinal()] == Thread.currentThread()) return;
+        final CountDownLatch idle = new CountDownLatch(1);
+        boolean posted = getHandler(worker).post(new Runnable() {
+            @Override
+            public void run() {
+                idle.countDown();
+            }
+        });
+        try {
+            if(posted && !idle.await(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.e(TAG, worker + " is still busy");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* GETTER */
+
+    public int getThreadCount(){
+        int count = 0;
+        for(HandlerThread thread : mThreads){
+            if(thread.isAlive()) count++;
+        }
+        return count;
+    }
+
+    public List<PipelineStage> getStages(){
+        return mStages;
+    }
+
+    public boolean isShutdown(){
+        return mShutdown;
+    }
+
+    @Override
+    public String toString(){
+        StringBuilder builder = new StringBuilder("pipeline scheduler: " + getThreadCount() +
+                " threads, " + mStages.size() + " stages");
+        for(PipelineStage stage : mStages){
+            builder.append("\n  ").append(stage);
+        }
+        return builder.toString();
+    }
+}
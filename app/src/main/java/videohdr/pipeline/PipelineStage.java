@@ -0,0 +1,228 @@
+package videohdr.pipeline;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import videohdr.metrics.Gauge;
+import videohdr.metrics.StageMetrics;
+
+/**
+ * A processing stage registered with the {@link PipelineScheduler}. The producer signals every
+ * arrived frame with {@link #onFrameAvailable()}, from any thread. The worker of the stage then
+ * takes all pending frames at once: at most the queue depth of them are processed, the others
+ * are dropped according to the drop policy.
+ *
+ * Signalling is lock-free, producers run on camera and RenderScript callback threads and must
+ * not wait for the worker. The pending frames and the arrival time of the oldest one are kept in
+ * a single atomic word, a flag makes sure at most one run is posted at a time.
+ *
+ * Processed and dropped frames, the queue depth and the utilization (share of the time the
+ * stage kept its worker busy) can be read from any thread.
+ */
+public final class PipelineStage implements Runnable {
+
+    /* pending frames in the low COUNT_BITS, arrival of the oldest one in us since the
+    * registration above */
+    private static final int COUNT_BITS = 16;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    //runs that took 1, 2, .. frames, the last bucket counts all larger runs
+    private static final int COALESCED_BUCKETS = 8;
+
+    private final String mName;
+    private final Worker mWorker;
+    private final Executor mExecutor;
+    private final int mQueueDepth;
+    private final DropPolicy mDropPolicy;
+    private final FrameConsumer mConsumer;
+
+    private final AtomicLong mPendingState = new AtomicLong();
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private volatile boolean mClosed = false;
+
+    private volatile long mProcessedFrames = 0;
+    private volatile long mDroppedFrames = 0;
+    private volatile int mMaxPendingFrames = 0;
+    private volatile long mBusyTimeNs = 0;
+    private volatile long mRuns = 0;
+    private final long[] mCoalescedRuns = new long[COALESCED_BUCKETS];
+    private final long mRegisterTime = System.nanoTime();
+
+    //optional gauges in the metrics of the stage
+    private final Gauge mQueueGauge;
+    private final Gauge mUtilizationGauge;
+
+    /**
+     * Stage that is run by any executor instead of a worker of the scheduler, e.g. in a benchmark
+     * @param executor runs the stage, has to run one task at a time
+     */
+    public PipelineStage(String name, Executor executor, int queueDepth,
+                         DropPolicy dropPolicy, FrameConsumer consumer,
+                         StageMetrics metrics){
+        this(name, null, executor, queueDepth, dropPolicy, consumer, metrics);
+    }
+
+    PipelineStage(String name, Worker worker, Executor executor, int queueDepth,
+                  DropPolicy dropPolicy, FrameConsumer consumer,
+                  StageMetrics metrics){
+        if(queueDepth <= 0) throw new IllegalArgumentException("queue depth has to be positive");
+        mName = name;
+        mWorker = worker;
+        mExecutor = executor;
+        mQueueDepth = queueDepth;
+        mDropPolicy = dropPolicy;
+        mConsumer = consumer;
+        mQueueGauge = metrics != null ? metrics.createGauge("queue depth") : null;
+        mUtilizationGauge = metrics != null ? metrics.createGauge("utilization %") : null;
+    }
+
+    /**
+     * A new frame arrived at the input of the stage. The worker is woken up once for all frames
+     * that arrive until it runs. Never blocks.
+     */
+    public void onFrameAvailable(){
+        if(mClosed) return;
+        long state;
+        long next;
+        do {
+            state = mPendingState.get();
+            long count = state & COUNT_MASK;
+            if(count == 0) {
+                long arrivalUs = (System.nanoTime() - mRegisterTime) / 1000;
+                next = arrivalUs << COUNT_BITS | 1;
+            } else {
+                //saturates, the worker is stuck far beyond any queue depth anyway
+                next = count < COUNT_MASK ? state + 1 : state;
+            }
+        } while(!mPendingState.compareAndSet(state, next));
+
+        if(mScheduled.compareAndSet(false, true)) {
+            mExecutor.execute(this);
+        }
+    }
+
+    @Override
+    public void run() {
+        /* clear the flag before taking the frames: a frame arriving after this posts the next
+        * run, one arriving before is taken by this run */
+        mScheduled.set(false);
+        long state = mPendingState.getAndSet(0);
+        int arrived = (int) (state & COUNT_MASK);
+        if(arrived == 0 || mClosed) return;
+
+        long start = System.nanoTime();
+        long firstPendingTime = mRegisterTime + (state >>> COUNT_BITS) * 1000;
+        int processed = Math.min(arrived, mQueueDepth);
+        int dropped = arrived - processed;
+        long queueWait = Math.max(0, start - firstPendingTime);
+
+        //the queue keeps the newest or the oldest frames, the consumer sees all in arrival order
+        if(mDropPolicy == DropPolicy.DROP_OLDEST) {
+            for(int i = 0; i < dropped; i++) mConsumer.discardFrame();
+        }
+        for(int i = 0; i < processed; i++){
+            mConsumer.processFrame(queueWait, i == 0 ? dropped : 0);
+        }
+        if(mDropPolicy == DropPolicy.DROP_NEWEST) {
+            for(int i = 0; i < dropped; i++) mConsumer.discardFrame();
+        }
+
+        long end = System.nanoTime();
+        mProcessedFrames += processed;
+        mDroppedFrames += dropped;
+        mBusyTimeNs += end - start;
+        mRuns++;
+        mCoalescedRuns[Math.min(arrived, COALESCED_BUCKETS) - 1]++;
+        if(arrived > mMaxPendingFrames) mMaxPendingFrames = arrived;
+        if(mQueueGauge != null) {
+            mQueueGauge.set(arrived);
+            mUtilizationGauge.set(Math.round(getUtilization(end) * 100));
+        }
+    }
+
+    /* the worker does not run the stage any more, frames arriving from now on are ignored */
+    void close(){
+        mClosed = true;
+        mPendingState.set(0);
+    }
+
+    private float getUtilization(long now){
+        long elapsed = now - mRegisterTime;
+        return elapsed > 0 ? (float) mBusyTimeNs / elapsed : 0;
+    }
+
+    /* GETTER */
+
+    public String getName(){
+        return mName;
+    }
+
+    public Worker getWorker(){
+        return mWorker;
+    }
+
+    public int getQueueDepth(){
+        return mQueueDepth;
+    }
+
+    public DropPolicy getDropPolicy(){
+        return mDropPolicy;
+    }
+
+    /**
+     * @return frames waiting for the worker right now
+     */
+    public int getPendingFrames(){
+        return (int) (mPendingState.get() & COUNT_MASK);
+    }
+
+    /**
+     * @return most frames a single run took
+     */
+    public int getMaxPendingFrames(){
+        return mMaxPendingFrames;
+    }
+
+    public long getProcessedFrames(){
+        return mProcessedFrames;
+    }
+
+    public long getDroppedFrames(){
+        return mDroppedFrames;
+    }
+
+    public long getRunCount(){
+        return mRuns;
+    }
+
+    /**
+     * @return mean number of frames a run took, 1 if the worker keeps up with the producer
+     */
+    public float getMeanCoalescedFrames(){
+        long runs = mRuns;
+        return runs > 0 ? (float) (mProcessedFrames + mDroppedFrames) / runs : 0;
+    }
+
+    /**
+     * @return number of runs that took 1, 2, .. frames, the last entry counts all larger runs
+     */
+    public long[] getCoalescedRuns(){
+        return mCoalescedRuns.clone();
+    }
+
+    /**
+     * @return share of the time since the registration the stage kept its worker busy (0 - 1)
+     */
+    public float getUtilization(){
+        return getUtilization(System.nanoTime());
+    }
+
+    @Override
+    public String toString(){
+        return mName + (mWorker != null ? " on " + mWorker : "") + ": " + mProcessedFrames +
+                " processed, " + mDroppedFrames + " dropped (" + mDropPolicy + ", depth " +
+                mQueueDepth + "), " + mRuns + " runs with " +
+                String.format("%.2f", getMeanCoalescedFrames()) + " frames on average, max " +
+                mMaxPendingFrames + ", utilization " + Math.round(getUtilization() * 100) + "%";
+    }
+}
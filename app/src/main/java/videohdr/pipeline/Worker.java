@@ -0,0 +1,21 @@
+package videohdr.pipeline;
+
+/**
+ * The fixed workers of the {@link PipelineScheduler}, one thread each
+ */
+public enum Worker {
+    CAMERA("CameraOpsThread"),
+    RECORDER("RecorderOpsThread"),
+    FUSION("FusionThread"),
+    METERING("MeteringThread");
+
+    private final String mThreadName;
+
+    Worker(String threadName){
+        mThreadName = threadName;
+    }
+
+    String getThreadName(){
+        return mThreadName;
+    }
+}
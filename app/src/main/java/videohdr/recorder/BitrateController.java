@@ -0,0 +1,163 @@
+package videohdr.recorder;
+
+/**
+ * Picks the target bitrate of the encoder from the content of the frames and the output of
+ * the encoder.
+ *
+ * Alternating bright and dark frames leave large residuals in every frame, so the brightness
+ * difference between the exposures of a pair is the main cost factor. Detailed (high histogram
+ * spread) and changing scenes need more bits as well, static scenes get by with much less.
+ * The content estimate is turned into a bitrate between the minimum and maximum and capped by
+ * the storage budget. If the encoder produced clearly less than its target, the content doesn't
+ * need it and the target is lowered to the produced rate plus HEADROOM. An encoder that uses up
+ * its target is limited by it and gets the full content estimate again.
+ *
+ * The target is recomputed once per UPDATE_INTERVAL_US of encoded frames and only handed to the
+ * encoder if it changed by more than MIN_CHANGE, encoders reset parts of their rate control on
+ * every change.
+ */
+public class BitrateController {
+
+    /**
+     * Per frame content statistics, see {@link videohdr.camera.ExposureMeter}
+     */
+    public interface ContentSource {
+        float getHistogramSpread();
+        float getPairBrightnessDelta();
+        float getTemporalBrightnessDelta();
+    }
+
+    private static final long UPDATE_INTERVAL_US = 1000000;
+    private static final float MIN_CHANGE = 0.1f;
+
+    /* content values at which a factor of the complexity estimate saturates */
+    private static final float SPREAD_SCALE = 64f;
+    private static final float PAIR_DELTA_SCALE = 100f;
+    private static final float TEMPORAL_DELTA_SCALE = 8f;
+    private static final float SPREAD_WEIGHT = 0.3f;
+    private static final float PAIR_DELTA_WEIGHT = 0.5f;
+    private static final float TEMPORAL_DELTA_WEIGHT = 0.2f;
+
+    //an encoder producing this share of its target is limited by it
+    private static final float SATURATED = 0.9f;
+    //margin above the produced rate when lowering the target
+    private static final float HEADROOM = 1.3f;
+
+    private final ContentSource mContent;
+    private final int mMinBitRate;
+    private final int mMaxBitRate;
+    private volatile int mBudgetBitRate = 0;
+
+    /* encoder feedback, window of encoded frames since the last update */
+    private long mWindowStartUs = -1;
+    private long mWindowBytes = 0;
+
+    private volatile int mBitRate;
+    private volatile int mMeasuredBitRate = 0;
+    private volatile float mComplexity = 0;
+    private volatile int mChanges = 0;
+
+    /**
+     * @param content source of the content statistics
+     * @param minBitRate lowest target in bits per second
+     * @param maxBitRate highest target in bits per second, the initial bitrate of the encoder
+     */
+    public BitrateController(ContentSource content, int minBitRate, int maxBitRate){
+        mContent = content;
+        mMinBitRate = minBitRate;
+        mMaxBitRate = maxBitRate;
+        mBitRate = maxBitRate;
+    }
+
+    /**
+     * Limit the bitrate so a recording of {@code durationSeconds} fits into {@code bytes}
+     * @param bytes storage available for recordings, 0 for no limit
+     * @param durationSeconds recording time that has to fit
+     */
+    public void setStorageBudget(long bytes, long durationSeconds){
+        if(bytes <= 0 || durationSeconds <= 0) {
+            mBudgetBitRate = 0;
+            return;
+        }
+        mBudgetBitRate = (int) Math.min(Integer.MAX_VALUE, bytes * 8 / durationSeconds);
+    }
+
+    /**
+     * Feed back an encoded frame, called on the encoder thread
+     * @return new target bitrate for the encoder, -1 if it stays the same
+     */
+    public int onEncodedFrame(int size, long presentationTimeUs){
+        if(mWindowStartUs < 0 || presentationTimeUs < mWindowStartUs) {
+            mWindowStartUs = presentationTimeUs;
+            mWindowBytes = 0;
+        }
+        mWindowBytes += size;
+
+        long window = presentationTimeUs - mWindowStartUs;
+        if(window < UPDATE_INTERVAL_US) return -1;
+
+        mMeasuredBitRate = (int) (mWindowBytes * 8 * 1000000 / window);
+        mWindowStartUs = presentationTimeUs;
+        mWindowBytes = 0;
+        return update();
+    }
+
+    private int update(){
+        mComplexity = estimateComplexity(mContent.getHistogramSpread(),
+                mContent.getPairBrightnessDelta(), mContent.getTemporalBrightnessDelta());
+
+        long target = (long) (mMinBitRate + (mMaxBitRate - mMinBitRate) * mComplexity);
+        int measured = mMeasuredBitRate;
+        if(measured > 0 && measured < SATURATED * mBitRate) {
+            target = Math.min(target, (long) (measured * HEADROOM));
+        }
+        target = clamp(target);
+
+        if(Math.abs(target - mBitRate) < MIN_CHANGE * mBitRate) return -1;
+        mBitRate = (int) target;
+        mChanges++;
+        return mBitRate;
+    }
+
+    private int clamp(long bitRate){
+        long max = mMaxBitRate;
+        int budget = mBudgetBitRate;
+        if(budget > 0 && budget < max) max = budget;
+        long min = Math.min(mMinBitRate, max);
+        return (int) Math.max(min, Math.min(max, bitRate));
+    }
+
+    /**
+     * @return how expensive the content is to encode, 0 (static, flat) - 1
+     */
+    public static float estimateComplexity(float spread, float pairDelta, float temporalDelta){
+        float complexity = SPREAD_WEIGHT * Math.min(1f, spread / SPREAD_SCALE) +
+                PAIR_DELTA_WEIGHT * Math.min(1f, pairDelta / PAIR_DELTA_SCALE) +
+                TEMPORAL_DELTA_WEIGHT * Math.min(1f, temporalDelta / TEMPORAL_DELTA_SCALE);
+        return Math.max(0f, Math.min(1f, complexity));
+    }
+
+    /* GETTER */
+
+    public int getBitRate(){
+        return mBitRate;
+    }
+
+    /**
+     * @return bitrate the encoder produced during the last update interval
+     */
+    public int getMeasuredBitRate(){
+        return mMeasuredBitRate;
+    }
+
+    public float getComplexity(){
+        return mComplexity;
+    }
+
+    @Override
+    public String toString(){
+        return "bitrate: target " + mBitRate / 1000 + "kbit/s, measured " + mMeasuredBitRate / 1000 +
+                "kbit/s, complexity " + String.format("%.2f", mComplexity) + ", " + mChanges + " changes" +
+                (mBudgetBitRate > 0 ? ", budget " + mBudgetBitRate / 1000 + "kbit/s" : "");
+    }
+}
@@ -0,0 +1,47 @@
+package videohdr.recorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The part of an encoder the recording pipeline controls while frames are encoded, without the
+ * Android types of the input surface and the output format. Extended by {@link VideoEncoder},
+ * implemented by {@link StandInEncoder} to run the pipeline on a plain JVM.
+ */
+public interface FrameEncoder {
+
+    /**
+     * Start encoding, from now on the listener receives encoded frames
+     */
+    void start();
+
+    /**
+     * Stop encoding. The encoder can not be started again.
+     */
+    void stop();
+
+    void release();
+
+    /**
+     * Ask the encoder to produce a key frame as soon as possible
+     */
+    void requestKeyFrame();
+
+    /**
+     * Change the target bitrate while encoding
+     * @param bitRate in bits per second
+     */
+    void setBitRate(int bitRate);
+
+    interface Listener {
+        /**
+         * Called for every encoded frame on the encoder thread. {@code data} is only valid
+         * for the duration of the call.
+         * @param presentationTimeUs timestamp of the frame in us
+         * @param keyFrame true if the frame can be decoded on its own
+         */
+        void onEncodedFrame(ByteBuffer data, int offset, int size, long presentationTimeUs,
+                            boolean keyFrame);
+
+        void onEncoderError(Exception e);
+    }
+}
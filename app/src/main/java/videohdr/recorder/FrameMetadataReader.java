@@ -0,0 +1,101 @@
+package videohdr.recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Random access to the capture values in a sidecar file written by {@link FrameMetadataWriter}.
+ * The file is memory mapped, frames are accessed by their index in the recording.
+ */
+public class FrameMetadataReader {
+
+    private static final int TIMESTAMP_OFFSET = 0;
+    private static final int FRAME_NUMBER_OFFSET = 8;
+    private static final int ISO_OFFSET = 16;
+    private static final int EXPOSURE_OFFSET = 20;
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mData;
+    private final int mRecordSize;
+    private final int mFrameCount;
+
+    public FrameMetadataReader(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        FileChannel channel = mFile.getChannel();
+        mData = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        mData.order(ByteOrder.LITTLE_ENDIAN);
+
+        byte[] magic = new byte[FrameMetadataWriter.MAGIC.length];
+        if(mData.capacity() < FrameMetadataWriter.HEADER_SIZE) {
+            close();
+            throw new IOException("not a frame metadata file: " + file);
+        }
+        mData.get(magic);
+        int version = mData.getInt();
+        mRecordSize = mData.getInt();
+        if(!Arrays.equals(magic, FrameMetadataWriter.MAGIC) || version != FrameMetadataWriter.VERSION
+                || mRecordSize < FrameMetadataWriter.RECORD_SIZE) {
+            close();
+            throw new IOException("not a frame metadata file: " + file);
+        }
+        mFrameCount = (mData.capacity() - FrameMetadataWriter.HEADER_SIZE) / mRecordSize;
+    }
+
+    public int getFrameCount(){
+        return mFrameCount;
+    }
+
+    /**
+     * @return sensor timestamp of the frame in ns
+     */
+    public long getTimestamp(int frame){
+        return mData.getLong(recordOffset(frame) + TIMESTAMP_OFFSET);
+    }
+
+    public long getFrameNumber(int frame){
+        return mData.getLong(recordOffset(frame) + FRAME_NUMBER_OFFSET);
+    }
+
+    public int getIso(int frame){
+        return mData.getInt(recordOffset(frame) + ISO_OFFSET);
+    }
+
+    /**
+     * @return exposure time of the frame in ns
+     */
+    public long getExposure(int frame){
+        return mData.getLong(recordOffset(frame) + EXPOSURE_OFFSET);
+    }
+
+    /**
+     * Find the frame belonging to a video sample, the timestamps are increasing
+     * @param timestamp sensor timestamp in ns (presentation time of the video sample * 1000)
+     * @return index of the first frame at or after {@code timestamp}, getFrameCount() if none
+     */
+    public int findFrame(long timestamp){
+        int low = 0;
+        int high = mFrameCount;
+        while(low < high){
+            int mid = (low + high) >>> 1;
+            if(getTimestamp(mid) < timestamp) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    private int recordOffset(int frame){
+        if(frame < 0 || frame >= mFrameCount) {
+            throw new IndexOutOfBoundsException("frame " + frame + " of " + mFrameCount);
+        }
+        return FrameMetadataWriter.HEADER_SIZE + frame * mRecordSize;
+    }
+
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
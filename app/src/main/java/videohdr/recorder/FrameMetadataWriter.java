@@ -0,0 +1,184 @@
+package videohdr.recorder;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the capture values of every frame of a recording into a binary sidecar file, so
+ * offline tools know which frame was under- or overexposed and with which values.
+ *
+ * Capture results are appended all the time. While no file is open they are kept in a small
+ * ring of primitive arrays, so a recording that starts with pre-roll frames also gets their
+ * values. Records are put into a memory mapped chunk of the file, appending never allocates.
+ *
+ * File layout (little endian), see {@link FrameMetadataReader}:
+ * <pre>
+ * header:      magic "VHDRMETA" (8 bytes), version (int), record size (int)
+ * every frame: sensor timestamp in ns (long), frame number (long), iso (int),
+ *              exposure time in ns (long)
+ * </pre>
+ */
+public class FrameMetadataWriter {
+
+    private static final String TAG = "FrameMetadataWriter";
+
+    static final byte[] MAGIC = {'V', 'H', 'D', 'R', 'M', 'E', 'T', 'A'};
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = MAGIC.length + 2 * 4;
+    public static final int RECORD_SIZE = 8 + 8 + 4 + 8;
+
+    //the file is mapped in chunks of this size, about 20 minutes at 30fps
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    private static final int DEFAULT_HISTORY = 256;
+
+    /* RECENT FRAMES, kept while no file is open */
+    private final int mHistoryCapacity;
+    private final long[] mTimestamps;
+    private final long[] mFrameNumbers;
+    private final int[] mIsos;
+    private final long[] mExposures;
+    private long mHistoryCount = 0;
+
+    /* OPEN FILE */
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mChunk;
+    private long mChunkStart;
+    private long mFileLength;
+    private long mRecordCount;
+
+    public FrameMetadataWriter(){
+        this(DEFAULT_HISTORY);
+    }
+
+    /**
+     * @param historyCapacity number of frames kept while no file is open, has to cover the
+     *                        pre-roll duration
+     */
+    public FrameMetadataWriter(int historyCapacity){
+        mHistoryCapacity = historyCapacity;
+        mTimestamps = new long[historyCapacity];
+        mFrameNumbers = new long[historyCapacity];
+        mIsos = new int[historyCapacity];
+        mExposures = new long[historyCapacity];
+    }
+
+    /**
+     * Add the capture values of a completed frame, called from the capture callback
+     * @param timestamp sensor timestamp in ns, the encoded frame has this timestamp in us
+     */
+    public synchronized void append(long timestamp, long frameNumber, int iso, long exposure){
+        if(mChunk == null) {
+            int slot = (int) (mHistoryCount % mHistoryCapacity);
+            mTimestamps[slot] = timestamp;
+            mFrameNumbers[slot] = frameNumber;
+            mIsos[slot] = iso;
+            mExposures[slot] = exposure;
+            mHistoryCount++;
+            return;
+        }
+
+        try {
+            writeRecord(timestamp, frameNumber, iso, exposure);
+        } catch (IOException e) {
+            Log.e(TAG, "writing frame metadata failed: " + e.getMessage());
+            closeFile();
+        }
+    }
+
+    /**
+     * Open a sidecar file, the kept frames from {@code firstTimestamp} on are written right away
+     * @param firstTimestamp sensor timestamp in ns of the first frame of the recording
+     */
+    public synchronized void open(File file, long firstTimestamp) throws IOException {
+        if(mChunk != null) closeFile();
+
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mapChunk(0);
+        mChunk.put(MAGIC);
+        mChunk.putInt(VERSION);
+        mChunk.putInt(RECORD_SIZE);
+        mFileLength = HEADER_SIZE;
+        mRecordCount = 0;
+
+        long first = Math.max(0, mHistoryCount - mHistoryCapacity);
+        for(long i = first; i < mHistoryCount; i++){
+            int slot = (int) (i % mHistoryCapacity);
+            if(mTimestamps[slot] < firstTimestamp) continue;
+            writeRecord(mTimestamps[slot], mFrameNumbers[slot], mIsos[slot], mExposures[slot]);
+        }
+        mHistoryCount = 0;
+    }
+
+    /**
+     * Look up the capture values of a kept frame, frames are only kept while no file is open
+     * @param timestamp sensor timestamp in ns
+     * @param values receives the iso at 0 and the exposure time in ns at 1
+     * @return false if the capture result of the frame is not there (yet)
+     */
+    public synchronized boolean getCaptureValues(long timestamp, long[] values){
+        long first = Math.max(0, mHistoryCount - mHistoryCapacity);
+        for(long i = mHistoryCount - 1; i >= first; i--){
+            int slot = (int) (i % mHistoryCapacity);
+            if(mTimestamps[slot] != timestamp) continue;
+            values[0] = mIsos[slot];
+            values[1] = mExposures[slot];
+            return true;
+        }
+        return false;
+    }
+
+    private void writeRecord(long timestamp, long frameNumber, int iso, long exposure)
+            throws IOException {
+        if(mFileLength + RECORD_SIZE > mChunkStart + CHUNK_SIZE) mapChunk(mFileLength);
+
+        mChunk.position((int) (mFileLength - mChunkStart));
+        mChunk.putLong(timestamp);
+        mChunk.putLong(frameNumber);
+        mChunk.putInt(iso);
+        mChunk.putLong(exposure);
+        mFileLength += RECORD_SIZE;
+        mRecordCount++;
+    }
+
+    private void mapChunk(long position) throws IOException {
+        mChunkStart = position;
+        mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE, position, CHUNK_SIZE);
+        mChunk.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Finish the sidecar file and cut it to its written length
+     * @return number of frames written
+     */
+    public synchronized long close(){
+        long count = mRecordCount;
+        closeFile();
+        return count;
+    }
+
+    private void closeFile(){
+        if(mFile == null) return;
+        try {
+            if(mChunk != null) mChunk.force();
+            mChannel.truncate(mFileLength);
+            mFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "closing metadata file failed: " + e.getMessage());
+        }
+        mChunk = null;
+        mChannel = null;
+        mFile = null;
+    }
+
+    public synchronized boolean isOpen(){
+        return mChunk != null;
+    }
+}
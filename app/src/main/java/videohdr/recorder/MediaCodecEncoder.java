@@ -0,0 +1,178 @@
+package videohdr.recorder;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * H.264 encoder based on {@link MediaCodec} in asynchronous callback mode, fed by an input
+ * surface. Callbacks are delivered on a dedicated encoder thread.
+ */
+public class MediaCodecEncoder implements VideoEncoder {
+
+    private static final String TAG = "MediaCodecEncoder";
+
+    private static final String MIME_TYPE = MediaFormat.MIMETYPE_VIDEO_AVC;
+    private static final int I_FRAME_INTERVAL = 1; //seconds between key frames
+
+    private MediaCodec mCodec;
+    private Surface mInputSurface;
+    private IOException mSetupException;
+
+    private final HandlerThread mEncoderThread;
+
+    private volatile Listener mListener;
+
+    private final MediaCodec.Callback mCallback = new MediaCodec.Callback() {
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            //input comes from the surface
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            Listener listener = mListener;
+
+            //codec config data is part of the output format, not a frame
+            boolean isConfig = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            if(listener != null && !isConfig && info.size > 0) {
+                ByteBuffer data = codec.getOutputBuffer(index);
+                listener.onEncodedFrame(data, info.offset, info.size, info.presentationTimeUs,
+                        (info.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            }
+            codec.releaseOutputBuffer(index, false);
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "encoder error: " + e.getDiagnosticInfo());
+            Listener listener = mListener;
+            if(listener != null) listener.onEncoderError(e);
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            Log.d(TAG, "output format changed");
+            Listener listener = mListener;
+            if(listener != null) listener.onOutputFormatChanged(format);
+        }
+    };
+
+    /**
+     * Create and configure the encoder. The codec is created on the encoder thread, so
+     * that its callbacks are delivered there.
+     * @param width of the frames
+     * @param height of the frames
+     * @param frameRate of the input frames
+     * @param bitRate initial target bitrate in bits per second
+     * @throws IOException if no suitable encoder is available
+     */
+    public MediaCodecEncoder(final int width, final int height, final int frameRate,
+                             final int bitRate) throws IOException {
+
+        mEncoderThread = new HandlerThread("EncoderThread");
+        mEncoderThread.start();
+        Handler encoderHandler = new Handler(mEncoderThread.getLooper());
+
+        final CountDownLatch setupDone = new CountDownLatch(1);
+        encoderHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    setupCodec(width, height, frameRate, bitRate);
+                } catch (IOException e) {
+                    mSetupException = e;
+                } finally {
+                    setupDone.countDown();
+                }
+            }
+        });
+
+        try {
+            setupDone.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while creating the encoder");
+        }
+        if(mSetupException != null) {
+            mEncoderThread.quit();
+            throw mSetupException;
+        }
+    }
+
+    private void setupCodec(int width, int height, int frameRate, int bitRate) throws IOException {
+        MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL);
+
+        mCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        //callback has to be set before configure, it is called on this thread's looper
+        mCodec.setCallback(mCallback);
+        mCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mInputSurface = mCodec.createInputSurface();
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mCodec.signalEndOfInputStream();
+            mCodec.stop();
+        } catch (IllegalStateException e) {
+            Log.d(TAG, "encoder was not running");
+        }
+    }
+
+    @Override
+    public void release() {
+        mListener = null;
+        mCodec.release();
+        mInputSurface.release();
+        mEncoderThread.quitSafely();
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public void setBitRate(int bitRate) {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_VIDEO_BITRATE, bitRate);
+        try {
+            mCodec.setParameters(params);
+        } catch (IllegalStateException e) {
+            //a frame callback can still be running while the codec is stopped
+            Log.d(TAG, "encoder was not running");
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package videohdr.recorder;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes encoded frames into an MPEG-4 file using {@link MediaMuxer}
+ */
+public class Mp4SampleWriter implements SampleWriter {
+
+    private static final String TAG = "Mp4SampleWriter";
+
+    private MediaMuxer mMuxer;
+    private int mTrackIndex = -1;
+    private int mSamples = 0;
+
+    //reused for every sample
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    @Override
+    public void open(File file, MediaFormat format, int orientationHint) throws IOException {
+        mMuxer = new MediaMuxer(file.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mMuxer.setOrientationHint(orientationHint);
+        mTrackIndex = mMuxer.addTrack(format);
+        mMuxer.start();
+        mSamples = 0;
+    }
+
+    @Override
+    public void writeSample(ByteBuffer data, int offset, int size, long presentationTimeUs,
+                            boolean keyFrame) {
+        mBufferInfo.set(offset, size, presentationTimeUs,
+                keyFrame ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+        data.limit(offset + size);
+        data.position(offset);
+        mMuxer.writeSampleData(mTrackIndex, data, mBufferInfo);
+        mSamples++;
+    }
+
+    /**
+     * Finalize the file. Without samples the muxer can't be stopped, it is only released and the
+     * file is left unusable.
+     */
+    @Override
+    public void close() {
+        if(mMuxer == null) return;
+        if(mSamples > 0) {
+            try {
+                mMuxer.stop();
+            } catch (IllegalStateException e) {
+                Log.e(TAG, "muxer could not be stopped, file is probably corrupt");
+            }
+        }
+        mMuxer.release();
+        mMuxer = null;
+        mTrackIndex = -1;
+    }
+}
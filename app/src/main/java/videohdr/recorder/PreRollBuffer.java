@@ -0,0 +1,200 @@
+package videohdr.recorder;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring buffer of the most recent encoded frames while no recording is running. When a
+ * recording starts, the buffered frames beginning with the oldest key frame are written
+ * to the file first, so the recording includes the moments before the record button
+ * was pressed.
+ *
+ * All memory is allocated up front: one direct buffer for the frame data and primitive
+ * arrays for the per-frame index. Frames older than the configured duration are evicted,
+ * and so are the oldest frames whenever the memory budget is exceeded.
+ */
+public class PreRollBuffer {
+
+    private final ByteBuffer mData;
+    //reused views on mData, for copying frames in and handing them to the writer when flushing
+    private final ByteBuffer mWriteView;
+    private final ByteBuffer mReadView;
+    private final long mDurationUs;
+
+    /* per frame index, a ring of mMaxFrames entries */
+    private final int mMaxFrames;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final long[] mTimestamps;
+    private final boolean[] mKeyFrames;
+    private int mFirst = 0;
+    private int mCount = 0;
+
+    //byte position where the next frame is written
+    private int mWritePos = 0;
+
+    /* cost of buffering while not recording */
+    private long mBufferedFrames = 0;
+    private long mBufferedBytes = 0;
+    private long mCopyTimeNs = 0;
+    private long mEvictedFrames = 0;
+
+    /**
+     * @param memoryBytes size of the preallocated frame data buffer
+     * @param maxFrames maximum number of buffered frames
+     * @param durationUs frames older than this (relative to the newest frame) are evicted
+     */
+    public PreRollBuffer(int memoryBytes, int maxFrames, long durationUs){
+        mData = ByteBuffer.allocateDirect(memoryBytes);
+        mWriteView = mData.duplicate();
+        mReadView = mData.duplicate();
+        mDurationUs = durationUs;
+
+        mMaxFrames = maxFrames;
+        mOffsets = new int[maxFrames];
+        mSizes = new int[maxFrames];
+        mTimestamps = new long[maxFrames];
+        mKeyFrames = new boolean[maxFrames];
+    }
+
+    /**
+     * Copy an encoded frame into the buffer, evicting old frames as needed
+     * @return false if the frame is larger than the whole buffer and was not stored
+     */
+    public synchronized boolean add(ByteBuffer data, int offset, int size, long presentationTimeUs,
+                                    boolean keyFrame){
+        long start = System.nanoTime();
+        if(size > mData.capacity()){
+            clear();
+            return false;
+        }
+
+        //frames are stored contiguously, wrap around if the frame does not fit at the end
+        int writePos = mWritePos;
+        boolean wrapped = writePos + size > mData.capacity();
+        if(wrapped) writePos = 0;
+
+        /* evict the frames at the end of the buffer that are skipped by wrapping around,
+        * frames overlapping the target range, frames that are too old and if the index is full */
+        while(mCount > 0 && ((wrapped && mOffsets[mFirst] >= mWritePos) ||
+                overlaps(mFirst, writePos, size) || mCount == mMaxFrames ||
+                presentationTimeUs - mTimestamps[mFirst] > mDurationUs)){
+            evictOldest();
+        }
+
+        //bulk copy, position and limit of the encoder's buffer are restored afterwards
+        int position = data.position();
+        int limit = data.limit();
+        data.limit(offset + size);
+        data.position(offset);
+        mWriteView.clear();
+        mWriteView.position(writePos);
+        mWriteView.put(data);
+        data.limit(limit);
+        data.position(position);
+
+        int slot = (mFirst + mCount) % mMaxFrames;
+        mOffsets[slot] = writePos;
+        mSizes[slot] = size;
+        mTimestamps[slot] = presentationTimeUs;
+        mKeyFrames[slot] = keyFrame;
+        mCount++;
+        mWritePos = writePos + size;
+
+        mBufferedFrames++;
+        mBufferedBytes += size;
+        mCopyTimeNs += System.nanoTime() - start;
+        return true;
+    }
+
+    private boolean overlaps(int slot, int writePos, int size){
+        int frameStart = mOffsets[slot];
+        int frameEnd = frameStart + mSizes[slot];
+        return frameStart < writePos + size && writePos < frameEnd;
+    }
+
+    private void evictOldest(){
+        mFirst = (mFirst + 1) % mMaxFrames;
+        mCount--;
+        mEvictedFrames++;
+    }
+
+    /**
+     * @return true if a recording can start from the buffered frames
+     */
+    public synchronized boolean hasKeyFrame(){
+        return getFirstKeyFrameTimestamp() >= 0;
+    }
+
+    /**
+     * @return timestamp in us of the oldest buffered key frame, the first frame written by
+     * {@link #flushTo(SampleWriter)}, -1 if there is none
+     */
+    public synchronized long getFirstKeyFrameTimestamp(){
+        for(int i = 0; i < mCount; i++){
+            int slot = (mFirst + i) % mMaxFrames;
+            if(mKeyFrames[slot]) return mTimestamps[slot];
+        }
+        return -1;
+    }
+
+    /**
+     * Write all buffered frames starting with the oldest key frame and empty the buffer.
+     * Frames keep their original timestamps.
+     * @param writer an opened writer
+     * @return number of frames written
+     */
+    public synchronized int flushTo(SampleWriter writer){
+        //frames in front of the first key frame can't be decoded
+        while(mCount > 0 && !mKeyFrames[mFirst]) evictOldest();
+
+        int written = 0;
+        for(int i = 0; i < mCount; i++){
+            int slot = (mFirst + i) % mMaxFrames;
+            mReadView.clear();
+            writer.writeSample(mReadView, mOffsets[slot], mSizes[slot], mTimestamps[slot],
+                    mKeyFrames[slot]);
+            written++;
+        }
+        clear();
+        return written;
+    }
+
+    public synchronized void clear(){
+        mFirst = 0;
+        mCount = 0;
+        mWritePos = 0;
+    }
+
+    /* STATISTICS */
+
+    public synchronized int getFrameCount(){
+        return mCount;
+    }
+
+    /**
+     * @return time span covered by the buffered frames in us
+     */
+    public synchronized long getBufferedDuration(){
+        if(mCount < 2) return 0;
+        return mTimestamps[(mFirst + mCount - 1) % mMaxFrames] - mTimestamps[mFirst];
+    }
+
+    public int getMemorySize(){
+        return mData.capacity();
+    }
+
+    /**
+     * @return mean time spent copying a frame into the buffer in ns, the steady state cost
+     * of pre-roll while not recording
+     */
+    public synchronized long getMeanCopyTime(){
+        return mBufferedFrames > 0 ? mCopyTimeNs / mBufferedFrames : 0;
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "pre-roll: " + mCount + " frames / " + getBufferedDuration() / 1000 + "ms buffered in " +
+                mData.capacity() / 1024 + "kB, " + mBufferedBytes / 1024 + "kB copied, " +
+                getMeanCopyTime() / 1000 + "us per frame, " + mEvictedFrames + " evicted";
+    }
+}
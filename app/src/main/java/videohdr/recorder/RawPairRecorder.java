@@ -0,0 +1,204 @@
+package videohdr.recorder;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Records the alternating exposures without compression, so they can be fused offline.
+ * Camera frames are received through an {@link ImageReader}, copied into the slots of a
+ * {@link RawPairWriter} and written to a "RAW_<timestamp>.vhdr" container file.
+ *
+ * Every frame is stored with the ISO and exposure time of the capture result with the same sensor
+ * timestamp, taken from the {@link FrameMetadataWriter} the capture session appends to. The
+ * result may arrive after the image, the frame and the ones behind it then wait for it on the
+ * reader thread.
+ */
+public class RawPairRecorder implements RecordingSink {
+
+    private static final String TAG = "RawPairRecorder";
+
+    //frames the ImageReader can hold while one is being copied
+    private static final int MAX_IMAGES = 3;
+    //frames waiting for the I/O thread
+    private static final int WRITE_QUEUE_CAPACITY = 8;
+    //how long a frame waits for its capture result before it is stored without values
+    private static final long RESULT_TIMEOUT_NS = 50000000L;
+    private static final long RESULT_WAIT_MS = 5;
+
+    private static final File directoryPath = Environment.getExternalStoragePublicDirectory(
+            Environment.DIRECTORY_DCIM + "/Camera/");
+
+    private final ImageReader mImageReader;
+    private final HandlerThread mReaderThread;
+    private final Handler mReaderHandler;
+    private final RawPairWriter mWriter;
+    private final FrameMetadataWriter mFrameMetadata;
+    //capture values of a frame, only used on the reader thread
+    private final long[] mCaptureValues = new long[2];
+
+    /* FRAMES WAITING FOR THEIR CAPTURE RESULT, in order, only used on the reader thread */
+    private final int[] mPendingSlots = new int[WRITE_QUEUE_CAPACITY];
+    private final long[] mPendingFrameIndex = new long[WRITE_QUEUE_CAPACITY];
+    private final long[] mPendingTimestamps = new long[WRITE_QUEUE_CAPACITY];
+    private final long[] mPendingSince = new long[WRITE_QUEUE_CAPACITY];
+    private int mPendingFirst = 0;
+    private int mPendingCount = 0;
+    private final Runnable mSubmitPending = new Runnable() {
+        @Override
+        public void run() {
+            submitPending();
+        }
+    };
+
+    private final int mWidth;
+    private final int mHeight;
+
+    //total number of frames received
+    private long mFrameCounter = 0;
+    private volatile boolean mRecording = false;
+
+    private final ImageReader.OnImageAvailableListener mImageListener =
+            new ImageReader.OnImageAvailableListener() {
+                @Override
+                public void onImageAvailable(ImageReader reader) {
+                    Image image = reader.acquireNextImage();
+                    if(image == null) return;
+                    long frameIndex = mFrameCounter++;
+                    if(mRecording) writeImage(image, frameIndex);
+                    image.close();
+                }
+            };
+
+    /**
+     * @param size size of the recorded frames
+     * @param metadata source of the capture values of every frame, must not have a file open
+     */
+    public RawPairRecorder(Size size, FrameMetadataWriter metadata){
+        mWidth = size.getWidth();
+        mHeight = size.getHeight();
+        mFrameMetadata = metadata;
+        mWriter = new RawPairWriter(mWidth, mHeight, WRITE_QUEUE_CAPACITY);
+
+        mReaderThread = new HandlerThread("RawCaptureThread");
+        mReaderThread.start();
+        mImageReader = ImageReader.newInstance(mWidth, mHeight, ImageFormat.YUV_420_888, MAX_IMAGES);
+        mReaderHandler = new Handler(mReaderThread.getLooper());
+        mImageReader.setOnImageAvailableListener(mImageListener, mReaderHandler);
+    }
+
+    private void writeImage(Image image, long frameIndex){
+        int slot = mWriter.acquireSlot();
+        if(slot < 0) return; //writer is behind, frame dropped
+
+        ByteBuffer target = mWriter.getSlotBuffer(slot);
+        Image.Plane[] planes = image.getPlanes();
+        copyPlane(planes[0], mWidth, mHeight, target);
+        copyPlane(planes[1], mWidth / 2, mHeight / 2, target);
+        copyPlane(planes[2], mWidth / 2, mHeight / 2, target);
+
+        //a slot is only acquired once, so there is always room for it
+        int pending = (mPendingFirst + mPendingCount) % WRITE_QUEUE_CAPACITY;
+        mPendingSlots[pending] = slot;
+        mPendingFrameIndex[pending] = frameIndex;
+        mPendingTimestamps[pending] = image.getTimestamp();
+        mPendingSince[pending] = System.nanoTime();
+        mPendingCount++;
+        submitPending();
+    }
+
+    /* submit the waiting frames in order as long as their capture results are there */
+    private void submitPending(){
+        mReaderHandler.removeCallbacks(mSubmitPending);
+        while(mPendingCount > 0) {
+            int first = mPendingFirst;
+            long timestamp = mPendingTimestamps[first];
+            if(mFrameMetadata.getCaptureValues(timestamp, mCaptureValues)) {
+                mWriter.submitSlot(mPendingSlots[first], mPendingFrameIndex[first], timestamp,
+                        (int) mCaptureValues[0], mCaptureValues[1]);
+            } else if(System.nanoTime() - mPendingSince[first] > RESULT_TIMEOUT_NS) {
+                Log.w(TAG, "no capture result for frame " + timestamp + ", stored without values");
+                mWriter.submitSlot(mPendingSlots[first], mPendingFrameIndex[first], timestamp,
+                        -1, -1);
+            } else {
+                mReaderHandler.postDelayed(mSubmitPending, RESULT_WAIT_MS);
+                return;
+            }
+            mPendingFirst = (first + 1) % WRITE_QUEUE_CAPACITY;
+            mPendingCount--;
+        }
+    }
+
+    /* copy a plane row by row, dropping row padding and interleaved chroma samples */
+    private static void copyPlane(Image.Plane plane, int width, int height, ByteBuffer target){
+        ByteBuffer source = plane.getBuffer();
+        int rowStride = plane.getRowStride();
+        int pixelStride = plane.getPixelStride();
+
+        if(pixelStride == 1) {
+            int limit = source.limit();
+            for (int row = 0; row < height; row++) {
+                int rowStart = row * rowStride;
+                source.limit(rowStart + width);
+                source.position(rowStart);
+                target.put(source);
+                source.limit(limit);
+            }
+        } else {
+            for (int row = 0; row < height; row++) {
+                int rowStart = row * rowStride;
+                for (int x = 0; x < width; x++) {
+                    target.put(source.get(rowStart + x * pixelStride));
+                }
+            }
+        }
+    }
+
+    @Override
+    public Surface getRecorderSurface() {
+        return mImageReader.getSurface();
+    }
+
+    @Override
+    public void start() throws IllegalStateException {
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        File file = new File(directoryPath, "RAW_" + timeStamp + ".vhdr");
+        try {
+            mWriter.start(file);
+        } catch (IOException e) {
+            throw new IllegalStateException("could not open raw file " + file);
+        }
+        Log.d(TAG, "recording raw frames to " + file);
+        mRecording = true;
+    }
+
+    @Override
+    public void stop() throws IllegalStateException {
+        mRecording = false;
+        mWriter.stop();
+    }
+
+    @Override
+    public void release() {
+        if(mRecording) stop();
+        mImageReader.close();
+        mReaderThread.quitSafely();
+    }
+
+    @Override
+    public String getStatistics() {
+        return mWriter.getStatistics();
+    }
+}
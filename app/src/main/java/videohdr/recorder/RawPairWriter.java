@@ -0,0 +1,268 @@
+package videohdr.recorder;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes uncompressed YUV 4:2:0 frames together with their capture values into a container
+ * file for offline fusion. Frames are copied into a fixed number of preallocated slots by the
+ * producer and written by a dedicated I/O thread into memory mapped chunks of the file. If all
+ * slots are in use the frame is dropped.
+ *
+ * Container layout (little endian):
+ * <pre>
+ * file header:  magic "VHDRRAW1" (8 bytes), version (int), width (int), height (int)
+ * every frame:  frame header - magic 0x46524D45 (int), frame index (long), timestamp in ns (long),
+ *                              iso (int), exposure time in ns (long), plane size in bytes (int)
+ *               Y plane (width * height bytes)
+ *               U plane, V plane (width/2 * height/2 bytes each)
+ * </pre>
+ */
+public class RawPairWriter {
+
+    private static final String TAG = "RawPairWriter";
+
+    private static final byte[] FILE_MAGIC = {'V', 'H', 'D', 'R', 'R', 'A', 'W', '1'};
+    private static final int VERSION = 1;
+    private static final int FILE_HEADER_SIZE = FILE_MAGIC.length + 3 * 4;
+    public static final int FRAME_MAGIC = 0x46524D45;
+    public static final int FRAME_HEADER_SIZE = 4 + 8 + 8 + 4 + 8 + 4;
+
+    //the file is mapped in chunks of this size
+    private static final int CHUNK_SIZE = 64 * 1024 * 1024;
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFrameSize;
+
+    /* preallocated frame slots, handed between producer and I/O thread by index */
+    private final ByteBuffer[] mSlots;
+    private final long[] mSlotFrameIndex;
+    private final long[] mSlotTimestamps;
+    private final int[] mSlotIsos;
+    private final long[] mSlotExposures;
+    private final BlockingQueue<Integer> mFreeSlots;
+    private final BlockingQueue<Integer> mFilledSlots;
+
+    /* file state, only touched by the I/O thread while running */
+    private RandomAccessFile mFile;
+    private FileChannel mChannel;
+    private MappedByteBuffer mChunk;
+    private long mChunkStart;
+    private long mFileLength;
+
+    private Thread mIoThread;
+    private volatile boolean mRunning = false;
+
+    /* statistics */
+    private volatile long mWrittenFrames = 0;
+    private volatile long mWrittenBytes = 0;
+    private volatile long mDroppedFrames = 0;
+    private volatile long mIoTimeNs = 0;
+
+    /**
+     * @param width of the frames
+     * @param height of the frames
+     * @param queueCapacity number of frames that can wait for the I/O thread
+     */
+    public RawPairWriter(int width, int height, int queueCapacity){
+        mWidth = width;
+        mHeight = height;
+        mFrameSize = width * height + 2 * (width / 2) * (height / 2);
+
+        mSlots = new ByteBuffer[queueCapacity];
+        mSlotFrameIndex = new long[queueCapacity];
+        mSlotTimestamps = new long[queueCapacity];
+        mSlotIsos = new int[queueCapacity];
+        mSlotExposures = new long[queueCapacity];
+        mFreeSlots = new ArrayBlockingQueue<>(queueCapacity);
+        mFilledSlots = new ArrayBlockingQueue<>(queueCapacity);
+        for(int i = 0; i < queueCapacity; i++){
+            mSlots[i] = ByteBuffer.allocateDirect(mFrameSize);
+            mFreeSlots.add(i);
+        }
+    }
+
+    /**
+     * Open the output file and start the I/O thread
+     */
+    public synchronized void start(File file) throws IOException {
+        if(mRunning) throw new IllegalStateException("already writing");
+
+        mFile = new RandomAccessFile(file, "rw");
+        mChannel = mFile.getChannel();
+        mChunkStart = 0;
+        mFileLength = 0;
+        mapChunk(0);
+
+        mChunk.put(FILE_MAGIC);
+        mChunk.putInt(VERSION);
+        mChunk.putInt(mWidth);
+        mChunk.putInt(mHeight);
+        mFileLength = FILE_HEADER_SIZE;
+
+        //slots submitted after the last stop were never written
+        mFilledSlots.drainTo(mFreeSlots);
+
+        mWrittenFrames = 0;
+        mWrittenBytes = 0;
+        mDroppedFrames = 0;
+        mIoTimeNs = 0;
+
+        mRunning = true;
+        mIoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "RawPairWriter");
+        mIoThread.start();
+    }
+
+    /**
+     * Get a free slot to copy a frame into.
+     * @return slot index or -1 if the I/O thread is behind and the frame has to be dropped
+     */
+    public int acquireSlot(){
+        if(!mRunning) return -1;
+        Integer slot = mFreeSlots.poll();
+        if(slot == null){
+            mDroppedFrames++;
+            return -1;
+        }
+        mSlots[slot].clear();
+        return slot;
+    }
+
+    /**
+     * @return buffer of the slot, the Y plane followed by the U and V planes has to be put into it
+     */
+    public ByteBuffer getSlotBuffer(int slot){
+        return mSlots[slot];
+    }
+
+    /**
+     * Hand a filled slot to the I/O thread
+     */
+    public void submitSlot(int slot, long frameIndex, long timestamp, int iso, long exposure){
+        mSlotFrameIndex[slot] = frameIndex;
+        mSlotTimestamps[slot] = timestamp;
+        mSlotIsos[slot] = iso;
+        mSlotExposures[slot] = exposure;
+        mFilledSlots.add(slot);
+    }
+
+    private void writeLoop(){
+        while(mRunning || !mFilledSlots.isEmpty()){
+            Integer slot;
+            try {
+                slot = mFilledSlots.poll(10, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if(slot == null) continue;
+
+            long start = System.nanoTime();
+            try {
+                writeFrame(slot);
+            } catch (IOException e) {
+                Log.e(TAG, "writing frame failed: " + e.getMessage());
+                mDroppedFrames++;
+            }
+            mIoTimeNs += System.nanoTime() - start;
+            mFreeSlots.add(slot);
+        }
+    }
+
+    private void writeFrame(int slot) throws IOException {
+        int recordSize = FRAME_HEADER_SIZE + mFrameSize;
+        if(mFileLength + recordSize > mChunkStart + CHUNK_SIZE) mapChunk(mFileLength);
+
+        mChunk.position((int) (mFileLength - mChunkStart));
+        mChunk.putInt(FRAME_MAGIC);
+        mChunk.putLong(mSlotFrameIndex[slot]);
+        mChunk.putLong(mSlotTimestamps[slot]);
+        mChunk.putInt(mSlotIsos[slot]);
+        mChunk.putLong(mSlotExposures[slot]);
+        mChunk.putInt(mFrameSize);
+
+        ByteBuffer data = mSlots[slot];
+        data.flip();
+        mChunk.put(data);
+
+        mFileLength += recordSize;
+        mWrittenFrames++;
+        mWrittenBytes += recordSize;
+    }
+
+    private void mapChunk(long position) throws IOException {
+        mChunkStart = position;
+        mChunk = mChannel.map(FileChannel.MapMode.READ_WRITE, position, CHUNK_SIZE);
+        mChunk.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Write all queued frames, stop the I/O thread and cut the file to its written length
+     */
+    public synchronized void stop(){
+        if(!mRunning) return;
+        mRunning = false;
+        try {
+            mIoThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            mChunk.force();
+            mChunk = null;
+            mChannel.truncate(mFileLength);
+            mFile.close();
+        } catch (IOException e) {
+            Log.e(TAG, "closing raw file failed: " + e.getMessage());
+        }
+        Log.d(TAG, getStatistics());
+    }
+
+    /* STATISTICS */
+
+    public int getFrameSize(){
+        return mFrameSize;
+    }
+
+    public long getWrittenFrames(){
+        return mWrittenFrames;
+    }
+
+    public long getDroppedFrames(){
+        return mDroppedFrames;
+    }
+
+    public int getQueueDepth(){
+        return mFilledSlots.size();
+    }
+
+    /**
+     * @return write throughput of the I/O thread in MB/s
+     */
+    public float getThroughput(){
+        long time = mIoTimeNs;
+        if(time == 0) return 0;
+        return mWrittenBytes * 1000f / time;
+    }
+
+    public String getStatistics(){
+        return "raw writer: " + mWrittenFrames + " frames written, " + mDroppedFrames + " dropped, " +
+                String.format("%.1f", getThroughput()) + " MB/s, queue depth " + getQueueDepth();
+    }
+}
@@ -0,0 +1,23 @@
+package videohdr.recorder;
+
+import android.view.Surface;
+
+/**
+ * Consumer of camera frames that stores them while a recording is running. The surface stays
+ * valid between recordings, start and stop only decide whether frames are kept.
+ */
+public interface RecordingSink {
+
+    /**
+     * @return surface the camera delivers the frames to, null if the sink could not be set up
+     */
+    Surface getRecorderSurface();
+
+    void start() throws IllegalStateException;
+
+    void stop() throws IllegalStateException;
+
+    void release();
+
+    String getStatistics();
+}
@@ -0,0 +1,29 @@
+package videohdr.recorder;
+
+import android.media.MediaFormat;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination of encoded frames while recording. One writer is opened per recording.
+ */
+public interface SampleWriter {
+
+    /**
+     * Open a new output file, the first sample written afterwards is a key frame
+     * @param file output file
+     * @param format format of the encoded stream
+     * @param orientationHint rotation of the frames in degrees
+     */
+    void open(File file, MediaFormat format, int orientationHint) throws IOException;
+
+    void writeSample(ByteBuffer data, int offset, int size, long presentationTimeUs,
+                     boolean keyFrame);
+
+    /**
+     * Finish the current output file
+     */
+    void close();
+}
@@ -0,0 +1,375 @@
+package videohdr.recorder;
+
+import android.media.MediaFormat;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits a recording into segment files "<name>_001.mp4", "<name>_002.mp4", ... A new segment is
+ * started at the first key frame after the current one reached the maximum duration or size,
+ * so every segment can be played on its own and a crash only loses the open segment.
+ *
+ * The writer of the next segment is created and opened ahead of time on a background thread,
+ * finished segments are closed there as well. Writing on the encoder thread therefore doesn't
+ * wait for a file to be created or finalized, unless the background thread falls a whole
+ * segment behind. The thread belongs to the writer and serves all of its recordings until
+ * {@link #release()}. Every finished segment is added to the index file "<name>.segments": one
+ * line per segment with file name, start time and duration in us, frames and bytes. Everything
+ * the background thread needs is kept in a {@link Recording} of its own, so segments of a
+ * recording are finalized into its index even after the next recording was opened.
+ *
+ * The effect on stop latency and write stalls depends on the storage and the muxer of the
+ * device, {@link VideoRecorder#getStatistics()} reports both per recording.
+ */
+public class SegmentedSampleWriter implements SampleWriter {
+
+    private static final String TAG = "SegmentedSampleWriter";
+
+    /**
+     * Creates the writer of every segment
+     */
+    public interface Factory {
+        SampleWriter create();
+    }
+
+    /**
+     * Called on the background thread when a segment file is complete
+     */
+    public interface Listener {
+        void onSegmentFinished(Segment segment);
+    }
+
+    /**
+     * A finished segment file
+     */
+    public static class Segment {
+        public final File file;
+        public final long startTimeUs;
+        public final long durationUs;
+        public final int frames;
+        public final long bytes;
+
+        Segment(File file, long startTimeUs, long durationUs, int frames, long bytes){
+            this.file = file;
+            this.startTimeUs = startTimeUs;
+            this.durationUs = durationUs;
+            this.frames = frames;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString(){
+            return file.getName() + " " + startTimeUs + " " + durationUs + " " + frames + " " + bytes;
+        }
+    }
+
+    /**
+     * State of one recording shared with the background thread
+     */
+    private static class Recording {
+        final File directory;
+        final String baseName;
+        final File indexFile;
+        final MediaFormat format;
+        final int orientation;
+        //written on the thread calling open() and writeSample()
+        int segmentNumber = 0;
+        //writer of the next segment, opened in the background, guarded by this
+        SampleWriter next;
+        File nextFile;
+        boolean preparing = false;
+        //finalized segments, guarded by the list
+        final List<Segment> segments = new ArrayList<>();
+
+        Recording(File directory, String baseName, MediaFormat format, int orientation){
+            this.directory = directory;
+            this.baseName = baseName;
+            this.indexFile = new File(directory, baseName + ".segments");
+            this.format = format;
+            this.orientation = orientation;
+        }
+
+        File nextSegmentFile(){
+            segmentNumber++;
+            return new File(directory, String.format("%s_%03d.mp4", baseName, segmentNumber));
+        }
+    }
+
+    private final Factory mFactory;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private volatile Listener mListener;
+
+    /* RECORDING, written on the thread calling open() and writeSample() */
+    //current or last recording, read by getSegments()
+    private volatile Recording mRecording;
+    private SampleWriter mCurrent;
+    private File mCurrentFile;
+    private long mSegmentStartUs;
+    private long mLastTimestampUs;
+    private int mSegmentFrames;
+    private long mSegmentBytes;
+
+    /* BACKGROUND THREAD, prepares the next and finalizes the previous segment */
+    private final HandlerThread mSegmentThread;
+    private final Handler mSegmentHandler;
+    //a recording is open, written on the thread calling open() and close()
+    private boolean mOpen = false;
+
+    /* STATISTICS */
+    //rolls where the next segment was not ready and the writing thread had to wait for it
+    private volatile int mWaitingRolls = 0;
+    private volatile long mLastRollTimeUs = 0;
+    private volatile long mMaxRollTimeUs = 0;
+
+    /**
+     * @param factory creates the writer of every segment
+     * @param maxDurationUs maximum duration of a segment, 0 for no limit
+     * @param maxBytes maximum size of a segment, 0 for no limit
+     */
+    public SegmentedSampleWriter(Factory factory, long maxDurationUs, long maxBytes){
+        mFactory = factory;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+
+        mSegmentThread = new HandlerThread("SegmentThread");
+        mSegmentThread.start();
+        mSegmentHandler = new Handler(mSegmentThread.getLooper());
+    }
+
+    public void setListener(Listener listener){
+        mListener = listener;
+    }
+
+    /**
+     * Start a segmented recording
+     * @param file name of the recording, the segment number is added to it
+     */
+    @Override
+    public void open(File file, MediaFormat format, int orientationHint) throws IOException {
+        String name = file.getName();
+        int extension = name.lastIndexOf('.');
+        Recording recording = new Recording(file.getParentFile(),
+                extension > 0 ? name.substring(0, extension) : name, format, orientationHint);
+        mRecording = recording;
+
+        mCurrentFile = recording.nextSegmentFile();
+        mCurrent = mFactory.create();
+        mCurrent.open(mCurrentFile, format, orientationHint);
+        mOpen = true;
+        mSegmentFrames = 0;
+        mSegmentBytes = 0;
+        prepareNextSegment(recording);
+    }
+
+    @Override
+    public void writeSample(ByteBuffer data, int offset, int size, long presentationTimeUs,
+                            boolean keyFrame) {
+        if(mCurrent == null) return;
+
+        if(keyFrame && mSegmentFrames > 0 &&
+                ((mMaxDurationUs > 0 && presentationTimeUs - mSegmentStartUs >= mMaxDurationUs) ||
+                (mMaxBytes > 0 && mSegmentBytes >= mMaxBytes))) {
+            rollSegment();
+            if(mCurrent == null) return;
+        }
+
+        if(mSegmentFrames == 0) mSegmentStartUs = presentationTimeUs;
+        mCurrent.writeSample(data, offset, size, presentationTimeUs, keyFrame);
+        mLastTimestampUs = presentationTimeUs;
+        mSegmentFrames++;
+        mSegmentBytes += size;
+    }
+
+    private void rollSegment(){
+        long start = System.nanoTime();
+        Recording recording = mRecording;
+        finishSegment(recording);
+
+        SampleWriter next;
+        File nextFile;
+        synchronized (recording) {
+            if(recording.preparing) mWaitingRolls++;
+            while(recording.preparing) {
+                try {
+                    recording.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            next = recording.next;
+            nextFile = recording.nextFile;
+            recording.next = null;
+            recording.nextFile = null;
+        }
+
+        //preparing failed, try once more here
+        if(next == null) {
+            nextFile = recording.nextSegmentFile();
+            next = mFactory.create();
+            try {
+                next.open(nextFile, recording.format, recording.orientation);
+            } catch (IOException e) {
+                Log.e(TAG, "could not open segment " + nextFile + ", recording stopped");
+                mCurrent = null;
+                return;
+            }
+        }
+
+        mCurrent = next;
+        mCurrentFile = nextFile;
+        mSegmentFrames = 0;
+        mSegmentBytes = 0;
+        prepareNextSegment(recording);
+
+        mLastRollTimeUs = (System.nanoTime() - start) / 1000;
+        if(mLastRollTimeUs > mMaxRollTimeUs) mMaxRollTimeUs = mLastRollTimeUs;
+    }
+
+    /* open the writer of the following segment in the background */
+    private void prepareNextSegment(final Recording recording){
+        final File file = recording.nextSegmentFile();
+        synchronized (recording) {
+            recording.preparing = true;
+        }
+        mSegmentHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                SampleWriter writer = mFactory.create();
+                try {
+                    writer.open(file, recording.format, recording.orientation);
+                } catch (IOException e) {
+                    Log.e(TAG, "could not prepare segment " + file);
+                    writer = null;
+                }
+                synchronized (recording) {
+                    recording.next = writer;
+                    recording.nextFile = file;
+                    recording.preparing = false;
+                    recording.notifyAll();
+                }
+            }
+        });
+    }
+
+    /* hand the current segment to the background thread for finalization */
+    private void finishSegment(final Recording recording){
+        final SampleWriter writer = mCurrent;
+        final File file = mCurrentFile;
+        final Segment segment = new Segment(file, mSegmentStartUs,
+                mLastTimestampUs - mSegmentStartUs, mSegmentFrames, mSegmentBytes);
+        final boolean empty = mSegmentFrames == 0;
+        mCurrent = null;
+
+        mSegmentHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                writer.close();
+                if(empty) {
+                    file.delete();
+                    return;
+                }
+                synchronized (recording.segments) {
+                    recording.segments.add(segment);
+                }
+                appendToIndex(recording.indexFile, segment);
+                Listener listener = mListener;
+                if(listener != null) listener.onSegmentFinished(segment);
+            }
+        });
+    }
+
+    private static void appendToIndex(File indexFile, Segment segment){
+        try {
+            FileWriter index = new FileWriter(indexFile, true);
+            index.write(segment.toString() + "\n");
+            index.close();
+        } catch (IOException e) {
+            Log.e(TAG, "could not update segment index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Finish the recording. The last segment is finalized in the background, the prepared
+     * next segment is discarded.
+     */
+    @Override
+    public void close() {
+        if(!mOpen) return;
+        mOpen = false;
+        final Recording recording = mRecording;
+        if(mCurrent != null) finishSegment(recording);
+
+        //runs after the preparation of the recording, so its next segment is set by now
+        mSegmentHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                SampleWriter next;
+                File nextFile;
+                synchronized (recording) {
+                    next = recording.next;
+                    nextFile = recording.nextFile;
+                    recording.next = null;
+                    recording.nextFile = null;
+                }
+                if(next != null) {
+                    next.close();
+                    nextFile.delete();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the background thread once the pending segments are finalized. The writer can't be
+     * opened again afterwards.
+     */
+    public void release() {
+        close();
+        mSegmentThread.quitSafely();
+    }
+
+    /* GETTER */
+
+    /**
+     * @return segments of the current or last recording that are finalized
+     */
+    public List<Segment> getSegments(){
+        Recording recording = mRecording;
+        if(recording == null) return new ArrayList<>();
+        synchronized (recording.segments) {
+            return new ArrayList<>(recording.segments);
+        }
+    }
+
+    public int getWaitingRollCount(){
+        return mWaitingRolls;
+    }
+
+    /**
+     * @return time switching to the next segment took on the writing thread in us
+     */
+    public long getLastRollTime(){
+        return mLastRollTimeUs;
+    }
+
+    public long getMaxRollTime(){
+        return mMaxRollTimeUs;
+    }
+
+    @Override
+    public String toString(){
+        Recording recording = mRecording;
+        return "segments: " + (recording != null ? recording.segmentNumber : 0) + " started, roll " + mLastRollTimeUs + "us (max " +
+                mMaxRollTimeUs + "us), " + mWaitingRolls + " waited for the next segment";
+    }
+}
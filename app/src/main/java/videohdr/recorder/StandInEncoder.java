@@ -0,0 +1,162 @@
+package videohdr.recorder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in for a hardware encoder. Instead of an input surface, frames are submitted
+ * with {@link #submitFrame(long)}. A worker thread "encodes" them after a configurable
+ * latency into dummy payloads of a fixed size, with a key frame every
+ * {@code keyFrameInterval} frames. Used to exercise the recording pipeline logic
+ * without device codecs, on a plain JVM or as a {@link StandInVideoEncoder} in the app.
+ */
+public class StandInEncoder implements FrameEncoder {
+
+    private static final int QUEUE_CAPACITY = 64;
+
+    private final int mFrameSize;
+    private final int mKeyFrameInterval;
+    private final long mEncodeLatencyNs;
+    private final int mWidth;
+    private final int mHeight;
+
+    private final BlockingQueue<Long> mInputQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final ByteBuffer mPayload;
+
+    private volatile Listener mListener;
+    private volatile boolean mRunning = false;
+    private volatile boolean mKeyFrameRequested = false;
+    private volatile int mBitRate;
+    private Thread mWorker;
+
+    private long mFrameCounter = 0;
+    private long mDroppedInputs = 0;
+
+    /**
+     * @param width of the frames
+     * @param height of the frames
+     * @param frameSize size of every encoded frame in bytes
+     * @param keyFrameInterval number of frames between key frames
+     * @param encodeLatencyNs simulated time to encode a frame
+     */
+    public StandInEncoder(int width, int height, int frameSize, int keyFrameInterval,
+                          long encodeLatencyNs){
+        mFrameSize = frameSize;
+        mKeyFrameInterval = keyFrameInterval;
+        mEncodeLatencyNs = encodeLatencyNs;
+        mWidth = width;
+        mHeight = height;
+        mPayload = ByteBuffer.allocateDirect(frameSize);
+    }
+
+    /**
+     * Feed a frame to the encoder. If the encoder falls behind by more than its queue capacity
+     * the frame is dropped.
+     * @param presentationTimeUs timestamp of the frame
+     * @return false if the frame was dropped
+     */
+    public boolean submitFrame(long presentationTimeUs){
+        if(!mRunning) return false;
+        boolean accepted = mInputQueue.offer(presentationTimeUs);
+        if(!accepted) mDroppedInputs++;
+        return accepted;
+    }
+
+    /**
+     * @return number of frames waiting to be encoded
+     */
+    public int getQueuedFrameCount(){
+        return mInputQueue.size();
+    }
+
+    public long getDroppedInputCount(){
+        return mDroppedInputs;
+    }
+
+    public int getBitRate(){
+        return mBitRate;
+    }
+
+    public int getWidth(){
+        return mWidth;
+    }
+
+    public int getHeight(){
+        return mHeight;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    @Override
+    public void start() {
+        mRunning = true;
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeLoop();
+            }
+        }, "StandInEncoder");
+        mWorker.start();
+    }
+
+    private void encodeLoop(){
+        Listener listener;
+        while(mRunning){
+            Long presentationTime;
+            try {
+                presentationTime = mInputQueue.poll(10, TimeUnit.MILLISECONDS);
+                if(presentationTime == null) continue;
+                if(mEncodeLatencyNs > 0) {
+                    TimeUnit.NANOSECONDS.sleep(mEncodeLatencyNs);
+                }
+            } catch (InterruptedException e) {
+                break;
+            }
+
+            boolean keyFrame = mKeyFrameRequested || mFrameCounter % mKeyFrameInterval == 0;
+            mKeyFrameRequested = false;
+            mFrameCounter++;
+
+            mPayload.clear();
+            mPayload.putLong(0, mFrameCounter);
+
+            listener = mListener;
+            if(listener != null) {
+                listener.onEncodedFrame(mPayload, 0, mFrameSize, presentationTime, keyFrame);
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+        mRunning = false;
+        if(mWorker != null) {
+            try {
+                mWorker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public void release() {
+        stop();
+        mListener = null;
+        mInputQueue.clear();
+    }
+
+    @Override
+    public void requestKeyFrame() {
+        mKeyFrameRequested = true;
+    }
+
+    @Override
+    public void setBitRate(int bitRate) {
+        mBitRate = bitRate;
+    }
+}
@@ -0,0 +1,42 @@
+package videohdr.recorder;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+/**
+ * A {@link StandInEncoder} in place of the {@link MediaCodecEncoder} of a {@link VideoRecorder}.
+ * Its stream has the format of an AVC stream of the frame size.
+ */
+public class StandInVideoEncoder extends StandInEncoder implements VideoEncoder {
+
+    private final MediaFormat mFormat;
+    private volatile VideoEncoder.Listener mVideoListener;
+
+    /**
+     * @see StandInEncoder#StandInEncoder(int, int, int, int, long)
+     */
+    public StandInVideoEncoder(int width, int height, int frameSize, int keyFrameInterval,
+                               long encodeLatencyNs){
+        super(width, height, frameSize, keyFrameInterval, encodeLatencyNs);
+        mFormat = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+    }
+
+    @Override
+    public Surface getInputSurface() {
+        return null;
+    }
+
+    @Override
+    public void setListener(VideoEncoder.Listener listener) {
+        mVideoListener = listener;
+        super.setListener(listener);
+    }
+
+    /* the format is known up front, it is reported before the encoder thread starts */
+    @Override
+    public void start() {
+        VideoEncoder.Listener listener = mVideoListener;
+        if(listener != null) listener.onOutputFormatChanged(mFormat);
+        super.start();
+    }
+}
@@ -0,0 +1,72 @@
+package videohdr.recorder;
+
+import android.util.Size;
+
+/**
+ * Pixels per second every processing stage of the device can handle. Used by
+ * {@link VideoSizeConfiguration#chooseSizes} to pick frame sizes that keep all stages within
+ * the frame time. The defaults are conservative values for the phones this app was developed on,
+ * they can be replaced by a device profile or refined by measurements of a previous session.
+ */
+public class ThroughputProfile {
+
+    public enum Stage { FUSION, METERING, ENCODER }
+
+    /* default budgets in pixels per second */
+    private static final float DEFAULT_FUSION_RATE = 50e6f;
+    private static final float DEFAULT_METERING_RATE = 10e6f;
+    private static final float DEFAULT_ENCODER_RATE = 250e6f;
+
+    //a stage dropping more than this share of frames runs at its limit
+    private static final float SATURATION_DROP_RATIO = 0.02f;
+
+    private final float[] mPixelsPerSecond = new float[Stage.values().length];
+
+    public ThroughputProfile(float fusionRate, float meteringRate, float encoderRate){
+        mPixelsPerSecond[Stage.FUSION.ordinal()] = fusionRate;
+        mPixelsPerSecond[Stage.METERING.ordinal()] = meteringRate;
+        mPixelsPerSecond[Stage.ENCODER.ordinal()] = encoderRate;
+    }
+
+    public static ThroughputProfile createDefault(){
+        return new ThroughputProfile(DEFAULT_FUSION_RATE, DEFAULT_METERING_RATE, DEFAULT_ENCODER_RATE);
+    }
+
+    /**
+     * @return pixels per second the stage can process
+     */
+    public synchronized float getBudget(Stage stage){
+        return mPixelsPerSecond[stage.ordinal()];
+    }
+
+    public synchronized void setBudget(Stage stage, float pixelsPerSecond){
+        mPixelsPerSecond[stage.ordinal()] = pixelsPerSecond;
+    }
+
+    /**
+     * Refine the budget of a stage with the throughput it reached. A stage that dropped frames
+     * ran at its limit, the reached rate becomes its budget. Otherwise the reached rate is only
+     * a lower bound.
+     * @param size frame size the stage processed
+     * @param framesPerSecond processed frames per second
+     * @param dropRatio dropped frames / arrived frames
+     */
+    public synchronized void updateFromMeasurement(Stage stage, Size size, float framesPerSecond,
+                                                   float dropRatio){
+        if(framesPerSecond <= 0) return;
+        float rate = (float) size.getWidth() * size.getHeight() * framesPerSecond;
+        int i = stage.ordinal();
+        if(dropRatio > SATURATION_DROP_RATIO) {
+            mPixelsPerSecond[i] = rate;
+        } else if(rate > mPixelsPerSecond[i]) {
+            mPixelsPerSecond[i] = rate;
+        }
+    }
+
+    @Override
+    public synchronized String toString(){
+        return "throughput profile: fusion " + mPixelsPerSecond[Stage.FUSION.ordinal()] / 1e6f +
+                " MP/s, metering " + mPixelsPerSecond[Stage.METERING.ordinal()] / 1e6f +
+                " MP/s, encoder " + mPixelsPerSecond[Stage.ENCODER.ordinal()] / 1e6f + " MP/s";
+    }
+}
@@ -0,0 +1,30 @@
+package videohdr.recorder;
+
+import android.media.MediaFormat;
+import android.view.Surface;
+
+/**
+ * An encoder that runs for the whole lifetime of the recording pipeline. Frames are fed to it
+ * continuously, recording only decides whether the encoded frames are written to a file.
+ * This way the input surface stays valid across recordings.
+ *
+ * Implemented by {@link MediaCodecEncoder} on the device and by {@link StandInVideoEncoder} to
+ * exercise the pipeline without a hardware codec.
+ */
+public interface VideoEncoder extends FrameEncoder {
+
+    /**
+     * @return surface the camera renders the frames to encode into, null if the encoder
+     * is fed differently
+     */
+    Surface getInputSurface();
+
+    void setListener(Listener listener);
+
+    interface Listener extends FrameEncoder.Listener {
+        /**
+         * Called before the first encoded frame with the format of the encoded stream
+         */
+        void onOutputFormatChanged(MediaFormat format);
+    }
+}
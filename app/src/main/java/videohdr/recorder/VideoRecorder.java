@@ -1,7 +1,7 @@
 package videohdr.recorder;
 
 import android.app.Activity;
-import android.media.MediaRecorder;
+import android.media.MediaFormat;
 import android.media.MediaScannerConnection;
 import android.net.Uri;
 import android.os.Environment;
@@ -12,21 +12,26 @@ import android.view.Surface;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
+import videohdr.metrics.Gauge;
+import videohdr.metrics.StageMetrics;
+import videohdr.trace.FrameTracer;
+
 /**
  * Created by Andreas Enz on 13.07.2015.
  *
  * Wrapper Class for whatever is used to capture frames
- * For now this is implemented with {@link MediaRecorder} for simplicity. Usage of this
- * wrapper class is the same as for MediaRecorder detailed on Android API.
- * Later on I might use {@link android.media.MediaCodec} for more in depth control over
- * the video frames.
+ * Implemented with a {@link VideoEncoder} ({@link android.media.MediaCodec} on the device)
+ * that keeps running for the whole lifetime of the VideoRecorder, and a {@link SampleWriter}
+ * that is opened and closed per recording. Starting and stopping a recording therefore only
+ * changes where encoded frames go, the input surface stays valid.
  *
- * This class takes care of storing the file and configuring the MediaRecorder
+ * This class takes care of storing the file and configuring the encoder
  */
-public class VideoRecorder {
+public class VideoRecorder implements RecordingSink, VideoEncoder.Listener {
     private static final String TAG = "VideoRecorder";
 
     /* Helper stuff for the screen rotations */
@@ -39,88 +44,291 @@ public class VideoRecorder {
         ORIENTATIONS.append(Surface.ROTATION_270, 180);
     }
 
+    private static final int DEFAULT_FRAME_RATE = 30;
+    public static final int DEFAULT_BIT_RATE = 100000000;
+    //lowest bitrate a BitrateController goes down to for static scenes
+    public static final int MIN_BIT_RATE = 10000000;
+
+    //latencies above this can not be caused by the encoder, the timestamps use another clock
+    private static final long MAX_PLAUSIBLE_LATENCY_US = 1000000;
+
+    /* a new segment file is started after this duration or size, at the next key frame */
+    private static final long SEGMENT_DURATION_US = 60000000;
+    private static final long SEGMENT_SIZE = 512 * 1024 * 1024;
+
+    //writing a sample longer than this blocks the encoder thread for a noticeable time
+    private static final long WRITE_STALL_US = 8000;
+
     private Activity mAssociatedActivity;
 
-    private MediaRecorder mRecorder; //one recorder per videoRecorder
+    /*one encoder per videoRecorder, null if it could not be set up or after release(). read
+    * into a local by the encoder callbacks, release() runs on another thread*/
+    private volatile VideoEncoder mEncoder;
+    private final SampleWriter mWriter;
+    //segment files are named by the start of the recording and registered when they are finished
+    private final boolean mSegmented;
+    private final int mOrientation;
 
     /* File storage and naming, timestamp added later on */
     private static final File directoryPath = Environment.getExternalStoragePublicDirectory(
             Environment.DIRECTORY_DCIM + "/Camera/");
     private static final File tempVideoFile = new File(directoryPath,"tmp.mp4");
+    private static final File tempMetadataFile = new File(directoryPath,"tmp.meta");
+
+    /* RECORDING STATE, guarded by mWriterLock */
+    private final Object mWriterLock = new Object();
+    //name of the current recording if segmented, VID_<timestamp of start()>
+    private String mRecordingName;
+    private MediaFormat mOutputFormat;
+    private boolean mRecording = false;
+    private boolean mWaitingForKeyFrame = false;
+    //most recent encoded frames while not recording, null if pre-roll is disabled
+    private PreRollBuffer mPreRoll = null;
+    //capture values of every frame, written next to the video if set
+    private FrameMetadataWriter mFrameMetadata = null;
+    //adapts the encoder bitrate to the content, fixed DEFAULT_BIT_RATE if null
+    private volatile BitrateController mBitrateController = null;
+
+    /* ENCODER STATISTICS, written on the encoder thread */
+    private volatile long mEncodedFrames = 0;
+    private volatile long mWrittenFrames = 0;
+    private volatile long mLastTimestampUs = -1;
+    private volatile long mFrameIntervalUs = 0;
+    private volatile long mLastLatencyUs = 0;
+    private volatile long mMaxLatencyUs = 0;
+    private long mLatencySumUs = 0;
+    private volatile long mLatencyCount = 0;
+
+    /* RECORDING TRANSITION STATISTICS */
+    private long mStartRequestTime = 0;
+    private volatile long mLastStartLatencyUs = 0;
+    private volatile long mLastStopDurationUs = 0;
+    //frames encoded after start() but discarded while waiting for a key frame
+    private volatile int mLastStartSkippedFrames = 0;
+    //end of the last stop() and last frame written before it, -1 before the first stop
+    private long mStopTime = -1;
+    private long mStoppedAtUs = -1;
+    private long mLastWrittenUs = -1;
+    //time from the end of stop() until the next recording wrote its first frame and the frames
+    //the encoder produced in between that are in neither file
+    private volatile long mLastRestartGapUs = 0;
+    private volatile long mLastRestartLostFrames = 0;
+
+    /* WRITE STATISTICS, time the encoder thread is blocked by file I/O */
+    private volatile long mLastWriteTimeUs = 0;
+    private volatile long mMaxWriteTimeUs = 0;
+    private volatile long mWriteStalls = 0;
+
+    /* METRICS: queue wait is the time from capture to the encoded frame, processing the time the
+    * encoder thread spends on an encoded frame, reconfigurations are bitrate changes */
+    private final StageMetrics mMetrics = new StageMetrics("encoder");
+    private final Gauge mBitRateGauge = mMetrics.createGauge("bitrate");
+    private final Gauge mQueueDepthGauge = mMetrics.createGauge("queue depth");
 
     public VideoRecorder (Activity activity, int rotation, Size recorderSize){
+        this(activity, rotation, recorderSize, DEFAULT_FRAME_RATE);
+    }
 
+    /**
+     * @param frameRate rate at which the camera delivers frames to the recorder surface
+     */
+    public VideoRecorder (Activity activity, int rotation, Size recorderSize, int frameRate){
+        this(activity, rotation,
+                createEncoder(recorderSize.getWidth(), recorderSize.getHeight(), frameRate),
+                new SegmentedSampleWriter(new SegmentedSampleWriter.Factory() {
+                    @Override
+                    public SampleWriter create() {
+                        return new Mp4SampleWriter();
+                    }
+                }, SEGMENT_DURATION_US, SEGMENT_SIZE));
+    }
+
+    /**
+     * Create a VideoRecorder with a specific encoder and writer, e.g. a
+     * {@link StandInVideoEncoder}
+     * @param encoder encoder that is started right away and runs until {@link #release()}
+     * @param writer destination of the encoded frames
+     */
+    public VideoRecorder (Activity activity, int rotation, VideoEncoder encoder, SampleWriter writer){
         mAssociatedActivity = activity;
-        mRecorder = new MediaRecorder();
+        mEncoder = encoder;
+        mWriter = writer;
+        mOrientation = ORIENTATIONS.get(rotation);
+
+        mSegmented = writer instanceof SegmentedSampleWriter;
+        if(mSegmented) {
+            ((SegmentedSampleWriter) writer).setListener(new SegmentedSampleWriter.Listener() {
+                @Override
+                public void onSegmentFinished(SegmentedSampleWriter.Segment segment) {
+                    Log.d(TAG, "segment finished: " + segment);
+                    scanFile(segment.file.getAbsolutePath());
+                }
+            });
+        }
+
+        if(mEncoder != null) {
+            mEncoder.setListener(this);
+            mEncoder.start();
+        }
+    }
+
+    private static VideoEncoder createEncoder(int width, int height, int frameRate){
         try {
-            setupRecorder(rotation, recorderSize.getWidth(), recorderSize.getHeight());
+            return new MediaCodecEncoder(width, height, frameRate, DEFAULT_BIT_RATE);
         } catch (IOException e) {
-            Log.d(TAG, "MediaRecorder setup failed");
+            Log.d(TAG, "Encoder setup failed");
             e.printStackTrace();
+            return null;
         }
     }
 
+    /**
+     * Keep the most recent encoded frames while not recording and put them at the beginning of
+     * the next recording.
+     * @param durationMs maximum pre-roll duration, 0 disables pre-roll
+     * @param memoryBytes preallocated memory for the encoded frames, limits the duration
+     *                    for high bitrates
+     * @param frameRate rate of the encoded frames, used to size the frame index
+     */
+    public void setPreRoll(long durationMs, int memoryBytes, int frameRate){
+        PreRollBuffer preRoll = null;
+        if(durationMs > 0) {
+            int maxFrames = (int) (durationMs * frameRate / 1000) + 1;
+            preRoll = new PreRollBuffer(memoryBytes, maxFrames, durationMs * 1000);
+        }
+        synchronized (mWriterLock) {
+            mPreRoll = preRoll;
+        }
+    }
 
     /**
-     * Set up MediaRecorder with predefined Values. Some of this function calls
-     * have to be in a specific order, which is detailed in the android API
-     * @param rotation screen rotation
-     * @param width of the frames
-     * @param height of the frames
-     * @throws IOException
+     * Write the capture values of every recorded frame into a sidecar file "VID_<timestamp>.meta"
+     * next to the video. The capture callback has to append to the same writer.
+     * @param metadata writer fed with the capture results, null to disable
      */
-    private void setupRecorder(int rotation, int width, int height) throws IOException {
+    public void setFrameMetadata(FrameMetadataWriter metadata){
+        synchronized (mWriterLock) {
+            mFrameMetadata = metadata;
+        }
+    }
 
-        mRecorder.setVideoSource(MediaRecorder.VideoSource.SURFACE);
-        //mRecorder.setProfile(CamcorderProfile.get(CamcorderProfile.QUALITY_TIME_LAPSE_HIGH));
-        mRecorder.setOutputFormat(MediaRecorder.OutputFormat.MPEG_4);
-        mRecorder.setOutputFile(tempVideoFile.getAbsolutePath());
-        Log.d(TAG, "outputfile set to: " + tempVideoFile);
-        mRecorder.setVideoEncodingBitRate(100000000);
-        mRecorder.setVideoFrameRate(30);
-        mRecorder.setVideoSize(width, height);
-        mRecorder.setVideoEncoder(MediaRecorder.VideoEncoder.H264);
-        int orientation = ORIENTATIONS.get(rotation);
-        mRecorder.setOrientationHint(orientation);
-        Log.d(TAG, "Thread prepare() is running on : " + Thread.currentThread().getName());
-        mRecorder.prepare();
+    /**
+     * Let the bitrate of the encoder follow the content, see {@link BitrateController}
+     * @param controller fed with every encoded frame, null for a fixed bitrate
+     */
+    public void setBitrateController(BitrateController controller){
+        mBitrateController = controller;
+        if(controller != null) mBitRateGauge.set(controller.getBitRate());
     }
 
     /**
      * This surface is used to receive output from the camera
-     * @return surface object where input to the video recorder can be given
+     * @return surface object where input to the video recorder can be given, null if the
+     * encoder could not be set up or the recorder is released
      */
+    @Override
     public Surface getRecorderSurface(){
-        return mRecorder.getSurface();
+        VideoEncoder encoder = mEncoder;
+        return encoder != null ? encoder.getInputSurface() : null;
     }
 
     /**
-     * start recoding a video
+     * start recoding a video. The file starts with the next key frame the encoder produces.
      * @throws IllegalStateException
      */
+    @Override
     public void start() throws IllegalStateException {
         Log.d(TAG, "Thread start() is running on : " +Thread.currentThread().getName());
-        mRecorder.start();
+        VideoEncoder encoder = mEncoder;
+        if(encoder == null) throw new IllegalStateException("no encoder, setup failed or released");
+        synchronized (mWriterLock) {
+            if(mRecording) throw new IllegalStateException("already recording");
+            mRecording = true;
+            mWaitingForKeyFrame = true;
+            mStartRequestTime = System.nanoTime();
+            mLastStartSkippedFrames = 0;
+            mRecordingName = newRecordingName();
+
+            //start the file with the pre-roll if it contains a key frame
+            long preRollStart = mPreRoll != null ? mPreRoll.getFirstKeyFrameTimestamp() : -1;
+            if(mOutputFormat != null && preRollStart >= 0) {
+                Log.d(TAG, mPreRoll.toString());
+                if(openWriter(preRollStart)) {
+                    int frames = mPreRoll.flushTo(mWriter);
+                    mWrittenFrames += frames;
+                    mWaitingForKeyFrame = false;
+                    onFirstFrameWritten(preRollStart);
+                    Log.d(TAG, frames + " pre-roll frames written");
+                    return;
+                }
+            }
+        }
+        encoder.requestKeyFrame();
     }
 
     /**
-     * Stop recording video. Reset the MediaRecorder to its initial state.
+     * Stop recording video. The encoder keeps running.
      * Name the video file with the timestamp when the recording ended and register the file
      * in the file system.
      * @throws IllegalStateException
      */
+    @Override
     public void stop() throws IllegalStateException {
 
-        mRecorder.stop();
-        mRecorder.reset();
+        long stopStart = System.nanoTime();
+        boolean hasWrittenFile;
+        boolean hasMetadata;
+        synchronized (mWriterLock) {
+            if(!mRecording) throw new IllegalStateException("not recording");
+            mRecording = false;
+            hasWrittenFile = !mWaitingForKeyFrame;
+            mWaitingForKeyFrame = false;
+            if(hasWrittenFile) mWriter.close();
+            hasMetadata = mFrameMetadata != null && mFrameMetadata.isOpen();
+            if(hasMetadata) mFrameMetadata.close();
+            if(hasWrittenFile) {
+                mStopTime = System.nanoTime();
+                mStoppedAtUs = mLastWrittenUs;
+            }
+        }
+        mLastStopDurationUs = (System.nanoTime() - stopStart) / 1000;
+
+        if(!hasWrittenFile) {
+            Log.d(TAG, "recording stopped before the first key frame, no file written");
+            return;
+        }
+
+        //segments already have their final name and are registered once they are finalized
+        if(mSegmented) {
+            Log.d(TAG, "recording " + mRecordingName + " stopped, " + mWriter);
+            return;
+        }
 
         //rename file with timestamp
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
-        String filePath = directoryPath + "/VID_" + timeStamp + ".mp4";
-        tempVideoFile.renameTo(new File(filePath));
+        String name = newRecordingName();
+        String filePath = directoryPath + "/" + name + ".mp4";
+        renameRecording(new File(filePath), hasMetadata ?
+                new File(directoryPath, name + ".meta") : null);
         Log.d(TAG, "Output video filepath correct? " + filePath);
+        scanFile(filePath);
+    }
 
-        //register file with MediaScanner
+    /**
+     * @return "VID_<timestamp>", with a counter added if a recording of the same second exists
+     */
+    private static String newRecordingName(){
+        String name = "VID_" + new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        String unique = name;
+        for(int i = 2; new File(directoryPath, unique + ".mp4").exists() ||
+                new File(directoryPath, unique + "_001.mp4").exists() ||
+                new File(directoryPath, unique + ".meta").exists(); i++) {
+            unique = name + "_" + i;
+        }
+        return unique;
+    }
+
+    /* register file with MediaScanner */
+    private void scanFile(String filePath){
         MediaScannerConnection.scanFile(
                 mAssociatedActivity,
                 new String[]{filePath},
@@ -135,10 +343,284 @@ public class VideoRecorder {
     }
 
     /**
-     * Release the MediaRecorder resources
+     * Rename the video and its sidecar together. The sidecar is renamed first, so once the video
+     * has its final name the matching metadata is in place as well. If the video can't be
+     * renamed the sidecar is moved back.
+     * @param metadataFile final name of the sidecar, null if there is none
      */
+    private static void renameRecording(File videoFile, File metadataFile){
+        if(metadataFile != null && !tempMetadataFile.renameTo(metadataFile)) {
+            Log.e(TAG, "could not rename metadata file, video stored without it");
+            metadataFile = null;
+        }
+        if(!tempVideoFile.renameTo(videoFile)) {
+            Log.e(TAG, "could not rename video file");
+            if(metadataFile != null) metadataFile.renameTo(tempMetadataFile);
+        }
+    }
+
+    /**
+     * Release the encoder resources
+     */
+    @Override
     public void release(){
-        mRecorder.release();
-        mRecorder = null;
+        synchronized (mWriterLock) {
+            if(mRecording && !mWaitingForKeyFrame) mWriter.close();
+            if(mFrameMetadata != null) mFrameMetadata.close();
+            mRecording = false;
+            if(mSegmented) ((SegmentedSampleWriter) mWriter).release();
+        }
+        //callbacks that are still running see no encoder from here on
+        VideoEncoder encoder = mEncoder;
+        mEncoder = null;
+        if(encoder == null) return;
+        encoder.stop();
+        encoder.release();
+    }
+
+    /* VideoEncoder.Listener METHODS, called on the encoder thread */
+
+    @Override
+    public void onOutputFormatChanged(MediaFormat format) {
+        synchronized (mWriterLock) {
+            mOutputFormat = format;
+        }
+    }
+
+    @Override
+    public void onEncodedFrame(ByteBuffer data, int offset, int size, long presentationTimeUs,
+                               boolean keyFrame) {
+        long start = System.nanoTime();
+        //the presentation time is the sensor timestamp in us, the tracer rounds the capture id to it
+        long frameId = presentationTimeUs * 1000;
+        FrameTracer.begin(FrameTracer.Stage.ENCODE, frameId);
+        updateEncoderStatistics(presentationTimeUs);
+
+        BitrateController controller = mBitrateController;
+        VideoEncoder encoder = mEncoder;
+        if(controller != null && encoder != null) {
+            int bitRate = controller.onEncodedFrame(size, presentationTimeUs);
+            if(bitRate > 0) {
+                encoder.setBitRate(bitRate);
+                mBitRateGauge.set(bitRate);
+                mMetrics.getReconfigurations().increment();
+            }
+        }
+
+        writeEncodedFrame(data, offset, size, presentationTimeUs, keyFrame);
+        mMetrics.getProcessingTime().recordSince(start);
+        mMetrics.getProcessedFrames().increment();
+        FrameTracer.end(FrameTracer.Stage.ENCODE, frameId);
+    }
+
+    private void writeEncodedFrame(ByteBuffer data, int offset, int size, long presentationTimeUs,
+                                   boolean keyFrame){
+        synchronized (mWriterLock) {
+            if(!mRecording) {
+                if(mPreRoll != null) mPreRoll.add(data, offset, size, presentationTimeUs, keyFrame);
+                return;
+            }
+
+            if(mWaitingForKeyFrame) {
+                if(!keyFrame || mOutputFormat == null) {
+                    mLastStartSkippedFrames++;
+                    mMetrics.getDroppedFrames().increment();
+                    return;
+                }
+                if(!openWriter(presentationTimeUs)) return;
+                mWaitingForKeyFrame = false;
+                onFirstFrameWritten(presentationTimeUs);
+            }
+            long start = System.nanoTime();
+            FrameTracer.begin(FrameTracer.Stage.WRITE, presentationTimeUs * 1000);
+            mWriter.writeSample(data, offset, size, presentationTimeUs, keyFrame);
+            FrameTracer.end(FrameTracer.Stage.WRITE, presentationTimeUs * 1000);
+            updateWriteStatistics(start);
+            mWrittenFrames++;
+            mLastWrittenUs = presentationTimeUs;
+        }
+    }
+
+    /* measure the start latency and the gap to the previous recording, called with mWriterLock */
+    private void onFirstFrameWritten(long firstTimestampUs){
+        long now = System.nanoTime();
+        mLastStartLatencyUs = (now - mStartRequestTime) / 1000;
+        mLastWrittenUs = firstTimestampUs;
+        if(mStopTime < 0) return;
+        mLastRestartGapUs = (now - mStopTime) / 1000;
+        long interval = mFrameIntervalUs;
+        mLastRestartLostFrames = interval > 0 ?
+                Math.max(0, (firstTimestampUs - mStoppedAtUs + interval / 2) / interval - 1) : 0;
+    }
+
+    private void updateWriteStatistics(long startTime){
+        long time = (System.nanoTime() - startTime) / 1000;
+        mLastWriteTimeUs = time;
+        if(time > mMaxWriteTimeUs) mMaxWriteTimeUs = time;
+        if(time > WRITE_STALL_US) mWriteStalls++;
+    }
+
+    /* must hold mWriterLock
+    * @param firstTimestampUs presentation time of the first frame written */
+    private boolean openWriter(long firstTimestampUs){
+        File videoFile = mSegmented ? new File(directoryPath, mRecordingName + ".mp4") : tempVideoFile;
+        File metadataFile = mSegmented ? new File(directoryPath, mRecordingName + ".meta") :
+                tempMetadataFile;
+        long start = System.nanoTime();
+        try {
+            mWriter.open(videoFile, mOutputFormat, mOrientation);
+            updateWriteStatistics(start);
+            Log.d(TAG, "outputfile set to: " + videoFile);
+        } catch (IOException e) {
+            Log.e(TAG, "could not open output file, recording stopped");
+            mRecording = false;
+            return false;
+        }
+
+        //a recording without metadata is still useful
+        if(mFrameMetadata != null) {
+            try {
+                mFrameMetadata.open(metadataFile, firstTimestampUs * 1000);
+            } catch (IOException e) {
+                Log.e(TAG, "could not open metadata file, recording without it");
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void onEncoderError(Exception e) {
+        Log.e(TAG, "encoder failed: " + e.getMessage());
+    }
+
+    /* the frame timestamps are set by the camera, which is assumed to use the monotonic clock */
+    private void updateEncoderStatistics(long presentationTimeUs){
+        mEncodedFrames++;
+        if(mLastTimestampUs >= 0 && presentationTimeUs > mLastTimestampUs) {
+            mFrameIntervalUs = presentationTimeUs - mLastTimestampUs;
+        }
+        mLastTimestampUs = presentationTimeUs;
+
+        long latency = System.nanoTime() / 1000 - presentationTimeUs;
+        if(latency < 0 || latency > MAX_PLAUSIBLE_LATENCY_US) return;
+        mLastLatencyUs = latency;
+        if(latency > mMaxLatencyUs) mMaxLatencyUs = latency;
+        mLatencySumUs += latency;
+        mLatencyCount++;
+        mMetrics.getQueueWait().record(latency * 1000);
+        mQueueDepthGauge.set(getEncodeQueueDepth());
+    }
+
+    /* GETTER */
+
+    public boolean isRecording(){
+        synchronized (mWriterLock) {
+            return mRecording;
+        }
+    }
+
+    public StageMetrics getMetrics(){
+        return mMetrics;
+    }
+
+    public long getEncodedFrameCount(){
+        return mEncodedFrames;
+    }
+
+    public long getWrittenFrameCount(){
+        return mWrittenFrames;
+    }
+
+    /**
+     * @return time between a frame being captured and leaving the encoder in us
+     */
+    public long getLastEncodeLatency(){
+        return mLastLatencyUs;
+    }
+
+    public long getMeanEncodeLatency(){
+        long count = mLatencyCount;
+        return count > 0 ? mLatencySumUs / count : 0;
+    }
+
+    public long getMaxEncodeLatency(){
+        return mMaxLatencyUs;
+    }
+
+    /**
+     * Number of frames inside the encoder, estimated from the encode latency and the frame
+     * interval (frames in flight = arrival rate * time in the encoder)
+     * @return estimated encode queue depth
+     */
+    public int getEncodeQueueDepth(){
+        long interval = mFrameIntervalUs;
+        if(interval <= 0) return 0;
+        return (int) (mLastLatencyUs / interval);
+    }
+
+    /**
+     * @return time from start() until the first frame was written to the file in us
+     */
+    public long getLastStartLatency(){
+        return mLastStartLatencyUs;
+    }
+
+    /**
+     * @return time from the end of the previous stop() until the last recording wrote its first
+     * frame in us
+     */
+    public long getLastRestartGap(){
+        return mLastRestartGapUs;
+    }
+
+    /**
+     * @return frames between the previous and the last recording that are in neither file
+     */
+    public long getLastRestartLostFrames(){
+        return mLastRestartLostFrames;
+    }
+
+    /**
+     * @return time the last stop() took in us
+     */
+    public long getLastStopDuration(){
+        return mLastStopDurationUs;
+    }
+
+    /**
+     * @return frames that were encoded after the last start() but not written, because the
+     * file has to begin with a key frame
+     */
+    public int getLastStartSkippedFrames(){
+        return mLastStartSkippedFrames;
+    }
+
+    /**
+     * @return longest time writing a sample or opening the file blocked the encoder thread in us
+     */
+    public long getMaxWriteTime(){
+        return mMaxWriteTimeUs;
+    }
+
+    /**
+     * @return number of writes that blocked the encoder thread longer than WRITE_STALL_US
+     */
+    public long getWriteStallCount(){
+        return mWriteStalls;
+    }
+
+    @Override
+    public String getStatistics(){
+        return "encoder: " + mEncodedFrames + " encoded, " + mWrittenFrames + " written, latency " +
+                mLastLatencyUs + "us (mean " + getMeanEncodeLatency() + "us, max " + mMaxLatencyUs +
+                "us), queue depth " + getEncodeQueueDepth() + "\n" +
+                "last start: " + mLastStartLatencyUs + "us until first frame, " +
+                mLastStartSkippedFrames + " frames skipped; last stop: " + mLastStopDurationUs + "us; " +
+                "stop to next start: " + mLastRestartGapUs + "us, " + mLastRestartLostFrames +
+                " frames lost\n" +
+                "writes: last " + mLastWriteTimeUs + "us, max " + mMaxWriteTimeUs + "us, " + mWriteStalls +
+                " stalls" + (mSegmented ? ", " + mWriter : "") +
+                (mBitrateController != null ? "\n" + mBitrateController.toString() : "") +
+                (mPreRoll != null ? "\n" + mPreRoll.toString() : "");
     }
 }
@@ -3,23 +3,26 @@ package videohdr.recorder;
 /**
  * Helper Class to easily modify Preview and Recording parameters like size (aspect ratio)
  * depending on the camera hardware and the (end-)consumer surfaces:
- * -MediaRecorder
+ * -MediaCodec (encoder input surface)
  * -SurfaceTexture
  * -Allocation
  */
 
 
+import android.graphics.ImageFormat;
 import android.hardware.camera2.params.StreamConfigurationMap;
-import android.media.MediaRecorder;
+import android.media.MediaCodec;
 import android.renderscript.Allocation;
 import android.util.Log;
 import android.util.Size;
 import java.util.Comparator;
 
+import videohdr.fusion.FrameBufferPool;
+
 /**
  * Created by Andreas Enz on 14.07.2015.
  *
- * Should be used by the Camera and MediaRecorder to configure:
+ * Should be used by the Camera and VideoRecorder to configure:
  * - Preview Size
  * - Video Size
  * - Histogram Size
@@ -34,10 +37,21 @@ public class VideoSizeConfiguration {
     private static final int MAX_RECORDING_WIDTH = 2500;
     private static final int MAX_PREVIEW_WIDTH = 1000;
     private static final int MAX_METERING_WIDTH = 400;
+    //smaller histograms get too noisy for metering
+    private static final int MIN_METERING_WIDTH = 160;
+
+    //relative deviation from the aspect ratio that still counts as a match
+    private static final float ASPECT_TOLERANCE = 0.01f;
+    //share of a stage's throughput budget the chosen sizes may use, leaves room for the rest
+    private static final float MAX_LOAD = 0.85f;
+    private static final float DEFAULT_FRAME_RATE = 30f;
 
     private static final Class<Allocation> RENDERSCRIPT_CLASS = Allocation.class;
 
-    private static final Class<MediaRecorder> RECORDER_CLASS = MediaRecorder.class;
+    private static final Class<MediaCodec> RECORDER_CLASS = MediaCodec.class;
+
+    //format of the ImageReader used for uncompressed recording
+    private static final int RAW_FORMAT = ImageFormat.YUV_420_888;
 
 
 
@@ -49,16 +63,26 @@ public class VideoSizeConfiguration {
      */
 
     public static Size choosePreviewSize(StreamConfigurationMap map){
+        return choosePreviewSize(map, 0);
+    }
+
+    /**
+     * Same as {@link #choosePreviewSize(StreamConfigurationMap)}, but only sizes the camera can
+     * deliver within {@code frameDuration} are considered
+     * @param frameDuration frame duration budget in ns, 0 for no limit
+     */
+    public static Size choosePreviewSize(StreamConfigurationMap map, long frameDuration){
 
         Size[] choices = map.getOutputSizes(RENDERSCRIPT_CLASS);
 
         for (Size size : choices) {
-            if (size.getHeight() == size.getWidth() * ASPECT_RATIO && size.getWidth() <= MAX_PREVIEW_WIDTH) {
+            if (matchesAspect(size, ASPECT_RATIO) && size.getWidth() <= MAX_PREVIEW_WIDTH
+                    && canSustain(map, RENDERSCRIPT_CLASS, size, frameDuration)) {
                 return size;
             }
         }
         Log.e(TAG, "Couldn't find any suitable preview size");
-        return choices[choices.length - 1];
+        return closestSize(choices, ASPECT_RATIO, MAX_PREVIEW_WIDTH);
     }
 
     /**
@@ -67,28 +91,231 @@ public class VideoSizeConfiguration {
      */
 
     public static Size chooseVideoSize(StreamConfigurationMap map){
+        return chooseVideoSize(map, 0);
+    }
+
+    /**
+     * Choose largest Size according to ASPECT_RATION and MAX_WIDTH that can be recorded
+     * within {@code frameDuration}
+     * @param frameDuration frame duration budget in ns, 0 for no limit
+     */
+    public static Size chooseVideoSize(StreamConfigurationMap map, long frameDuration){
 
         Size[] choices = map.getOutputSizes(RECORDER_CLASS);
 
         for (Size size : choices) {
-            if (size.getHeight() == size.getWidth() * ASPECT_RATIO_RECORD && size.getWidth() <= MAX_RECORDING_WIDTH) {
+            if (matchesAspect(size, ASPECT_RATIO_RECORD) && size.getWidth() <= MAX_RECORDING_WIDTH
+                    && canSustain(map, RECORDER_CLASS, size, frameDuration)) {
                 return size;
             }
         }
         Log.e(TAG, "Couldn't find any suitable record size");
-        return choices[choices.length - 1];
+        return closestSize(choices, ASPECT_RATIO_RECORD, MAX_RECORDING_WIDTH);
+    }
+
+    /**
+     * Choose largest YUV size for uncompressed recording according to ASPECT_RATIO_RECORD and
+     * MAX_WIDTH that the camera can deliver within {@code frameDuration}
+     * @param frameDuration frame duration budget in ns, 0 for no limit
+     */
+    public static Size chooseRawSize(StreamConfigurationMap map, long frameDuration){
+
+        Size[] choices = map.getOutputSizes(RAW_FORMAT);
+
+        for (Size size : choices) {
+            if (matchesAspect(size, ASPECT_RATIO_RECORD) && size.getWidth() <= MAX_RECORDING_WIDTH
+                    && (frameDuration <= 0 || map.getOutputMinFrameDuration(RAW_FORMAT, size) <= frameDuration)) {
+                return size;
+            }
+        }
+        Log.e(TAG, "Couldn't find any suitable raw record size");
+        return closestSize(choices, ASPECT_RATIO_RECORD, MAX_RECORDING_WIDTH);
     }
 
     public static Size chooseMeteringSize(StreamConfigurationMap map){
+        return chooseMeteringSize(map, 0);
+    }
+
+    public static Size chooseMeteringSize(StreamConfigurationMap map, long frameDuration){
 
         Size[] choices = map.getOutputSizes(RENDERSCRIPT_CLASS);
 
         for (Size size : choices) {
-            if (size.getHeight() == size.getWidth() * ASPECT_RATIO && size.getWidth() <= MAX_METERING_WIDTH) {
+            if (matchesAspect(size, ASPECT_RATIO) && size.getWidth() <= MAX_METERING_WIDTH
+                    && canSustain(map, RENDERSCRIPT_CLASS, size, frameDuration)) {
                 return size;
             }
         }
-        Log.e(TAG, "Couldn't find any suitable metering size. \n Returned value: " + choices[choices.length - 1]);
-        return choices[choices.length - 1];
+        Size fallback = closestSize(choices, ASPECT_RATIO, MAX_METERING_WIDTH);
+        Log.e(TAG, "Couldn't find any suitable metering size. \n Returned value: " + fallback);
+        return fallback;
+    }
+
+    /**
+     * Sizes of all stages together with the share of its throughput budget every stage needs
+     */
+    public static class SizeSelection {
+        public final Size previewSize;
+        public final Size videoSize;
+        public final Size meteringSize;
+        public final float fusionLoad;
+        public final float meteringLoad;
+        public final float encoderLoad;
+
+        SizeSelection(Size previewSize, Size videoSize, Size meteringSize, float fusionLoad,
+                      float meteringLoad, float encoderLoad){
+            this.previewSize = previewSize;
+            this.videoSize = videoSize;
+            this.meteringSize = meteringSize;
+            this.fusionLoad = fusionLoad;
+            this.meteringLoad = meteringLoad;
+            this.encoderLoad = encoderLoad;
+        }
+
+        @Override
+        public String toString(){
+            return "preview " + previewSize + " (fusion load " + percent(fusionLoad) + "), metering " +
+                    meteringSize + " (load " + percent(meteringLoad) + "), video " + videoSize +
+                    " (encoder load " + percent(encoderLoad) + ")";
+        }
+
+        /**
+         * Pool with room for {@code framesPerStream} frames of every CPU side stream of these
+         * sizes: I420 and RGBA at the preview size, I420 at the metering and the video size.
+         * These frames are allocated right away.
+         */
+        public FrameBufferPool createFramePool(int framesPerStream){
+            FrameBufferPool.Format[] formats = {FrameBufferPool.Format.I420,
+                    FrameBufferPool.Format.RGBA, FrameBufferPool.Format.I420,
+                    FrameBufferPool.Format.I420};
+            Size[] streams = {previewSize, previewSize, meteringSize, videoSize};
+            long budget = 0;
+            for(int i = 0; i < streams.length; i++){
+                budget += (long) formats[i].frameBytes(streams[i].getWidth(),
+                        streams[i].getHeight()) * framesPerStream;
+            }
+            FrameBufferPool pool = new FrameBufferPool(budget);
+            for(int i = 0; i < streams.length; i++){
+                pool.reserve(formats[i], streams[i].getWidth(), streams[i].getHeight(),
+                        framesPerStream);
+            }
+            return pool;
+        }
+
+        private static String percent(float load){
+            return Math.round(load * 100) + "%";
+        }
+    }
+
+    /**
+     * Choose preview, video and metering size together, so every stage can process its frames
+     * within the frame time. The largest video size the encoder can handle is chosen first.
+     * Fusion and metering both run in RenderScript and share its time, so together they may use
+     * MAX_LOAD of it. Among the combinations that fit, the largest preview size wins and then the
+     * largest metering size. If nothing fits, the sizes with the lowest load are used.
+     * @param frameDuration frame duration budget in ns, 0 for the default frame rate
+     * @param profile pixels per second every stage can process
+     */
+    public static SizeSelection chooseSizes(StreamConfigurationMap map, long frameDuration,
+                                            ThroughputProfile profile){
+        float frameRate = frameDuration > 0 ? 1e9f / frameDuration : DEFAULT_FRAME_RATE;
+        float fusionBudget = profile.getBudget(ThroughputProfile.Stage.FUSION) / frameRate;
+        float meteringBudget = profile.getBudget(ThroughputProfile.Stage.METERING) / frameRate;
+        float encoderBudget = profile.getBudget(ThroughputProfile.Stage.ENCODER) / frameRate;
+
+        //video: largest size within the encoder budget
+        Size[] videoChoices = map.getOutputSizes(RECORDER_CLASS);
+        Size video = null;
+        for(Size size : videoChoices){
+            if(!matchesAspect(size, ASPECT_RATIO_RECORD) || size.getWidth() > MAX_RECORDING_WIDTH ||
+                    !canSustain(map, RECORDER_CLASS, size, frameDuration)) continue;
+            if(area(size) / encoderBudget <= MAX_LOAD && (video == null || area(size) > area(video))) {
+                video = size;
+            }
+        }
+        if(video == null) {
+            Log.e(TAG, "no record size within the encoder budget");
+            video = smallestSize(videoChoices, ASPECT_RATIO_RECORD);
+        }
+
+        //preview and metering: largest preview, then largest metering within the shared budget
+        Size[] choices = map.getOutputSizes(RENDERSCRIPT_CLASS);
+        Size preview = null;
+        Size metering = null;
+        for(Size p : choices){
+            if(!matchesAspect(p, ASPECT_RATIO) || p.getWidth() > MAX_PREVIEW_WIDTH ||
+                    !canSustain(map, RENDERSCRIPT_CLASS, p, frameDuration)) continue;
+            if(preview != null && area(p) < area(preview)) continue;
+
+            for(Size m : choices){
+                if(!matchesAspect(m, ASPECT_RATIO) || m.getWidth() > MAX_METERING_WIDTH ||
+                        m.getWidth() < MIN_METERING_WIDTH ||
+                        !canSustain(map, RENDERSCRIPT_CLASS, m, frameDuration)) continue;
+                if(area(p) / fusionBudget + area(m) / meteringBudget > MAX_LOAD) continue;
+
+                if(preview == null || area(p) > area(preview) || area(m) > area(metering)) {
+                    preview = p;
+                    metering = m;
+                }
+            }
+        }
+        if(preview == null) {
+            Log.e(TAG, "no preview and metering size within the RenderScript budget");
+            preview = smallestSize(choices, ASPECT_RATIO);
+            metering = preview;
+        }
+
+        SizeSelection selection = new SizeSelection(preview, video, metering,
+                area(preview) / fusionBudget, area(metering) / meteringBudget,
+                area(video) / encoderBudget);
+        Log.d(TAG, "chosen sizes: " + selection);
+        return selection;
+    }
+
+    private static boolean matchesAspect(Size size, float aspectRatio){
+        float ratio = (float) size.getHeight() / size.getWidth();
+        return Math.abs(ratio - aspectRatio) <= ASPECT_TOLERANCE * aspectRatio;
+    }
+
+    private static float area(Size size){
+        return (float) size.getWidth() * size.getHeight();
+    }
+
+    /* fallback: the largest size within maxWidth with the aspect ratio closest to the requested */
+    private static Size closestSize(Size[] choices, float aspectRatio, int maxWidth){
+        Size best = null;
+        float bestDeviation = Float.MAX_VALUE;
+        for(Size size : choices){
+            if(size.getWidth() > maxWidth) continue;
+            float deviation = Math.abs((float) size.getHeight() / size.getWidth() - aspectRatio);
+            if(best == null || deviation < bestDeviation - ASPECT_TOLERANCE * aspectRatio ||
+                    (deviation <= bestDeviation + ASPECT_TOLERANCE * aspectRatio && area(size) > area(best))) {
+                best = size;
+                bestDeviation = Math.min(deviation, bestDeviation);
+            }
+        }
+        return best != null ? best : smallestSize(choices, aspectRatio);
+    }
+
+    /* fallback: the smallest size, preferring the requested aspect ratio */
+    private static Size smallestSize(Size[] choices, float aspectRatio){
+        Size best = null;
+        for(Size size : choices){
+            boolean better = best == null ||
+                    (matchesAspect(size, aspectRatio) && !matchesAspect(best, aspectRatio)) ||
+                    (matchesAspect(size, aspectRatio) == matchesAspect(best, aspectRatio) &&
+                            area(size) < area(best));
+            if(better) best = size;
+        }
+        return best;
+    }
+
+    /**
+     * Check whether the camera can output frames of {@code size} at the given frame duration
+     * @param frameDuration frame duration budget in ns, 0 for no limit
+     */
+    private static <T> boolean canSustain(StreamConfigurationMap map, Class<T> klass, Size size,
+                                          long frameDuration){
+        return frameDuration <= 0 || map.getOutputMinFrameDuration(klass, size) <= frameDuration;
     }
 }
@@ -0,0 +1,350 @@
+package videohdr.renderscript;
+
+import videohdr.fusion.ToneCurveCache;
+import videohdr.metrics.Gauge;
+import videohdr.metrics.StageMetrics;
+import videohdr.pipeline.FrameConsumer;
+import videohdr.trace.FrameTracer;
+
+/**
+ * Bookkeeping of the fusion stage for every frame, without RenderScript: which frames are fused
+ * in paired output mode, the working resolution and engine from the governors, the crossfade
+ * between two engines and the tone curve from the metering histograms. The work on the frames
+ * is done by the {@link Kernels}, the fuse script of the {@link PreviewFuseProcessor} on the
+ * device or a stand-in on the JVM.
+ *
+ * Frames are processed on the fusion worker, capture results arrive on the camera thread and
+ * histograms on the metering worker.
+ */
+public class FusionController implements FrameConsumer, HistogramListener {
+
+    private static final long DEFAULT_FRAME_DURATION = 1000000000 / 30;
+
+    //share of the weights of the new engine, the script works with the same fixed point
+    public static final int MIX_ONE = 1024;
+
+    /**
+     * Work on the frames, called on the fusion worker
+     */
+    public interface Kernels {
+        /**
+         * Take the next frame off the input
+         */
+        void receiveFrame();
+
+        /**
+         * Keep the current frame as the previous frame of the tier, without fusing it
+         */
+        void storeFrame(int tier);
+
+        /**
+         * Continue with the buffers of another resolution tier. The previous frame is carried
+         * over, so the next fused frame has a matching partner
+         */
+        void switchTier(int fromTier, int toTier);
+
+        /**
+         * Fade from the weights of one engine to the other, the mix is set before the next
+         * fused frame
+         */
+        void switchEngine(FusionEngine from, FusionEngine to);
+
+        /**
+         * @param modeMix share of the new engine, 0 - MIX_ONE
+         */
+        void setModeMix(int modeMix);
+
+        /**
+         * @param curve CURVE_SIZE values the fused luma is mapped with, only valid during the call
+         */
+        void setToneCurve(int[] curve);
+
+        /**
+         * Fuse the current frame with the previous frame of the tier and send it to the output,
+         * the current frame becomes the previous one
+         */
+        void fuseFrame(int tier, int frameCounter);
+    }
+
+    private final Kernels mKernels;
+
+    /* WORKING RESOLUTION TIERS, see FusionResolutionGovernor */
+    private final FusionResolutionGovernor mGovernor =
+            new FusionResolutionGovernor(DEFAULT_FRAME_DURATION);
+    private int mCurrentTier = 0;
+
+    /* QUALITY TIERS, see FusionQualityGovernor. On a change the weights of the old and the new
+    * engine are crossfaded over TRANSITION_FRAMES, switching at once is visible as a jump in
+    * brightness and noise */
+    private static final int TRANSITION_FRAMES = 15;
+    private final FusionQualityGovernor mQualityGovernor =
+            new FusionQualityGovernor(DEFAULT_FRAME_DURATION);
+    private int mCurrentQuality = FusionEngines.DEFAULT_TIER;
+    private int mModeMix = MIX_ONE;
+
+    /* TONE MAPPING of the fused luma. The fused frame is not metered, the curve is built from
+    * the metering histograms of both exposures of a pair, on the metering worker. The fusion
+    * worker hands a new curve to the kernels before the next fused frame. Only the metering
+    * worker touches the cache, it publishes every new curve under the lock */
+    private volatile boolean mToneMapping = true;
+    private final ToneCurveCache mToneCurves = new ToneCurveCache();
+    private final int[] mPairHistogram = new int[ToneCurveCache.CURVE_SIZE];
+    private final int[] mPrevHistogram = new int[ToneCurveCache.CURVE_SIZE];
+    private final int[] mIdentityCurve = new int[ToneCurveCache.CURVE_SIZE];
+    //newest curve of the cache and curve for the fusion worker, guarded by mPendingCurve
+    private final int[] mPublishedCurve = new int[ToneCurveCache.CURVE_SIZE];
+    private final int[] mPendingCurve = new int[ToneCurveCache.CURVE_SIZE];
+    private volatile boolean mCurveChanged = false;
+
+    /* if set, only one fused frame per captured pair is sent to the output
+    * (high frame rate mode: 60 captured frames -> 30 fused frames) */
+    private volatile boolean mPairedOutput = false;
+
+    /* PAIRS, written by the capture callback. Buffers arrive in the order of their frame numbers,
+    * the n-th received buffer is frame mFirstFrameNumber + n - 1 plus the frames before it whose
+    * buffer was lost */
+    private volatile long mFirstFrameNumber = -1;
+    private volatile long mLostBuffers = 0;
+    //parity of the frame numbers of the second exposure of a pair, -1 until known
+    private volatile int mPairEndParity = -1;
+
+    //fusion worker only
+    private int mFrameCounter = 0;
+    //total number of frames received, used to find the frame number of the newest frame
+    private long mReceivedFrames = 0;
+    //frames skipped since the governors were updated last
+    private int mSkippedFrames = 0;
+
+    private volatile long mOutputFrames = 0;
+    private volatile long mDroppedPairs = 0;
+    private final StageMetrics mMetrics = new StageMetrics("fusion");
+    private final Gauge mResolutionGauge = mMetrics.createGauge("resolution tier");
+    private final Gauge mEngineGauge = mMetrics.createGauge("engine tier");
+
+    /**
+     * @param kernels work on the frames, start at tier 0 with the default engine, full mix and
+     *                the identity curve
+     */
+    public FusionController(Kernels kernels){
+        mKernels = kernels;
+        for(int i = 0; i < mIdentityCurve.length; i++) mIdentityCurve[i] = i;
+        System.arraycopy(mIdentityCurve, 0, mPublishedCurve, 0, mPublishedCurve.length);
+        mEngineGauge.set(mCurrentQuality);
+    }
+
+    /**
+     * Emit one fused frame per captured exposure pair instead of one per captured frame.
+     * @param pairedOutput true to halve the output rate
+     */
+    public void setPairedOutput(boolean pairedOutput) {
+        mPairedOutput = pairedOutput;
+    }
+
+    /**
+     * Map the fused luma with a global tone curve that follows the scene, on by default
+     */
+    public void setToneMapping(boolean toneMapping) {
+        synchronized (mPendingCurve) {
+            mToneMapping = toneMapping;
+            System.arraycopy(toneMapping ? mPublishedCurve : mIdentityCurve, 0,
+                    mPendingCurve, 0, mPendingCurve.length);
+            mCurveChanged = true;
+        }
+    }
+
+    /**
+     * Time available for fusing a frame, the working resolution is lowered if fusing takes longer
+     * @param frameDuration duration of a captured frame in ns
+     */
+    public void setFrameDuration(long frameDuration) {
+        mGovernor.setFrameBudget(frameDuration);
+        mQualityGovernor.setFrameBudget(frameDuration);
+    }
+
+    /**
+     * Luma histogram of a metering frame, called on the metering worker. Consecutive histograms
+     * are summed up as the histogram of the pair, the curve is only rebuilt if that changed
+     * enough, see {@link ToneCurveCache}.
+     */
+    @Override
+    public void onHistogramAvailable(int[] frameHistogram) {
+        for(int i = 0; i < mPairHistogram.length; i++){
+            mPairHistogram[i] = mPrevHistogram[i] + frameHistogram[i];
+            mPrevHistogram[i] = frameHistogram[i];
+        }
+        if(!mToneCurves.update(mPairHistogram)) return;
+        synchronized (mPendingCurve) {
+            System.arraycopy(mToneCurves.getCurve(), 0, mPublishedCurve, 0, mPublishedCurve.length);
+            if(!mToneMapping) return;
+            System.arraycopy(mPublishedCurve, 0, mPendingCurve, 0, mPendingCurve.length);
+            mCurveChanged = true;
+        }
+    }
+
+    /**
+     * Capture result of a frame delivered to the input, called on the camera thread.
+     * In paired output mode the position of the frames within their pair is taken from here.
+     * @param pairPosition 0 for the first and 1 for the second exposure of a pair, -1 if unknown
+     */
+    public void onFrameCaptured(long frameNumber, int pairPosition) {
+        if(mFirstFrameNumber < 0) mFirstFrameNumber = frameNumber;
+        if(pairPosition >= 0) mPairEndParity = (int) ((frameNumber + 1 - pairPosition) & 1);
+    }
+
+    /**
+     * A capture failed, called on the camera thread
+     * @param imageCaptured false if no buffer reaches the input for this frame
+     */
+    public void onCaptureFailed(long frameNumber, boolean imageCaptured) {
+        long first = mFirstFrameNumber;
+        if(!imageCaptured && first >= 0 && frameNumber > first) mLostBuffers++;
+    }
+
+    /* fusion worker only: whether the n-th received frame is the second exposure of a pair.
+    * Without any capture result the frame can't be placed and counts as a first exposure. Frames
+    * of a single exposure session are paired by frame number, starting with the first one */
+    private boolean completesPair(long receivedFrames) {
+        long first = mFirstFrameNumber;
+        if(first < 0) return false;
+        long frameNumber = first + receivedFrames - 1 + mLostBuffers;
+        int parity = mPairEndParity;
+        if(parity < 0) parity = (int) ((first + 1) & 1);
+        return (frameNumber & 1) == parity;
+    }
+
+    @Override
+    public void discardFrame() {
+        mKernels.receiveFrame();
+        mReceivedFrames++;
+    }
+
+    @Override
+    public void processFrame(long queueWaitNs, int droppedFrames) {
+        long start = System.nanoTime();
+
+        mKernels.receiveFrame();
+        mReceivedFrames++;
+        mSkippedFrames += droppedFrames;
+
+        /* in paired mode only the second exposure of a pair is fused, the first one is just
+        * stored as its partner. If frames were skipped the previous frame is not the partner
+        * of the current one and the pair is lost */
+        boolean fuse = true;
+        if(mPairedOutput) {
+            fuse = completesPair(mReceivedFrames);
+            if(fuse && droppedFrames > 0) {
+                mDroppedPairs++;
+                fuse = false;
+            }
+        }
+
+        long frameId = FrameTracer.getLastCapturedFrame();
+        FrameTracer.begin(FrameTracer.Stage.FUSION, frameId);
+        if(!fuse) {
+            mKernels.storeFrame(mCurrentTier);
+            FrameTracer.end(FrameTracer.Stage.FUSION, frameId);
+            mMetrics.onFrameProcessed(queueWaitNs, System.nanoTime() - start, droppedFrames);
+            return;
+        }
+
+        int tier = mGovernor.getTier();
+        if(tier != mCurrentTier) switchTier(tier);
+        int quality = mQualityGovernor.getTier();
+        if(quality != mCurrentQuality) switchEngine(quality);
+        if(mModeMix < MIX_ONE) {
+            mModeMix = Math.min(MIX_ONE, mModeMix + MIX_ONE / TRANSITION_FRAMES);
+            mKernels.setModeMix(mModeMix);
+        }
+
+        if(mCurveChanged) {
+            synchronized (mPendingCurve) {
+                mKernels.setToneCurve(mPendingCurve);
+                mCurveChanged = false;
+            }
+        }
+
+        mKernels.fuseFrame(mCurrentTier, mFrameCounter++);
+        mOutputFrames++;
+
+        FrameTracer.end(FrameTracer.Stage.FUSION, frameId);
+        long processingTime = System.nanoTime() - start;
+        mMetrics.onFrameProcessed(queueWaitNs, processingTime, droppedFrames);
+        //in paired mode the time includes the stored first frame of the pair
+        updateGovernors(processingTime, mSkippedFrames);
+        mSkippedFrames = 0;
+    }
+
+    private void switchTier(int tier){
+        mKernels.switchTier(mCurrentTier, tier);
+        mCurrentTier = tier;
+        mResolutionGauge.set(tier);
+        mMetrics.getReconfigurations().increment();
+    }
+
+    private void switchEngine(int quality){
+        mKernels.switchEngine(FusionEngines.ALL[mCurrentQuality], FusionEngines.ALL[quality]);
+        mModeMix = 0;
+        mCurrentQuality = quality;
+        mEngineGauge.set(quality);
+        mMetrics.getReconfigurations().increment();
+    }
+
+    /* feed the processing time to both governors. Quality is traded before resolution: the
+    * resolution only drops while the engine is at most the default one, the engine only drops
+    * below the default at the lowest resolution, and the other way round when going up */
+    private void updateGovernors(long processingTimeNs, int skippedFrames){
+        int resolution = mGovernor.getTier();
+        mGovernor.onFrameProcessed(processingTimeNs, skippedFrames);
+        if(mGovernor.getTier() != resolution) mQualityGovernor.onResolutionChanged(mGovernor.getScale());
+
+        FusionEngine engine = mQualityGovernor.getEngine();
+        mQualityGovernor.onFrameProcessed(processingTimeNs, skippedFrames);
+        if(mQualityGovernor.getEngine() != engine) {
+            mGovernor.onQualityChanged(mQualityGovernor.getEngine().getRelativeCost() /
+                    engine.getRelativeCost());
+        }
+
+        int lowestResolution = FusionResolutionGovernor.TIER_SCALES.length - 1;
+        int quality = mQualityGovernor.getTier();
+        mQualityGovernor.setTierLimits(
+                mGovernor.getTier() == lowestResolution ? 0 : FusionEngines.DEFAULT_TIER,
+                mGovernor.getTier() == 0 ? FusionEngines.ALL.length - 1 : FusionEngines.DEFAULT_TIER);
+        mGovernor.setStepLimits(quality <= FusionEngines.DEFAULT_TIER,
+                quality >= FusionEngines.DEFAULT_TIER);
+    }
+
+    /* GETTER */
+
+    public StageMetrics getMetrics(){
+        return mMetrics;
+    }
+
+    public FusionResolutionGovernor getResolutionGovernor(){
+        return mGovernor;
+    }
+
+    public FusionQualityGovernor getQualityGovernor(){
+        return mQualityGovernor;
+    }
+
+    /**
+     * @return curves of the tone mapping, read only, updated on the metering worker
+     */
+    public ToneCurveCache getToneCurves(){
+        return mToneCurves;
+    }
+
+    /**
+     * @return number of fused frames sent to the output
+     */
+    public long getOutputFrameCount(){
+        return mOutputFrames;
+    }
+
+    /**
+     * @return number of exposure pairs that could not be fused in paired output mode
+     */
+    public long getDroppedPairCount(){
+        return mDroppedPairs;
+    }
+}
@@ -0,0 +1,24 @@
+package videohdr.renderscript;
+
+/**
+ * A way of fusing the two exposures of a pair, one quality tier of the fusion stage.
+ * All engines run in the fuse kernel of "preview_fuse.rs" and differ in how the weights of the
+ * two frames are computed, so the stage can switch between them from one frame to the next.
+ * See {@link FusionEngines} for the available engines.
+ */
+public interface FusionEngine {
+
+    String getName();
+
+    /**
+     * @return weight function of the fuse kernel, one of the WEIGHT_ constants of
+     * {@link videohdr.fusion.CpuFusion}
+     */
+    int getWeightMode();
+
+    /**
+     * @return processing time per frame relative to the per-pixel weight blend, an estimate
+     * until the engine has been measured
+     */
+    float getRelativeCost();
+}
@@ -0,0 +1,68 @@
+package videohdr.renderscript;
+
+import videohdr.fusion.CpuFusion;
+
+/**
+ * The fusion engines, ordered from the cheapest to the best quality
+ */
+public final class FusionEngines {
+
+    /**
+     * No weighting, the frames of a pair are averaged. The cheapest output that doesn't flicker
+     * between the exposures.
+     */
+    public static final FusionEngine PASSTHROUGH = new KernelEngine("passthrough",
+            CpuFusion.WEIGHT_EQUAL, 0.6f);
+
+    /**
+     * Weight of every pixel from its own luminance, the original fusion
+     */
+    public static final FusionEngine PIXEL_WEIGHT = new KernelEngine("pixel weight",
+            CpuFusion.WEIGHT_PIXEL, 1f);
+
+    /**
+     * Weights averaged over the 3x3 neighbourhood, less noise and fewer halos at edges
+     */
+    public static final FusionEngine SMOOTHED_WEIGHT = new KernelEngine("smoothed weight",
+            CpuFusion.WEIGHT_SMOOTHED, 2.2f);
+
+    public static final FusionEngine[] ALL = {PASSTHROUGH, PIXEL_WEIGHT, SMOOTHED_WEIGHT};
+
+    //index into ALL the stage starts with
+    public static final int DEFAULT_TIER = 1;
+
+    private FusionEngines(){
+    }
+
+    private static class KernelEngine implements FusionEngine {
+        private final String mName;
+        private final int mWeightMode;
+        private final float mRelativeCost;
+
+        KernelEngine(String name, int weightMode, float relativeCost){
+            mName = name;
+            mWeightMode = weightMode;
+            mRelativeCost = relativeCost;
+        }
+
+        @Override
+        public String getName() {
+            return mName;
+        }
+
+        @Override
+        public int getWeightMode() {
+            return mWeightMode;
+        }
+
+        @Override
+        public float getRelativeCost() {
+            return mRelativeCost;
+        }
+
+        @Override
+        public String toString(){
+            return mName;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package videohdr.renderscript;
+
+import android.util.Log;
+
+/**
+ * Chooses the fusion engine (quality tier, see {@link FusionEngines}) from the processing time of
+ * the recent frames. The time of the current engine is normalized to the full working resolution,
+ * the other engines are predicted from it with their relative cost. The stage steps down to a
+ * cheaper engine if the current one takes too long or frames get skipped and steps up once the
+ * better engine is predicted to stay comfortably within the frame duration. If the prediction was
+ * wrong and the stage has to step down again right away, the time before the next attempt to step
+ * up is doubled.
+ *
+ * Works together with {@link FusionResolutionGovernor}: the range of tiers is limited by
+ * {@link #setTierLimits(int, int)}, so that quality is traded before resolution when the load
+ * rises and resolution is restored before quality when it falls.
+ *
+ * Called from the processing thread of the fusion stage only.
+ */
+public class FusionQualityGovernor {
+
+    private static final String TAG = "FusionQualityGov";
+
+    private static final float DOWN_LOAD = 0.9f;
+    private static final float UP_LOAD = 0.6f;
+    private static final float MAX_SKIP_RATE = 0.1f;
+    private static final float SMOOTHING = 0.1f;
+    private static final int MIN_DWELL_FRAMES = 30;
+    private static final int MAX_UP_DWELL_FRAMES = 30 * 60;
+
+    private final FusionEngine[] mEngines;
+    private long mFrameBudgetNs;
+    private int mTier;
+    private int mMinTier = 0;
+    private int mMaxTier;
+    private int mFramesInTier = 0;
+
+    //smoothed processing time of the current tier at full working resolution
+    private float mNormalizedTimeNs = 0;
+    //frames in a tier before stepping up, grows after failed steps up
+    private int mUpDwellFrames = MIN_DWELL_FRAMES;
+    private long mFrames = 0;
+    private long mLastStepUpFrame = -1;
+    private float mSkipRate = 0;
+    //pixels of the current working resolution relative to the full one
+    private float mArea = 1f;
+    private int mTransitions = 0;
+
+    /**
+     * @param frameBudgetNs time available per frame, the frame duration of the camera
+     */
+    public FusionQualityGovernor(long frameBudgetNs){
+        mEngines = FusionEngines.ALL;
+        mFrameBudgetNs = frameBudgetNs;
+        mTier = FusionEngines.DEFAULT_TIER;
+        mMaxTier = mEngines.length - 1;
+    }
+
+    public void setFrameBudget(long frameBudgetNs){
+        mFrameBudgetNs = frameBudgetNs;
+    }
+
+    /**
+     * Restrict the tiers the governor may choose, the current tier is not changed
+     */
+    public void setTierLimits(int minTier, int maxTier){
+        mMinTier = Math.max(0, minTier);
+        mMaxTier = Math.min(mEngines.length - 1, maxTier);
+    }
+
+    /**
+     * The working resolution changed, the load is reevaluated after the dwell time
+     * @param scale working resolution relative to the full one
+     */
+    public void onResolutionChanged(float scale){
+        mArea = scale * scale;
+        mFramesInTier = 0;
+    }
+
+    /**
+     * Account for a processed frame and choose the engine of the next one
+     * @param processingTimeNs time fusing the frame took
+     * @param skippedFrames frames that arrived while the previous one was processed and were skipped
+     * @return tier for the next frame, index into {@link FusionEngines#ALL}
+     */
+    public int onFrameProcessed(long processingTimeNs, int skippedFrames){
+        float normalized = processingTimeNs / mArea;
+        if(mNormalizedTimeNs == 0) {
+            mNormalizedTimeNs = normalized;
+        } else {
+            mNormalizedTimeNs += SMOOTHING * (normalized - mNormalizedTimeNs);
+        }
+        mSkipRate += SMOOTHING * ((skippedFrames > 0 ? 1f : 0f) - mSkipRate);
+        mFrames++;
+        if(++mFramesInTier < MIN_DWELL_FRAMES) return mTier;
+
+        float load = getLoad();
+        if((load > DOWN_LOAD || mSkipRate > MAX_SKIP_RATE) && mTier > mMinTier) {
+            //stepping up failed, wait longer before the next attempt
+            if(mLastStepUpFrame >= 0 && mFrames - mLastStepUpFrame <= 2 * MIN_DWELL_FRAMES) {
+                mUpDwellFrames = Math.min(2 * mUpDwellFrames, MAX_UP_DWELL_FRAMES);
+            } else {
+                mUpDwellFrames = MIN_DWELL_FRAMES;
+            }
+            changeTier(mTier - 1, load);
+        } else if(mTier < mMaxTier && mFramesInTier >= mUpDwellFrames && mSkipRate < MAX_SKIP_RATE / 2 &&
+                predictLoad(mTier + 1) < UP_LOAD) {
+            mLastStepUpFrame = mFrames;
+            changeTier(mTier + 1, load);
+        } else if(mTier > mMaxTier || mTier < mMinTier) {
+            changeTier(Math.max(mMinTier, Math.min(mMaxTier, mTier)), load);
+        }
+        return mTier;
+    }
+
+    private void changeTier(int tier, float load){
+        Log.d(TAG, "fusion engine " + mEngines[mTier].getName() + " -> " + mEngines[tier].getName() +
+                ", load " + String.format("%.2f", load) + ", predicted " +
+                String.format("%.2f", predictLoad(tier)) + ", skip rate " + String.format("%.2f", mSkipRate));
+        mNormalizedTimeNs *= mEngines[tier].getRelativeCost() / mEngines[mTier].getRelativeCost();
+        mTier = tier;
+        mFramesInTier = 0;
+        mTransitions++;
+    }
+
+    /* load of a tier at the current resolution */
+    private float predictLoad(int tier){
+        if(mFrameBudgetNs <= 0) return 0;
+        return mNormalizedTimeNs * mEngines[tier].getRelativeCost() / mEngines[mTier].getRelativeCost() *
+                mArea / mFrameBudgetNs;
+    }
+
+    /* GETTER */
+
+    public int getTier(){
+        return mTier;
+    }
+
+    public FusionEngine getEngine(){
+        return mEngines[mTier];
+    }
+
+    /**
+     * @return smoothed processing time of the current engine relative to the frame duration
+     */
+    public float getLoad(){
+        return predictLoad(mTier);
+    }
+
+    public int getTransitionCount(){
+        return mTransitions;
+    }
+
+    @Override
+    public String toString(){
+        return "fusion engine: " + mEngines[mTier].getName() + ", load " + String.format("%.2f", getLoad()) +
+                ", skip rate " + String.format("%.2f", mSkipRate) + ", " + mTransitions + " transitions";
+    }
+}
@@ -0,0 +1,152 @@
+package videohdr.renderscript;
+
+import android.util.Log;
+
+/**
+ * Chooses the working resolution of the fusion stage. If fusing a frame takes too long compared
+ * to the frame duration, or frames pile up and get skipped, the stage steps down to the next
+ * lower resolution tier. It steps up again once the predicted load of the higher tier is
+ * comfortably below the budget. Tiers only change after MIN_DWELL_FRAMES to avoid oscillating.
+ * Steps can be blocked with {@link #setStepLimits(boolean, boolean)} while the
+ * {@link FusionQualityGovernor} still has quality to trade.
+ *
+ * Called from the processing thread of the fusion stage only.
+ */
+public class FusionResolutionGovernor {
+
+    private static final String TAG = "FusionResolutionGov";
+
+    /* working resolution of every tier relative to the preview size */
+    public static final float[] TIER_SCALES = {1f, 0.75f, 0.5f};
+
+    //step down above this share of the frame duration
+    private static final float DOWN_LOAD = 0.9f;
+    //step up if the next higher tier is predicted to stay below this share
+    private static final float UP_LOAD = 0.6f;
+    //step down if more than this share of runs skipped frames
+    private static final float MAX_SKIP_RATE = 0.1f;
+    private static final float SMOOTHING = 0.1f;
+    private static final int MIN_DWELL_FRAMES = 30;
+
+    private long mFrameBudgetNs;
+    private int mTier = 0;
+    private int mFramesInTier = 0;
+
+    //smoothed processing time per frame and share of runs that had to skip frames
+    private float mMeanTimeNs = 0;
+    private float mSkipRate = 0;
+    private int mTransitions = 0;
+    //frames fused at every tier
+    private final long[] mTierFrames = new long[TIER_SCALES.length];
+    private boolean mCanStepDown = true;
+    private boolean mCanStepUp = true;
+
+    /**
+     * @param frameBudgetNs time available per frame, the frame duration of the camera
+     */
+    public FusionResolutionGovernor(long frameBudgetNs){
+        mFrameBudgetNs = frameBudgetNs;
+    }
+
+    public void setFrameBudget(long frameBudgetNs){
+        mFrameBudgetNs = frameBudgetNs;
+    }
+
+    /**
+     * Allow or block changes of the resolution, the current tier is kept
+     */
+    public void setStepLimits(boolean canStepDown, boolean canStepUp){
+        mCanStepDown = canStepDown;
+        mCanStepUp = canStepUp;
+    }
+
+    /**
+     * The fusion engine changed, the processing time is expected to change by {@code costRatio}
+     * and the load is reevaluated after the dwell time
+     */
+    public void onQualityChanged(float costRatio){
+        mMeanTimeNs *= costRatio;
+        mFramesInTier = 0;
+    }
+
+    /**
+     * Account for a processed frame and choose the tier of the next one
+     * @param processingTimeNs time fusing the frame took
+     * @param skippedFrames frames that arrived while the previous one was processed and were skipped
+     * @return tier for the next frame, index into TIER_SCALES
+     */
+    public int onFrameProcessed(long processingTimeNs, int skippedFrames){
+        mTierFrames[mTier]++;
+        mMeanTimeNs += SMOOTHING * (processingTimeNs - mMeanTimeNs);
+        mSkipRate += SMOOTHING * ((skippedFrames > 0 ? 1f : 0f) - mSkipRate);
+        if(++mFramesInTier < MIN_DWELL_FRAMES) return mTier;
+
+        float load = getLoad();
+        if((load > DOWN_LOAD || mSkipRate > MAX_SKIP_RATE) && mTier < TIER_SCALES.length - 1) {
+            if(mCanStepDown) changeTier(mTier + 1, load);
+        } else if(mCanStepUp && mTier > 0 && mSkipRate < MAX_SKIP_RATE / 2 &&
+                load * areaRatio(mTier - 1, mTier) < UP_LOAD) {
+            changeTier(mTier - 1, load);
+        }
+        return mTier;
+    }
+
+    private void changeTier(int tier, float load){
+        Log.d(TAG, "fusion resolution " + TIER_SCALES[mTier] + "x -> " + TIER_SCALES[tier] +
+                "x, load " + String.format("%.2f", load) + " (" + (long) mMeanTimeNs / 1000 + "us of " +
+                mFrameBudgetNs / 1000 + "us), skip rate " + String.format("%.2f", mSkipRate));
+
+        //the processing time is expected to scale with the number of pixels
+        mMeanTimeNs *= areaRatio(tier, mTier);
+        mTier = tier;
+        mFramesInTier = 0;
+        mTransitions++;
+    }
+
+    /* pixels of tier a relative to tier b */
+    private static float areaRatio(int a, int b){
+        float ratio = TIER_SCALES[a] / TIER_SCALES[b];
+        return ratio * ratio;
+    }
+
+    /* GETTER */
+
+    public int getTier(){
+        return mTier;
+    }
+
+    public float getScale(){
+        return TIER_SCALES[mTier];
+    }
+
+    /**
+     * @return mean pixel count of the fused frames relative to the preview size, 1 if none was
+     * fused yet
+     */
+    public float getMeanAreaScale(){
+        long frames = 0;
+        float area = 0;
+        for(int i = 0; i < TIER_SCALES.length; i++){
+            frames += mTierFrames[i];
+            area += mTierFrames[i] * TIER_SCALES[i] * TIER_SCALES[i];
+        }
+        return frames > 0 ? area / frames : 1f;
+    }
+
+    /**
+     * @return smoothed processing time relative to the frame duration
+     */
+    public float getLoad(){
+        return mFrameBudgetNs > 0 ? mMeanTimeNs / mFrameBudgetNs : 0;
+    }
+
+    public int getTransitionCount(){
+        return mTransitions;
+    }
+
+    @Override
+    public String toString(){
+        return "fusion resolution: " + TIER_SCALES[mTier] + "x, load " + String.format("%.2f", getLoad()) +
+                ", skip rate " + String.format("%.2f", mSkipRate) + ", " + mTransitions + " transitions";
+    }
+}
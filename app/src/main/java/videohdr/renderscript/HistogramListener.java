@@ -0,0 +1,11 @@
+package videohdr.renderscript;
+
+/**
+ * Receives the luma histogram of every metered frame
+ */
+public interface HistogramListener {
+    /**
+     * @param frameHistogram 256 bins, only valid for the duration of the call
+     */
+    void onHistogramAvailable(int[] frameHistogram);
+}
@@ -1,8 +1,6 @@
 package videohdr.renderscript;
 
 import android.graphics.ImageFormat;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.RenderScript;
@@ -11,6 +9,14 @@ import android.renderscript.Type;
 import android.util.Size;
 import android.view.Surface;
 
+import videohdr.metrics.StageMetrics;
+import videohdr.pipeline.DropPolicy;
+import videohdr.pipeline.FrameConsumer;
+import videohdr.pipeline.PipelineScheduler;
+import videohdr.pipeline.PipelineStage;
+import videohdr.pipeline.Worker;
+import videohdr.trace.FrameTracer;
+
 /**
  * Created by Andreas Enz on 13.07.2015.
  *
@@ -33,16 +39,21 @@ public class HistogramProcessor {
     private int[] frameHist = new int[EIGHT_BIT_COLOR_SIZE];
 
     /**
-     * Thread for the renderscript execution
+     * Stage on the metering worker of the scheduler, processes the newest frame only
      */
+    private final PipelineScheduler mScheduler;
+    private final PipelineStage mStage;
 
-    private Handler mProcessingHandler;
+    /**
+     * Counts evaluated and skipped metering frames
+     */
+    private final StageMetrics mMetrics = new StageMetrics("metering");
 
 
     /**
      * HistogramListener
      */
-    private EventListener mHistogramListener = null;
+    private HistogramListener mHistogramListener = null;
 
     /**
      * Script we use. It is part of the android API and not specifically written for this application
@@ -50,7 +61,8 @@ public class HistogramProcessor {
     private final ScriptIntrinsicHistogram mHistogramScript;
 
 
-    public HistogramProcessor(RenderScript rs, Size inputDimensions, EventListener listener){
+    public HistogramProcessor(RenderScript rs, Size inputDimensions, HistogramListener listener,
+                              PipelineScheduler scheduler){
 
         //assign listener
         mHistogramListener = listener;
@@ -67,12 +79,6 @@ public class HistogramProcessor {
         outputHistogramAllocation = Allocation.createSized(rs, Element.I32(rs),
                 EIGHT_BIT_COLOR_SIZE);
 
-        //a background thread to work the RS
-        HandlerThread mProcessingThread = new HandlerThread("ViewfinderProcessor");
-        mProcessingThread.start();
-        mProcessingHandler = new Handler(mProcessingThread.getLooper());
-
-
         //The Histogram renderscript
         mHistogramScript = ScriptIntrinsicHistogram.create(rs,Element.U8_4(rs));
         /* used together with .forEach_Dot()
@@ -83,8 +89,12 @@ public class HistogramProcessor {
         mHistogramScript.setOutput(outputHistogramAllocation);
 
 
-        new ProcessingTask(inputImageAllocation);
-
+        //the RS runs on the metering worker
+        ProcessingTask task = new ProcessingTask(inputImageAllocation);
+        mScheduler = scheduler;
+        mStage = scheduler.register("metering", Worker.METERING, 1,
+                DropPolicy.DROP_OLDEST, task, mMetrics);
+        inputImageAllocation.setOnBufferAvailableListener(task);
 
     }
 
@@ -99,64 +109,71 @@ public class HistogramProcessor {
 
 
     /**
-     * Simple class to keep track of incoming frame count,
-     * and to process the newest one in the processing thread
+     * Stop processing: the stage is removed from its worker and the allocations are destroyed
      */
-    class ProcessingTask implements Runnable, Allocation.OnBufferAvailableListener {
-        private int mPendingFrames = 0;
+    public void stop(){
+        mScheduler.unregister(mStage);
+        inputImageAllocation.destroy();
+        outputHistogramAllocation.destroy();
+    }
+
+
+    /**
+     * Takes the frames off the input allocation on the metering worker and computes the
+     * histogram of the newest one
+     */
+    class ProcessingTask implements FrameConsumer, Allocation.OnBufferAvailableListener {
 
         private Allocation mInputAllocation;
 
         public ProcessingTask(Allocation input) {
             mInputAllocation = input;
-            mInputAllocation.setOnBufferAvailableListener(this);
         }
 
         @Override
         public void onBufferAvailable(Allocation a) {
-            synchronized(this) {
-                mPendingFrames++;
-                mProcessingHandler.post(this);
-            }
+            mStage.onFrameAvailable();
         }
 
         @Override
-        public void run() {
-
-            // Find out how many frames have arrived
-            int pendingFrames;
-            synchronized(this) {
-                pendingFrames = mPendingFrames;
-                mPendingFrames = 0;
-
-                // Discard extra messages in case processing is slower than frame rate
-                mProcessingHandler.removeCallbacks(this);
-            }
+        public void discardFrame() {
+            mInputAllocation.ioReceive();
+        }
 
-            // Get to newest input
-            for (int i = 0; i < pendingFrames; i++) {
-                mInputAllocation.ioReceive();
-            }
+        @Override
+        public void processFrame(long queueWaitNs, int droppedFrames) {
+            long start = System.nanoTime();
 
+            mInputAllocation.ioReceive();
+            long frameId = FrameTracer.getLastCapturedFrame();
 
 
             //processing pass and copy the result from the allocation
+            FrameTracer.begin(FrameTracer.Stage.METERING, frameId);
             mHistogramScript.forEach(mInputAllocation);
             outputHistogramAllocation.copyTo(frameHist);
+            FrameTracer.end(FrameTracer.Stage.METERING, frameId);
 
             //provide the resulting histogram to the listener if available
-            if (mHistogramListener != null)
+            if (mHistogramListener != null) {
+                FrameTracer.begin(FrameTracer.Stage.EVALUATION, frameId);
                 mHistogramListener.onHistogramAvailable(frameHist);
+                FrameTracer.end(FrameTracer.Stage.EVALUATION, frameId);
+            }
 
-
+            mMetrics.onFrameProcessed(queueWaitNs, System.nanoTime() - start, droppedFrames);
         }
     }
 
-    public void disconnectListener(){
-        mHistogramListener = null;
+    /**
+     * @return metrics of the metering stage, the processing time includes the evaluation by
+     * the listener
+     */
+    public StageMetrics getMetrics(){
+        return mMetrics;
     }
 
-    public interface EventListener {
-        void onHistogramAvailable(int[] frameHistogram);
+    public void disconnectListener(){
+        mHistogramListener = null;
     }
 }
@@ -1,8 +1,6 @@
 package videohdr.renderscript;
 
 import android.graphics.ImageFormat;
-import android.os.Handler;
-import android.os.HandlerThread;
 import android.renderscript.Allocation;
 import android.renderscript.Element;
 import android.renderscript.RenderScript;
@@ -10,6 +8,15 @@ import android.renderscript.Type;
 import android.util.Size;
 import android.view.Surface;
 
+import videohdr.fusion.CpuFusion;
+import videohdr.fusion.TableYuvConverter;
+import videohdr.fusion.ToneCurveCache;
+import videohdr.metrics.StageMetrics;
+import videohdr.pipeline.DropPolicy;
+import videohdr.pipeline.PipelineScheduler;
+import videohdr.pipeline.PipelineStage;
+import videohdr.pipeline.Worker;
+
 /**
  * Mostly copied from HdrViewfinders (https://github.com/googlesamples/android-HdrViewfinder)
  * ViewfinderProcessor class. Combined with a renderscript we fuse a double exposure into a single frame
@@ -18,43 +25,41 @@ import android.view.Surface;
  *
  * Created by Andreas Enz on 13.07.2015.
  */
-public class PreviewFuseProcessor {
+public class PreviewFuseProcessor implements HistogramListener {
 
     private static final String TAG = "PreviewFuseProcessor";
 
-    //weights will be computed as fractional parts of 10^5
-    int[] weights = {25000,25732,26464,27194,27923,28650,29374,30095,30811,31523,32231,32932,33628,
-            34316,34998,35672,36337,36993,37640,38277,38903,39518,40121,40712,41290,41855,42406,
-            42942,43463,43968,44458,44930,45385,45823,46241,46641,47022,47382,47721,48039,48336,
-            48610,48861,49089,49293,49472,49626,49754,49856,49931,49979,49999,50000,50000,50000,
-            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
-            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
-            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
-            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
-            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
-            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
-            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
-            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,
-            50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,50000,49990,
-            49954,49889,49798,49680,49536,49367,49173,48955,48713,48448,48161,47851,47520,47168,
-            46796,46404,45992,45562,45114,44649,44166,43667,43152,42622,42077,41518,40945,40359,
-            39761,39150,38528,37896,37253,36600,35939,35268,34590,33904,33211,32512,31807,31097,
-            30382,29663,28940,28214,27486,26756,26025,25292,24560,23828,23097,22367,21639,20914,
-            20192,19474,18760,18051,17347,16649,15957,15273,14596,13927,13267,12617,11976,11345,
-            10726,10118,9522,8938,8368};
+    //weight of every luminance value, shared with the CPU fusion
+    int[] weights = CpuFusion.WEIGHTS;
+    private final Allocation mWeightsAllocation;
+
+    //YUV to RGB tables of the script, see TableYuvConverter.getScriptTables()
+    private final Allocation[] mColorTables = new Allocation[5];
+    private TableYuvConverter.ColorSpace mColorSpace = TableYuvConverter.ColorSpace.BT601_FULL;
+
+    //tone curve of the fused luma, see FusionController
+    private final Allocation mToneCurveAllocation;
 
     private Allocation mInputAllocation;
     private Allocation mPrevAllocation;
     private Allocation mOutputAllocation;
 
-    private HandlerThread mProcessingThread;
-    private Handler mProcessingHandler;
-    private ScriptC_preview_fuse mFuseScript;
+    /* WORKING RESOLUTION TIERS, see FusionResolutionGovernor. Buffers of all tiers are allocated
+    * up front, tier 0 fuses at full size directly into the output */
+    private final int[] mTierWidths;
+    private final int[] mTierHeights;
+    private final Allocation[] mTierPrevAllocations;
+    private final Allocation[] mTierFusedAllocations;
 
-    public ProcessingTask mFuseTask;
+    //stage on the fusion worker of the scheduler, fuses the newest frame only
+    private final PipelineScheduler mScheduler;
+    private final PipelineStage mStage;
+    private ScriptC_preview_fuse mFuseScript;
+    //decides per frame what the script does
+    private final FusionController mController;
 
 
-    public PreviewFuseProcessor(RenderScript rs, Size previewSize) {
+    public PreviewFuseProcessor(RenderScript rs, Size previewSize, PipelineScheduler scheduler) {
         int width = previewSize.getWidth();
         int height = previewSize.getHeight();
 
@@ -75,15 +80,31 @@ public class PreviewFuseProcessor {
         mOutputAllocation = Allocation.createTyped(rs, rgbTypeBuilder.create(),
                 Allocation.USAGE_IO_OUTPUT | Allocation.USAGE_SCRIPT);
 
-        //provide weights array to script
-        Allocation w = Allocation.createSized(rs, Element.I32(rs), weights.length);
-        w.copyFrom(weights);
+        //previous frame and fused frame of every reduced resolution tier
+        int tiers = FusionResolutionGovernor.TIER_SCALES.length;
+        mTierWidths = new int[tiers];
+        mTierHeights = new int[tiers];
+        mTierPrevAllocations = new Allocation[tiers];
+        mTierFusedAllocations = new Allocation[tiers];
+        mTierWidths[0] = width;
+        mTierHeights[0] = height;
+        mTierPrevAllocations[0] = mPrevAllocation;
+        for(int i = 1; i < tiers; i++){
+            mTierWidths[i] = (int) (width * FusionResolutionGovernor.TIER_SCALES[i]) & ~1;
+            mTierHeights[i] = (int) (height * FusionResolutionGovernor.TIER_SCALES[i]) & ~1;
+            Type.Builder tierTypeBuilder = new Type.Builder(rs, Element.RGBA_8888(rs));
+            tierTypeBuilder.setX(mTierWidths[i]);
+            tierTypeBuilder.setY(mTierHeights[i]);
+            mTierPrevAllocations[i] = Allocation.createTyped(rs, tierTypeBuilder.create(),
+                    Allocation.USAGE_SCRIPT);
+            mTierFusedAllocations[i] = Allocation.createTyped(rs, tierTypeBuilder.create(),
+                    Allocation.USAGE_SCRIPT);
+        }
 
+        //provide weights array to script
+        mWeightsAllocation = Allocation.createSized(rs, Element.I32(rs), weights.length);
+        mWeightsAllocation.copyFrom(weights);
 
-        //processing thread for this processor
-        mProcessingThread = new HandlerThread("PreviewFuseProcessor");
-        mProcessingThread.start();
-        mProcessingHandler = new Handler(mProcessingThread.getLooper());
 
         //the custom script used to fuse two frames
         mFuseScript = new ScriptC_preview_fuse(rs);
@@ -91,9 +112,33 @@ public class PreviewFuseProcessor {
         //the fuse script needs a previous frame to fuse it with a current frame
         //this is the initialization
         mFuseScript.set_gPrevFrame(mPrevAllocation);
-        mFuseScript.bind_weights(w);
+        mFuseScript.bind_weights(mWeightsAllocation);
 
-        mFuseTask = new ProcessingTask(mInputAllocation);
+        //camera2 delivers YUV_420_888 as JFIF, full range BT.601
+        for(int i = 0; i < mColorTables.length; i++){
+            mColorTables[i] = Allocation.createSized(rs, Element.I32(rs), 256);
+        }
+        copyColorTables(mColorSpace);
+        mFuseScript.bind_gLumaTable(mColorTables[0]);
+        mFuseScript.bind_gRedVTable(mColorTables[1]);
+        mFuseScript.bind_gGreenUTable(mColorTables[2]);
+        mFuseScript.bind_gGreenVTable(mColorTables[3]);
+        mFuseScript.bind_gBlueUTable(mColorTables[4]);
+
+        //identity until the first metering histograms arrive
+        int[] identity = new int[ToneCurveCache.CURVE_SIZE];
+        for(int i = 0; i < identity.length; i++) identity[i] = i;
+        mToneCurveAllocation = Allocation.createSized(rs, Element.I32(rs),
+                ToneCurveCache.CURVE_SIZE);
+        mToneCurveAllocation.copyFrom(identity);
+        mFuseScript.bind_gToneCurve(mToneCurveAllocation);
+
+        ScriptKernels kernels = new ScriptKernels();
+        mController = new FusionController(kernels);
+        mScheduler = scheduler;
+        mStage = scheduler.register("fusion", Worker.FUSION, 1,
+                DropPolicy.DROP_OLDEST, mController, mController.getMetrics());
+        mInputAllocation.setOnBufferAvailableListener(kernels);
     }
 
     /**
@@ -114,66 +159,204 @@ public class PreviewFuseProcessor {
     }
 
     /**
-     * Stop the PreviewFuseProcessor by destroying input and output surface and quitting
-     * the processing thread.
+     * Emit one fused frame per captured exposure pair instead of one per captured frame.
+     * @param pairedOutput true to halve the output rate
      */
-    public void stop(){
+    public void setPairedOutput(boolean pairedOutput) {
+        mController.setPairedOutput(pairedOutput);
+    }
 
-        mInputAllocation.destroy();
-        mOutputAllocation.destroy();
-        mProcessingThread.quit();
+    /**
+     * Map the fused luma with a global tone curve that follows the scene, on by default
+     */
+    public void setToneMapping(boolean toneMapping) {
+        mController.setToneMapping(toneMapping);
+    }
+
+    /**
+     * Luma histogram of a metering frame, called on the metering worker, see
+     * {@link FusionController#onHistogramAvailable}
+     */
+    @Override
+    public void onHistogramAvailable(int[] frameHistogram) {
+        mController.onHistogramAvailable(frameHistogram);
     }
 
     /**
-     * Simple class to keep track of incoming frame count,
-     * and to process the newest one in the processing thread
+     * Capture result of a frame delivered to the input surface, called on the camera thread.
+     * In paired output mode the position of the frames within their pair is taken from here.
+     * @param pairPosition 0 for the first and 1 for the second exposure of a pair, -1 if unknown
      */
-    class ProcessingTask implements Runnable, Allocation.OnBufferAvailableListener {
-        private int mPendingFrames = 0;
-        private int mFrameCounter = 0;
+    public void onFrameCaptured(long frameNumber, int pairPosition) {
+        mController.onFrameCaptured(frameNumber, pairPosition);
+    }
 
-        private Allocation mInputAllocation;
+    /**
+     * A capture failed, called on the camera thread
+     * @param imageCaptured false if no buffer reaches the input surface for this frame
+     */
+    public void onCaptureFailed(long frameNumber, boolean imageCaptured) {
+        mController.onCaptureFailed(frameNumber, imageCaptured);
+    }
 
-        public ProcessingTask(Allocation input) {
-            mInputAllocation = input;
-            mInputAllocation.setOnBufferAvailableListener(this);
+    /**
+     * Color space of the input frames, for sources other than the camera, e.g. limited range
+     * frames of a decoder. Takes effect with the next fused frame.
+     */
+    public void setColorSpace(final TableYuvConverter.ColorSpace colorSpace) {
+        mScheduler.getHandler(Worker.FUSION).post(new Runnable() {
+            @Override
+            public void run() {
+                if(colorSpace == mColorSpace) return;
+                mColorSpace = colorSpace;
+                copyColorTables(colorSpace);
+            }
+        });
+    }
 
+    private void copyColorTables(TableYuvConverter.ColorSpace colorSpace) {
+        int[][] tables = new TableYuvConverter(colorSpace).getScriptTables();
+        for(int i = 0; i < mColorTables.length; i++){
+            mColorTables[i].copyFrom(tables[i]);
         }
+    }
+
+    /**
+     * Time available for fusing a frame, the working resolution is lowered if fusing takes longer
+     * @param frameDuration duration of a captured frame in ns
+     */
+    public void setFrameDuration(long frameDuration) {
+        mController.setFrameDuration(frameDuration);
+    }
+
+    public StageMetrics getMetrics(){
+        return mController.getMetrics();
+    }
+
+    public FusionResolutionGovernor getResolutionGovernor(){
+        return mController.getResolutionGovernor();
+    }
+
+    public FusionQualityGovernor getQualityGovernor(){
+        return mController.getQualityGovernor();
+    }
+
+    /**
+     * @return curves of the tone mapping, read only, updated on the metering worker
+     */
+    public ToneCurveCache getToneCurves(){
+        return mController.getToneCurves();
+    }
+
+    /**
+     * @return number of fused frames sent to the output surface
+     */
+    public long getOutputFrameCount(){
+        return mController.getOutputFrameCount();
+    }
+
+    /**
+     * @return number of exposure pairs that could not be fused in paired output mode
+     */
+    public long getDroppedPairCount(){
+        return mController.getDroppedPairCount();
+    }
+
+    /**
+     * Stop the PreviewFuseProcessor by removing it from the fusion worker and destroying the
+     * script and all of its allocations. Unregistering waits for a running fusion to finish.
+     */
+    public void stop(){
+
+        mScheduler.unregister(mStage);
+        mInputAllocation.destroy();
+        mOutputAllocation.destroy();
+        //tier 0 uses mPrevAllocation and the output
+        mPrevAllocation.destroy();
+        for(int i = 1; i < mTierPrevAllocations.length; i++){
+            mTierPrevAllocations[i].destroy();
+            mTierFusedAllocations[i].destroy();
+        }
+        for(Allocation table : mColorTables){
+            table.destroy();
+        }
+        mWeightsAllocation.destroy();
+        mToneCurveAllocation.destroy();
+        mFuseScript.destroy();
+    }
+
+    /**
+     * Does the work the {@link FusionController} decides on with the fuse script, on the fusion
+     * worker. New buffers on the input allocation are signalled to the stage.
+     */
+    class ScriptKernels implements FusionController.Kernels, Allocation.OnBufferAvailableListener {
 
         @Override
         public void onBufferAvailable(Allocation a) {
-            synchronized(this) {
-                mPendingFrames++;
-                mProcessingHandler.post(this);
-            }
+            mStage.onFrameAvailable();
         }
 
         @Override
-        public void run() {
-
-            // Find out how many frames have arrived
-            int pendingFrames;
-            synchronized(this) {
-                pendingFrames = mPendingFrames;
-                mPendingFrames = 0;
+        public void receiveFrame() {
+            mInputAllocation.ioReceive();
+        }
 
-                // Discard extra messages in case processing is slower than frame rate
-                mProcessingHandler.removeCallbacks(this);
+        @Override
+        public void storeFrame(int tier) {
+            mFuseScript.set_gCurrentFrame(mInputAllocation);
+            if(tier == 0) {
+                mFuseScript.forEach_storeFrame(mPrevAllocation);
+            } else {
+                mFuseScript.forEach_storeFrameScaled(mTierPrevAllocations[tier]);
             }
+        }
 
-
-            // Get to newest input
-            for (int i = 0; i < pendingFrames; i++) {
-                mInputAllocation.ioReceive();
+        @Override
+        public void switchTier(int fromTier, int toTier) {
+            mFuseScript.set_gResampleSource(mTierPrevAllocations[fromTier]);
+            mFuseScript.set_gResampleScale((float) mTierWidths[fromTier] / mTierWidths[toTier]);
+            mFuseScript.forEach_resample(mTierPrevAllocations[toTier]);
+            mFuseScript.set_gPrevFrame(mTierPrevAllocations[toTier]);
+
+            if(toTier > 0) {
+                mFuseScript.set_gInputScale((float) mTierWidths[0] / mTierWidths[toTier]);
+                mFuseScript.set_gScaledFrame(mTierFusedAllocations[toTier]);
+                mFuseScript.set_gOutputScale((float) mTierWidths[toTier] / mTierWidths[0]);
+                mFuseScript.set_gScaledWidth(mTierWidths[toTier]);
+                mFuseScript.set_gScaledHeight(mTierHeights[toTier]);
             }
+        }
 
-            mFuseScript.set_gFrameCounter(mFrameCounter++);
-            mFuseScript.set_gCurrentFrame(mInputAllocation);
+        @Override
+        public void switchEngine(FusionEngine from, FusionEngine to) {
+            mFuseScript.set_gPrevWeightMode(from.getWeightMode());
+            mFuseScript.set_gWeightMode(to.getWeightMode());
+        }
+
+        @Override
+        public void setModeMix(int modeMix) {
+            mFuseScript.set_gModeMix(modeMix);
+        }
 
+        @Override
+        public void setToneCurve(int[] curve) {
+            mToneCurveAllocation.copyFrom(curve);
+        }
 
-            // Run processing pass
-            mFuseScript.forEach_fuseFrames(mPrevAllocation, mOutputAllocation);
-            mOutputAllocation.ioSend(); //send to output surface
+        @Override
+        public void fuseFrame(int tier, int frameCounter) {
+            mFuseScript.set_gCurrentFrame(mInputAllocation);
+            mFuseScript.set_gFrameCounter(frameCounter);
+
+            // Run processing pass, at reduced resolution followed by upscaling to the output
+            if(tier == 0) {
+                mFuseScript.forEach_fuseFrames(mPrevAllocation, mOutputAllocation);
+            } else {
+                mFuseScript.forEach_fuseFramesScaled(mTierPrevAllocations[tier],
+                        mTierFusedAllocations[tier]);
+                mFuseScript.forEach_upscale(mOutputAllocation);
+            }
+            mOutputAllocation.ioSend(); //send to output surface, waits for the kernels
         }
     }
 
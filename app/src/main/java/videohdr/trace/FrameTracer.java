@@ -0,0 +1,186 @@
+package videohdr.trace;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Per frame tracing through the pipeline: capture result, metering, exposure evaluation, fusion,
+ * encoding and writing. Every frame is identified by its sensor timestamp, the stages record begin
+ * and end events with it on their own threads. The timestamp is rounded down to us, the resolution
+ * the encoder and muxer keep, so encoded and written frames get the id of their capture result. The events of a time window can be exported as a
+ * Chrome trace event file, which opens in chrome://tracing or Perfetto and shows which thread held
+ * up a frame.
+ *
+ * Static like {@link android.os.Trace}, so every stage can record without being handed a tracer.
+ * Disabled by default, then recording is a single volatile read. Once enabled every thread that
+ * records gets a buffer of BUFFER_EVENTS events, recording doesn't allocate afterwards.
+ */
+public final class FrameTracer {
+
+    public enum Stage {
+        CAPTURE("capture result"),
+        METERING("metering"),
+        EVALUATION("exposure evaluation"),
+        FUSION("fusion"),
+        ENCODE("encoded frame"),
+        WRITE("write");
+
+        final String mName;
+
+        Stage(String name){
+            mName = name;
+        }
+    }
+
+    //about 20s of all stages at 60fps
+    private static final int BUFFER_EVENTS = 4096;
+
+    private static volatile boolean sEnabled = false;
+    //sensor timestamp of the newest capture result, frame id for stages that can't read it
+    private static volatile long sLastCapturedFrame = -1;
+
+    private static final List<TraceBuffer> sBuffers = new CopyOnWriteArrayList<>();
+    private static final ThreadLocal<TraceBuffer> sThreadBuffer = new ThreadLocal<TraceBuffer>() {
+        @Override
+        protected TraceBuffer initialValue() {
+            TraceBuffer buffer = new TraceBuffer(Thread.currentThread().getName(),
+                    sBuffers.size() + 1, BUFFER_EVENTS);
+            sBuffers.add(buffer);
+            return buffer;
+        }
+    };
+
+    private FrameTracer(){
+    }
+
+    public static void setEnabled(boolean enabled){
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled(){
+        return sEnabled;
+    }
+
+    /**
+     * A stage starts working on a frame
+     * @param frameId sensor timestamp of the frame in ns, or the presentation time in us * 1000
+     */
+    public static void begin(Stage stage, long frameId){
+        if(!sEnabled) return;
+        sThreadBuffer.get().add(System.nanoTime(), toFrameId(frameId), stage.ordinal(),
+                TraceBuffer.PHASE_BEGIN);
+    }
+
+    public static void end(Stage stage, long frameId){
+        if(!sEnabled) return;
+        sThreadBuffer.get().add(System.nanoTime(), toFrameId(frameId), stage.ordinal(),
+                TraceBuffer.PHASE_END);
+    }
+
+    /**
+     * The camera delivered the capture result of a frame
+     * @param sensorTimestamp start of the exposure in ns, the id of the frame
+     */
+    public static void onFrameCaptured(long sensorTimestamp){
+        sLastCapturedFrame = sensorTimestamp;
+        if(!sEnabled) return;
+        sThreadBuffer.get().add(System.nanoTime(), toFrameId(sensorTimestamp),
+                Stage.CAPTURE.ordinal(), TraceBuffer.PHASE_INSTANT);
+    }
+
+    /* sensor timestamp rounded down to us, negative ids mark an unknown frame and are kept */
+    private static long toFrameId(long timestamp){
+        return timestamp < 0 ? timestamp : timestamp / 1000 * 1000;
+    }
+
+    /**
+     * Frame id for stages that receive their frames through an allocation, which carries no
+     * timestamp up to API 22. Capture results arrive about when the buffers do, the id may belong
+     * to the neighbouring frame if the stage is behind.
+     * @return sensor timestamp of the newest capture result
+     */
+    public static long getLastCapturedFrame(){
+        return sLastCapturedFrame;
+    }
+
+    /**
+     * Discard all recorded events
+     */
+    public static void clear(){
+        for(TraceBuffer buffer : sBuffers){
+            buffer.clear();
+        }
+    }
+
+    /* EXPORT */
+
+    /**
+     * Write the events of a time window as Chrome trace event JSON
+     * @param startNs begin of the window, {@link System#nanoTime()} clock
+     * @param endNs end of the window
+     * @return number of events written
+     */
+    public static int writeChromeTrace(File file, long startNs, long endNs) throws IOException {
+        Writer writer = new BufferedWriter(new FileWriter(file));
+        try {
+            return writeChromeTrace(writer, startNs, endNs);
+        } finally {
+            writer.close();
+        }
+    }
+
+    public static int writeChromeTrace(Writer writer, long startNs, long endNs) throws IOException {
+        long[] times = new long[BUFFER_EVENTS];
+        long[] frames = new long[BUFFER_EVENTS];
+        byte[] stages = new byte[BUFFER_EVENTS];
+        byte[] phases = new byte[BUFFER_EVENTS];
+        Stage[] stageValues = Stage.values();
+        boolean first = true;
+        int written = 0;
+
+        writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        for(TraceBuffer buffer : sBuffers){
+            int count = buffer.copyEvents(startNs, endNs, times, frames, stages, phases);
+            if(count == 0) continue;
+
+            if(!first) writer.write(',');
+            first = false;
+            writer.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + buffer.threadId +
+                    ",\"args\":{\"name\":\"" + escape(buffer.threadName) + "\"}}");
+
+            for(int i = 0; i < count; i++){
+                byte phase = phases[i];
+                writer.write(",\n{\"name\":\"");
+                writer.write(stageValues[stages[i]].mName);
+                writer.write("\",\"cat\":\"frame\",\"ph\":\"");
+                writer.write(phase == TraceBuffer.PHASE_BEGIN ? "B" :
+                        phase == TraceBuffer.PHASE_END ? "E" : "i\",\"s\":\"t");
+                writer.write("\",\"ts\":");
+                writer.write(toMicroseconds(times[i]));
+                writer.write(",\"pid\":1,\"tid\":");
+                writer.write(Integer.toString(buffer.threadId));
+                writer.write(",\"args\":{\"frame\":");
+                writer.write(Long.toString(frames[i]));
+                writer.write("}}");
+                written++;
+            }
+        }
+        writer.write("\n]}\n");
+        return written;
+    }
+
+    /* ns to us with three decimals, the resolution of the trace format */
+    private static String toMicroseconds(long ns){
+        long fraction = ns % 1000;
+        return ns / 1000 + (fraction < 10 ? ".00" : fraction < 100 ? ".0" : ".") + fraction;
+    }
+
+    private static String escape(String text){
+        return text.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+}
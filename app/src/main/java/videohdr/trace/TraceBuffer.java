@@ -0,0 +1,92 @@
+package videohdr.trace;
+
+/**
+ * Ring of trace events of a single thread. The arrays are allocated once, recording only writes
+ * into them. Written by the owning thread only, {@link #copyEvents} can be called from any thread
+ * and drops events that were overwritten while copying.
+ */
+class TraceBuffer {
+
+    static final byte PHASE_BEGIN = 0;
+    static final byte PHASE_END = 1;
+    static final byte PHASE_INSTANT = 2;
+
+    final String threadName;
+    final int threadId;
+
+    private final int mCapacity;
+    private final long[] mTimes;
+    private final long[] mFrames;
+    private final byte[] mStages;
+    private final byte[] mPhases;
+    //total number of events written, publishes the arrays to readers
+    private volatile long mWritten = 0;
+    /*events before this index are discarded. clearing never touches mWritten, which only the
+    * owner writes, so a clear from another thread can't be lost*/
+    private volatile long mClearedBefore = 0;
+
+    TraceBuffer(String threadName, int threadId, int capacity){
+        this.threadName = threadName;
+        this.threadId = threadId;
+        mCapacity = capacity;
+        mTimes = new long[capacity];
+        mFrames = new long[capacity];
+        mStages = new byte[capacity];
+        mPhases = new byte[capacity];
+    }
+
+    void add(long timeNs, long frameId, int stage, byte phase){
+        long written = mWritten;
+        int i = (int) (written % mCapacity);
+        mTimes[i] = timeNs;
+        mFrames[i] = frameId;
+        mStages[i] = (byte) stage;
+        mPhases[i] = phase;
+        mWritten = written + 1;
+    }
+
+    /**
+     * Discard the events written so far, can be called from any thread
+     */
+    void clear(){
+        mClearedBefore = mWritten;
+    }
+
+    /**
+     * Copy the events within [startNs, endNs], oldest first
+     * @return number of events copied into the arrays, which need a length of at least the capacity
+     */
+    int copyEvents(long startNs, long endNs, long[] times, long[] frames, byte[] stages,
+                   byte[] phases){
+        long clearedBefore = mClearedBefore; //read first, it never passes mWritten
+        long written = mWritten;
+        long first = Math.max(clearedBefore, written - mCapacity);
+        int count = (int) (written - first);
+        for(int k = 0; k < count; k++){
+            int i = (int) ((first + k) % mCapacity);
+            times[k] = mTimes[i];
+            frames[k] = mFrames[i];
+            stages[k] = mStages[i];
+            phases[k] = mPhases[i];
+        }
+
+        /*the owner kept writing meanwhile, the oldest copied events may be overwritten. event
+        * mWritten may be in progress, it shares its slot with mWritten - mCapacity*/
+        int skip = (int) Math.max(0, Math.min(count, mWritten - mCapacity + 1 - first));
+
+        int kept = 0;
+        for(int k = skip; k < count; k++){
+            if(times[k] < startNs || times[k] > endNs) continue;
+            times[kept] = times[k];
+            frames[kept] = frames[k];
+            stages[kept] = stages[k];
+            phases[kept] = phases[k];
+            kept++;
+        }
+        return kept;
+    }
+
+    int getCapacity(){
+        return mCapacity;
+    }
+}
@@ -25,6 +25,7 @@ import android.widget.Button;
 import android.widget.CompoundButton;
 import android.widget.Switch;
 
+import videohdr.camera.CameraState;
 import videohdr.camera.HdrCamera;
 
 
@@ -251,9 +252,9 @@ public class VideoHdrFragment extends Fragment implements View.OnClickListener,
 
         @Override
         public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
-            HdrCamera.CameraState camState = mHdrCamera.getCameraState();
-            if(camState == HdrCamera.CameraState.MODE_UNDEREXPOSE
-                    || camState == HdrCamera.CameraState.MODE_OVEREXPOSE) {
+            CameraState camState = mHdrCamera.getCameraState();
+            if(camState == CameraState.MODE_UNDEREXPOSE
+                    || camState == CameraState.MODE_OVEREXPOSE) {
 
                 //calculate how much the exposure should be scaled up/down from the motion event
                 float height = mTextureView.getHeight();
@@ -7,20 +7,91 @@ rs_allocation gPrevFrame;
 int32_t *weights;
 int gFrameCounter = 0;
 
-uchar4 __attribute__((kernel)) fuseFrames(uchar4 prevPixel, uint32_t x, uint32_t y) {
+// YUV to RGB contribution of every value, see TableYuvConverter
+int32_t *gLumaTable;
+int32_t *gRedVTable;
+int32_t *gGreenUTable;
+int32_t *gGreenVTable;
+int32_t *gBlueUTable;
+
+// global tone curve applied to the fused luma, 256 entries, see ToneCurveCache
+int32_t *gToneCurve;
+
+// reduced working resolution: input pixels per fused pixel, fused pixels per output pixel
+float gInputScale = 1.f;
+rs_allocation gScaledFrame;
+float gOutputScale = 1.f;
+uint32_t gScaledWidth;
+uint32_t gScaledHeight;
+
+// copy of the previous frame into the buffer of another resolution
+rs_allocation gResampleSource;
+float gResampleScale = 1.f;
+
+// quality tiers: how the weights of the two frames are computed, see FusionEngines. The values
+// are the WEIGHT_ constants of CpuFusion
+#define WEIGHT_EQUAL 0      // mean of the pair
+#define WEIGHT_PIXEL 1      // weight of every pixel from its own luminance
+#define WEIGHT_SMOOTHED 2   // weight averaged over the 3x3 neighbourhood, less noise and halos
+int gWeightMode = WEIGHT_PIXEL;
+// while switching tiers the share of the current frame is mixed from both modes
+int gPrevWeightMode = WEIGHT_PIXEL;
+int gModeMix = 1024; // share of gWeightMode in 1/1024
+
+// the smoothed weight of a frame is kept in the alpha channel of the previous frame buffer
+#define STORED_WEIGHT_SCALE 200
+
+static int32_t smoothedWeight(uint32_t inX, uint32_t inY) {
+    uint32_t maxX = rsAllocationGetDimX(gCurrentFrame) - 1;
+    uint32_t maxY = rsAllocationGetDimY(gCurrentFrame) - 1;
+    uint32_t x0 = inX > 0 ? inX - 1 : 0;
+    uint32_t y0 = inY > 0 ? inY - 1 : 0;
+    uint32_t x1 = min(inX + 1, maxX);
+    uint32_t y1 = min(inY + 1, maxY);
+
+    int32_t sum = weights[rsGetElementAtYuv_uchar_Y(gCurrentFrame, x0, y0)] +
+                  weights[rsGetElementAtYuv_uchar_Y(gCurrentFrame, inX, y0)] +
+                  weights[rsGetElementAtYuv_uchar_Y(gCurrentFrame, x1, y0)] +
+                  weights[rsGetElementAtYuv_uchar_Y(gCurrentFrame, x0, inY)] +
+                  weights[rsGetElementAtYuv_uchar_Y(gCurrentFrame, inX, inY)] +
+                  weights[rsGetElementAtYuv_uchar_Y(gCurrentFrame, x1, inY)] +
+                  weights[rsGetElementAtYuv_uchar_Y(gCurrentFrame, x0, y1)] +
+                  weights[rsGetElementAtYuv_uchar_Y(gCurrentFrame, inX, y1)] +
+                  weights[rsGetElementAtYuv_uchar_Y(gCurrentFrame, x1, y1)];
+    return sum / 9;
+}
+
+// share of the current frame in 1/1024
+static int32_t currentShare(int mode, uchar4 prevPixel, uchar4 curPixel, int32_t curSmoothed) {
+    int32_t curPixWeight;
+    int32_t prevPixWeight;
+    if (mode == WEIGHT_EQUAL) {
+        return 512;
+    } else if (mode == WEIGHT_SMOOTHED) {
+        curPixWeight = curSmoothed;
+        prevPixWeight = prevPixel.a * STORED_WEIGHT_SCALE;
+    } else {
+        curPixWeight = weights[curPixel.r];
+        prevPixWeight = weights[prevPixel.r];
+    }
+    return curPixWeight * 1024 / (curPixWeight + prevPixWeight);
+}
+
+static uchar4 fuse(uchar4 prevPixel, uint32_t x, uint32_t y, uint32_t inX, uint32_t inY) {
 
     // Read in pixel values from latest frame - YUV color space
 
     uchar4 curPixel;
-    curPixel.r = rsGetElementAtYuv_uchar_Y(gCurrentFrame, x, y);
-    curPixel.g = rsGetElementAtYuv_uchar_U(gCurrentFrame, x, y);
-    curPixel.b = rsGetElementAtYuv_uchar_V(gCurrentFrame, x, y);
+    curPixel.r = rsGetElementAtYuv_uchar_Y(gCurrentFrame, inX, inY);
+    curPixel.g = rsGetElementAtYuv_uchar_U(gCurrentFrame, inX, inY);
+    curPixel.b = rsGetElementAtYuv_uchar_V(gCurrentFrame, inX, inY);
     curPixel.a = 255;
 
-    int32_t curPixWeight = weights[curPixel.r];
-    int32_t prevPixWeight = weights[prevPixel.r];
-    int32_t sumWeights = curPixWeight + prevPixWeight;
-
+    int32_t curSmoothed = 0;
+    if (gWeightMode == WEIGHT_SMOOTHED || (gModeMix < 1024 && gPrevWeightMode == WEIGHT_SMOOTHED)) {
+        curSmoothed = smoothedWeight(inX, inY);
+        curPixel.a = curSmoothed / STORED_WEIGHT_SCALE;
+    }
 
     //curPixel.r contains the Y component, which represents luminance
     //compute the weight for this pixel, use weight from previous pixel. combine accordingly
@@ -28,26 +99,35 @@ uchar4 __attribute__((kernel)) fuseFrames(uchar4 prevPixel, uint32_t x, uint32_t
     //and outer parts (over/underexposed have low weights)
 
     int4 temp;
-    // simple mean value merge of the frames. would not require frame swap above
-
-    temp.r = prevPixWeight * prevPixel.r / sumWeights + curPixWeight * curPixel.r / sumWeights;
-    temp.g = prevPixWeight * prevPixel.g / sumWeights + curPixWeight * curPixel.g / sumWeights;
-    temp.b = prevPixWeight * prevPixel.b / sumWeights + curPixWeight * curPixel.b / sumWeights;
+    if (gWeightMode == WEIGHT_PIXEL && gModeMix >= 1024) {
+        // weighted mean of the frames, the original arithmetic
+        int32_t curPixWeight = weights[curPixel.r];
+        int32_t prevPixWeight = weights[prevPixel.r];
+        int32_t sumWeights = curPixWeight + prevPixWeight;
+        temp.r = prevPixWeight * prevPixel.r / sumWeights + curPixWeight * curPixel.r / sumWeights;
+        temp.g = prevPixWeight * prevPixel.g / sumWeights + curPixWeight * curPixel.g / sumWeights;
+        temp.b = prevPixWeight * prevPixel.b / sumWeights + curPixWeight * curPixel.b / sumWeights;
+    } else {
+        // blend by the share of the current frame, for WEIGHT_PIXEL while crossfading this is
+        // at most 2 levels off the weighted mean above
+        int32_t share = currentShare(gWeightMode, prevPixel, curPixel, curSmoothed);
+        if (gModeMix < 1024) {
+            int32_t prevShare = currentShare(gPrevWeightMode, prevPixel, curPixel, curSmoothed);
+            share = (share * gModeMix + prevShare * (1024 - gModeMix)) / 1024;
+        }
+        temp.r = ((1024 - share) * prevPixel.r + share * curPixel.r) / 1024;
+        temp.g = ((1024 - share) * prevPixel.g + share * curPixel.g) / 1024;
+        temp.b = ((1024 - share) * prevPixel.b + share * curPixel.b) / 1024;
+    }
     uchar4 mergedPixel = convert_uchar4(clamp(temp, 0, 255));
+    mergedPixel.r = gToneCurve[mergedPixel.r];
 
-    // Convert YUV to RGB, JFIF transform with fixed-point math
-    // R = Y + 1.402 * (V - 128)
-    // G = Y - 0.34414 * (U - 128) - 0.71414 * (V - 128)
-    // B = Y + 1.772 * (U - 128)
-
+    // Convert YUV to RGB with the tables of the color space of the camera output
+    int32_t luma = gLumaTable[mergedPixel.r];
     int4 rgb;
-    rgb.r = mergedPixel.r +
-            mergedPixel.b * 1436 / 1024 - 179;
-    rgb.g = mergedPixel.r -
-            mergedPixel.g * 46549 / 131072 + 44 -
-            mergedPixel.b * 93604 / 131072 + 91;
-    rgb.b = mergedPixel.r +
-            mergedPixel.g * 1814 / 1024 - 227;
+    rgb.r = luma + gRedVTable[mergedPixel.b];
+    rgb.g = luma + gGreenUTable[mergedPixel.g] + gGreenVTable[mergedPixel.b];
+    rgb.b = luma + gBlueUTable[mergedPixel.g];
     rgb.a = 255;
 
     // Store current pixel for next frame
@@ -58,3 +138,58 @@ uchar4 __attribute__((kernel)) fuseFrames(uchar4 prevPixel, uint32_t x, uint32_t
 
     return out;
 }
+
+uchar4 __attribute__((kernel)) fuseFrames(uchar4 prevPixel, uint32_t x, uint32_t y) {
+    return fuse(prevPixel, x, y, x, y);
+}
+
+// fuse at reduced resolution, the current frame is sampled at the scaled position
+uchar4 __attribute__((kernel)) fuseFramesScaled(uchar4 prevPixel, uint32_t x, uint32_t y) {
+    return fuse(prevPixel, x, y, (uint32_t) (x * gInputScale), (uint32_t) (y * gInputScale));
+}
+
+// bilinear upscale of the fused frame to the output size
+uchar4 __attribute__((kernel)) upscale(uint32_t x, uint32_t y) {
+    float fx = max(x * gOutputScale - 0.5f, 0.f);
+    float fy = max(y * gOutputScale - 0.5f, 0.f);
+    uint32_t x0 = min((uint32_t) fx, gScaledWidth - 1);
+    uint32_t y0 = min((uint32_t) fy, gScaledHeight - 1);
+    uint32_t x1 = min(x0 + 1, gScaledWidth - 1);
+    uint32_t y1 = min(y0 + 1, gScaledHeight - 1);
+    float ax = fx - x0;
+    float ay = fy - y0;
+
+    float4 top = mix(convert_float4(rsGetElementAt_uchar4(gScaledFrame, x0, y0)),
+                     convert_float4(rsGetElementAt_uchar4(gScaledFrame, x1, y0)), ax);
+    float4 bottom = mix(convert_float4(rsGetElementAt_uchar4(gScaledFrame, x0, y1)),
+                        convert_float4(rsGetElementAt_uchar4(gScaledFrame, x1, y1)), ax);
+    return convert_uchar4(clamp(mix(top, bottom, ay), 0.f, 255.f));
+}
+
+// first exposure of a pair in paired output: the frame is only stored as the partner of the
+// next one, in the same form fuse() stores it
+static uchar4 storedPixel(uint32_t inX, uint32_t inY) {
+    uchar4 curPixel;
+    curPixel.r = rsGetElementAtYuv_uchar_Y(gCurrentFrame, inX, inY);
+    curPixel.g = rsGetElementAtYuv_uchar_U(gCurrentFrame, inX, inY);
+    curPixel.b = rsGetElementAtYuv_uchar_V(gCurrentFrame, inX, inY);
+    curPixel.a = 255;
+    if (gWeightMode == WEIGHT_SMOOTHED || (gModeMix < 1024 && gPrevWeightMode == WEIGHT_SMOOTHED)) {
+        curPixel.a = smoothedWeight(inX, inY) / STORED_WEIGHT_SCALE;
+    }
+    return curPixel;
+}
+
+uchar4 __attribute__((kernel)) storeFrame(uint32_t x, uint32_t y) {
+    return storedPixel(x, y);
+}
+
+uchar4 __attribute__((kernel)) storeFrameScaled(uint32_t x, uint32_t y) {
+    return storedPixel((uint32_t) (x * gInputScale), (uint32_t) (y * gInputScale));
+}
+
+// nearest neighbour copy of the previous frame when the working resolution changes
+uchar4 __attribute__((kernel)) resample(uint32_t x, uint32_t y) {
+    return rsGetElementAt_uchar4(gResampleSource, (uint32_t) (x * gResampleScale),
+                                 (uint32_t) (y * gResampleScale));
+}
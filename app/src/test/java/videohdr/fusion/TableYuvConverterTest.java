@@ -0,0 +1,110 @@
+package videohdr.fusion;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the YUV to RGB tables of {@link TableYuvConverter} for all 2^24 YUV values. Two
+ * references are checked separately:
+ * - BT601_FULL is bit identical to the fixed point transform of {@link YuvConverter}, the one the
+ *   fusion script used before the tables. It inherits the error of that transform, which
+ *   truncates its terms and is up to MAX_FIXED_POINT_ERROR off the exact transform
+ * - the other color spaces are within MAX_ERROR of the rounded exact transform
+ */
+public class TableYuvConverterTest {
+
+    //each of the three table terms rounds
+    private static final int MAX_ERROR = 1;
+    private static final int MAX_FIXED_POINT_ERROR = 3;
+    private static final int FRAME_WIDTH = 320;
+    private static final int FRAME_HEIGHT = 240;
+
+    @Test
+    public void bt601FullIsTheFixedPointTransform(){
+        TableYuvConverter converter =
+                new TableYuvConverter(TableYuvConverter.ColorSpace.BT601_FULL);
+        long mismatches = 0;
+        for(int y = 0; y < 256; y++){
+            for(int u = 0; u < 256; u++){
+                for(int v = 0; v < 256; v++){
+                    if(converter.toArgb(y, u, v) != YuvConverter.toArgb(y, u, v)) mismatches++;
+                }
+            }
+        }
+        assertEquals("YUV values that differ from the fixed point transform", 0, mismatches);
+    }
+
+    @Test
+    public void fixedPointTransformIsCloseToExact(){
+        int maxError = 0;
+        for(int y = 0; y < 256; y++){
+            for(int u = 0; u < 256; u++){
+                for(int v = 0; v < 256; v++){
+                    int argb = YuvConverter.toArgb(y, u, v);
+                    maxError = Math.max(maxError,
+                            exactError(TableYuvConverter.ColorSpace.BT601_FULL, argb, y, u, v));
+                }
+            }
+        }
+        assertTrue("fixed point transform is " + maxError + " off the exact transform",
+                maxError <= MAX_FIXED_POINT_ERROR);
+    }
+
+    @Test
+    public void tablesAreCloseToExact(){
+        for(TableYuvConverter.ColorSpace colorSpace : TableYuvConverter.ColorSpace.values()){
+            //follows the fixed point transform instead, see above
+            if(colorSpace == TableYuvConverter.ColorSpace.BT601_FULL) continue;
+
+            TableYuvConverter converter = new TableYuvConverter(colorSpace);
+            int maxError = 0;
+            for(int y = 0; y < 256; y++){
+                for(int u = 0; u < 256; u++){
+                    for(int v = 0; v < 256; v++){
+                        maxError = Math.max(maxError,
+                                exactError(colorSpace, converter.toArgb(y, u, v), y, u, v));
+                    }
+                }
+            }
+            assertTrue(colorSpace + " tables are " + maxError + " off the exact transform",
+                    maxError <= MAX_ERROR);
+        }
+    }
+
+    @Test
+    public void blockConversionMatchesPixels(){
+        YuvFrame frame = new YuvFrame(FRAME_WIDTH, FRAME_HEIGHT);
+        frame.fillSynthetic(7, 1.5f);
+        int[] out = new int[FRAME_WIDTH * FRAME_HEIGHT];
+        for(TableYuvConverter.ColorSpace colorSpace : TableYuvConverter.ColorSpace.values()){
+            TableYuvConverter converter = new TableYuvConverter(colorSpace);
+            converter.convert(frame, out);
+            long mismatches = 0;
+            for(int row = 0; row < FRAME_HEIGHT; row++){
+                for(int col = 0; col < FRAME_WIDTH; col++){
+                    int c = (row / 2) * (FRAME_WIDTH / 2) + col / 2;
+                    int expected = converter.toArgb(frame.y[row * FRAME_WIDTH + col] & 0xff,
+                            frame.u[c] & 0xff, frame.v[c] & 0xff);
+                    if(out[row * FRAME_WIDTH + col] != expected) mismatches++;
+                }
+            }
+            assertEquals(colorSpace + " pixels that differ from the single conversion", 0,
+                    mismatches);
+        }
+    }
+
+    /* largest difference of a channel to the rounded exact transform */
+    private static int exactError(TableYuvConverter.ColorSpace colorSpace, int argb,
+                                  int y, int u, int v){
+        double[] rgb = colorSpace.toRgb(y, u, v);
+        int error = 0;
+        for(int channel = 0; channel < 3; channel++){
+            int exact = YuvConverter.clamp((int) Math.round(rgb[channel]));
+            int value = (argb >>> (16 - 8 * channel)) & 0xff;
+            error = Math.max(error, Math.abs(value - exact));
+        }
+        return error;
+    }
+}
@@ -0,0 +1,290 @@
+package videohdr.pipeline;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedWriter;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.concurrent.Executor;
+
+import videohdr.camera.CameraState;
+import videohdr.camera.ExposureMeter;
+import videohdr.fusion.CpuFusion;
+import videohdr.fusion.LumaHistogram;
+import videohdr.fusion.YuvFrame;
+import videohdr.metrics.StageMetrics;
+import videohdr.renderscript.FusionController;
+import videohdr.renderscript.FusionEngine;
+import videohdr.trace.FrameTracer;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The per-frame paths must not allocate once they are warmed up. Frames are signalled to stages
+ * registered with a {@link PipelineScheduler}, every path runs WARMUP_FRAMES, then the bytes the
+ * thread allocated over MEASURED_FRAMES are read from the allocation counter of the VM. The
+ * stages run on a direct executor, so signalling, the stage and its consumer all count for the
+ * test thread. The RenderScript kernels are replaced by their CPU counterparts.
+ *
+ * Needs the thread allocation counter of HotSpot (com.sun.management.ThreadMXBean), it is looked up
+ * by reflection as the tests are compiled against android.jar. Skipped on other VMs.
+ */
+public class AllocationTest {
+
+    private static final int WARMUP_FRAMES = 20000;
+    private static final int MEASURED_FRAMES = 5000;
+
+    /* the per-frame work of the bookkeeping does not depend on the size */
+    private static final int METERING_WIDTH = 160;
+    private static final int METERING_HEIGHT = 120;
+    private static final int FUSION_WIDTH = 80;
+    private static final int FUSION_HEIGHT = 60;
+    //exposure with brightness 1 of the synthetic scene: ISO 80, 8ms
+    private static final double REFERENCE_EXPOSURE = 80 * 8e6;
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final ExposureMeter.CameraStateSource RECORDING =
+            new ExposureMeter.CameraStateSource() {
+                @Override
+                public CameraState getCameraState() {
+                    return CameraState.MODE_RECORD;
+                }
+            };
+
+    private Object mThreadBean;
+    private Method mAllocatedBytes;
+    private Object[] mThreadId;
+    private PipelineScheduler mScheduler;
+
+    @Before
+    public void setUp(){
+        Assume.assumeTrue("no thread allocation counter on this VM", initCounter());
+        mScheduler = new PipelineScheduler(DIRECT);
+        FrameTracer.setEnabled(true);
+    }
+
+    @After
+    public void tearDown(){
+        FrameTracer.setEnabled(false);
+        if(mScheduler != null) mScheduler.shutdown();
+    }
+
+    /* histogram hand-off, auto metering with the dispatch of the meter events to the session
+    * and the tone curve of the fusion */
+    @Test
+    public void metering(){
+        ExposureMeter meter = createMeter();
+        meter.startAutoMetering();
+        //like the capture session: read the values and look up the requests
+        final long[] requestKeys = new long[2];
+        meter.setMeteringEventListener(new ExposureMeter.EventListener() {
+            @Override
+            public void onMeterEvent(ExposureMeter.MeteringParam param) {
+                requestKeys[0] = (long) param.getUnderexposeIso() << 32 | param.getUnderexposeDuration();
+                requestKeys[1] = (long) param.getOverexposeIso() << 32 | param.getOverexposeDuration();
+            }
+        });
+        meter.setHistogramListener(new FusionController(new CpuKernels()));
+
+        assertNoAllocation("metering", registerMetering(meter));
+    }
+
+    /* manual metering while recording logs every histogram */
+    @Test
+    public void histogramLog(){
+        ExposureMeter meter = createMeter();
+        meter.stopAutoMetering();
+        meter.setHistogramLog(new BufferedWriter(new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }));
+
+        assertNoAllocation("histogram log", registerMetering(meter));
+    }
+
+    /* fusion stage in paired output mode: pairing by frame number, both governors, the crossfade
+    * of the engines and the tone curve hand-off */
+    @Test
+    public void pairedFusion(){
+        final CpuKernels kernels = new CpuKernels();
+        final FusionController fusion = new FusionController(kernels);
+        fusion.setPairedOutput(true);
+        final PipelineStage stage = mScheduler.register("fusion", Worker.FUSION,
+                1, DropPolicy.DROP_OLDEST, fusion, fusion.getMetrics());
+        final int[] histogram = new int[LumaHistogram.BINS];
+
+        assertNoAllocation("fusion", new FrameSource() {
+            @Override
+            public void signalFrame(long frameNumber) {
+                FrameTracer.onFrameCaptured(System.nanoTime());
+                fusion.onFrameCaptured(frameNumber, (int) (frameNumber & 1));
+                //new tone curves now and then, like a changing scene
+                if(frameNumber % 100 == 0) {
+                    LumaHistogram.compute(kernels.mFrame, histogram);
+                    fusion.onHistogramAvailable(histogram);
+                }
+                stage.onFrameAvailable();
+            }
+        });
+        assertEquals(WARMUP_FRAMES / 2 + MEASURED_FRAMES / 2, fusion.getOutputFrameCount());
+    }
+
+    /* CPU version of the fuse script, every resolution tier fuses at full size */
+    private static class CpuKernels implements FusionController.Kernels {
+        private final CpuFusion mFusion = new CpuFusion(FUSION_WIDTH, FUSION_HEIGHT);
+        private final YuvFrame mFrame = new YuvFrame(FUSION_WIDTH, FUSION_HEIGHT);
+        private final int[] mOutput = new int[FUSION_WIDTH * FUSION_HEIGHT];
+        private final int[] mToneCurve = new int[LumaHistogram.BINS];
+        private long mFrameIndex = 0;
+
+        @Override
+        public void receiveFrame() {
+            mFrame.fillSynthetic(mFrameIndex, mFrameIndex % 2 == 0 ? 0.25f : 2f);
+            mFrameIndex++;
+        }
+
+        @Override
+        public void storeFrame(int tier) {
+            //the fusion keeps the frame as the previous one
+            mFusion.fuse(mFrame, mOutput);
+        }
+
+        @Override
+        public void switchTier(int fromTier, int toTier) {
+        }
+
+        @Override
+        public void switchEngine(FusionEngine from, FusionEngine to) {
+            mFusion.setWeightMode(to.getWeightMode());
+        }
+
+        @Override
+        public void setModeMix(int modeMix) {
+        }
+
+        @Override
+        public void setToneCurve(int[] curve) {
+            System.arraycopy(curve, 0, mToneCurve, 0, mToneCurve.length);
+        }
+
+        @Override
+        public void fuseFrame(int tier, int frameCounter) {
+            mFusion.fuse(mFrame, mOutput);
+        }
+    }
+
+    /**
+     * Signals the frames of a path to its stages
+     */
+    private interface FrameSource {
+        void signalFrame(long frameNumber);
+    }
+
+    private ExposureMeter createMeter(){
+        ExposureMeter meter = new ExposureMeter(RECORDING);
+        meter.setMeteringResolution(METERING_WIDTH, METERING_HEIGHT);
+        return meter;
+    }
+
+    /* metering stage with the histogram of the CPU instead of the histogram intrinsic, the frames
+    * are exposed with the values of the meter */
+    private FrameSource registerMetering(final ExposureMeter meter){
+        final YuvFrame frame = new YuvFrame(METERING_WIDTH, METERING_HEIGHT);
+        final int[] histogram = new int[LumaHistogram.BINS];
+        final StageMetrics metrics = new StageMetrics("metering");
+        final long[] frameIndex = new long[1];
+        final PipelineStage stage = mScheduler.register("metering",
+                Worker.METERING, 1, DropPolicy.DROP_OLDEST,
+                new FrameConsumer() {
+                    @Override
+                    public void discardFrame() {
+                    }
+
+                    @Override
+                    public void processFrame(long queueWaitNs, int droppedFrames) {
+                        long start = System.nanoTime();
+                        ExposureMeter.MeteringParam param = meter.getMeteringValues();
+                        double exposure = frameIndex[0] % 2 == 0 ?
+                                (double) param.getUnderexposeIso() * param.getUnderexposeDuration() :
+                                (double) param.getOverexposeIso() * param.getOverexposeDuration();
+                        frame.fillSynthetic(frameIndex[0]++, (float) (exposure / REFERENCE_EXPOSURE));
+                        LumaHistogram.compute(frame, histogram);
+                        meter.onHistogramAvailable(histogram);
+                        metrics.onFrameProcessed(queueWaitNs, System.nanoTime() - start, droppedFrames);
+                    }
+                }, metrics);
+
+        return new FrameSource() {
+            @Override
+            public void signalFrame(long frameNumber) {
+                stage.onFrameAvailable();
+            }
+        };
+    }
+
+    private void assertNoAllocation(String path, FrameSource source){
+        for(long i = 0; i < WARMUP_FRAMES; i++){
+            source.signalFrame(i);
+        }
+        long overhead = counterOverhead();
+        long before = allocatedBytes();
+        for(long i = WARMUP_FRAMES; i < WARMUP_FRAMES + MEASURED_FRAMES; i++){
+            source.signalFrame(i);
+        }
+        long allocated = Math.max(0, allocatedBytes() - before - overhead);
+        assertEquals(String.format("%s allocates %.2f bytes/frame", path,
+                (double) allocated / MEASURED_FRAMES), 0, allocated);
+    }
+
+    /* ALLOCATION COUNTER */
+
+    private boolean initCounter(){
+        try {
+            Class<?> factory = Class.forName("java.lang.management.ManagementFactory");
+            mThreadBean = factory.getMethod("getThreadMXBean").invoke(null);
+            Class<?> bean = Class.forName("com.sun.management.ThreadMXBean");
+            if(!bean.isInstance(mThreadBean)) return false;
+            mAllocatedBytes = bean.getMethod("getThreadAllocatedBytes", long.class);
+            mThreadId = new Object[]{Thread.currentThread().getId()};
+            return allocatedBytes() >= 0;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private long allocatedBytes(){
+        try {
+            return (Long) mAllocatedBytes.invoke(mThreadBean, mThreadId);
+        } catch (Exception e) {
+            throw new IllegalStateException("reading the allocation counter failed", e);
+        }
+    }
+
+    /* bytes reading the counter allocates itself, e.g. the boxed result */
+    private long counterOverhead(){
+        long overhead = Long.MAX_VALUE;
+        for(int i = 0; i < 100; i++){
+            long before = allocatedBytes();
+            overhead = Math.min(overhead, allocatedBytes() - before);
+        }
+        return overhead;
+    }
+}
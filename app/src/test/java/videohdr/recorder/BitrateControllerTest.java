@@ -0,0 +1,104 @@
+package videohdr.recorder;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs {@link BitrateController} against the {@link SimulatedEncoderModel} of a 1080p30 encoder
+ * with the bitrate range of {@link VideoRecorder}. The scenes are given per second as histogram
+ * spread, pair brightness delta and temporal brightness delta.
+ */
+public class BitrateControllerTest {
+
+    private static final int WIDTH = 1920;
+    private static final int HEIGHT = 1080;
+    private static final int FRAME_RATE = 30;
+    private static final int KEY_FRAME_INTERVAL = 30;
+    private static final int MIN_BIT_RATE = 10000000;
+    private static final int MAX_BIT_RATE = 100000000;
+
+    private static final float[] FLAT_STATIC = {8f, 10f, 0.2f};
+    private static final float[] DETAILED_ALTERNATING = {70f, 120f, 10f};
+    private static final float[] MEDIUM = {35f, 50f, 2f};
+
+    @Test
+    public void mixedSceneNeedsLessStorageThanFixedRate(){
+        float[][] trace = concat(repeat(FLAT_STATIC, 20), repeat(DETAILED_ALTERNATING, 20),
+                repeat(MEDIUM, 20));
+        SimulatedEncoderModel.Scene scene = new SimulatedEncoderModel.Scene();
+        SimulatedEncoderModel adaptive = SimulatedEncoderModel.simulate(
+                new BitrateController(scene, MIN_BIT_RATE, MAX_BIT_RATE), scene, trace,
+                WIDTH, HEIGHT, FRAME_RATE, KEY_FRAME_INTERVAL);
+        SimulatedEncoderModel fixed = encodeFixed(trace, MAX_BIT_RATE);
+
+        assertTrue(adaptive + " vs fixed " + fixed,
+                adaptive.getTotalBytes() < 0.85 * fixed.getTotalBytes());
+        assertTrue(adaptive.toString(), adaptive.getMeanQuality() > 0.98f);
+    }
+
+    @Test
+    public void staticSceneGoesDownToTheProducedRate(){
+        SimulatedEncoderModel.Scene scene = new SimulatedEncoderModel.Scene();
+        BitrateController controller = new BitrateController(scene, MIN_BIT_RATE, MAX_BIT_RATE);
+        SimulatedEncoderModel model = SimulatedEncoderModel.simulate(controller, scene,
+                repeat(FLAT_STATIC, 30), WIDTH, HEIGHT, FRAME_RATE, KEY_FRAME_INTERVAL);
+
+        assertTrue(controller.toString(), controller.getBitRate() < MAX_BIT_RATE / 2);
+        assertEquals("degraded frames, " + model, 0, model.getDegradedFrames());
+    }
+
+    @Test
+    public void detailedAlternatingSceneKeepsTheMaximum(){
+        SimulatedEncoderModel.Scene scene = new SimulatedEncoderModel.Scene();
+        BitrateController controller = new BitrateController(scene, MIN_BIT_RATE, MAX_BIT_RATE);
+        SimulatedEncoderModel.simulate(controller, scene, repeat(DETAILED_ALTERNATING, 30),
+                WIDTH, HEIGHT, FRAME_RATE, KEY_FRAME_INTERVAL);
+
+        assertEquals(controller.toString(), MAX_BIT_RATE, controller.getBitRate());
+    }
+
+    @Test
+    public void storageBudgetCapsTheTarget(){
+        int budget = 40000000;
+        SimulatedEncoderModel.Scene scene = new SimulatedEncoderModel.Scene();
+        BitrateController controller = new BitrateController(scene, MIN_BIT_RATE, MAX_BIT_RATE);
+        controller.setStorageBudget((long) budget / 8 * 60, 60);
+        SimulatedEncoderModel model = SimulatedEncoderModel.simulate(controller, scene,
+                repeat(DETAILED_ALTERNATING, 60), WIDTH, HEIGHT, FRAME_RATE, KEY_FRAME_INTERVAL);
+
+        assertTrue(controller.toString(), controller.getBitRate() <= budget);
+        //the model overshoots a target that is too low for the content, see OVERSHOOT
+        assertTrue(model.toString(), model.getMeanBitRate() < 1.5 * budget);
+    }
+
+    /* the encoder at a constant bitrate, without a controller */
+    private static SimulatedEncoderModel encodeFixed(float[][] trace, int bitRate){
+        SimulatedEncoderModel model = new SimulatedEncoderModel(WIDTH, HEIGHT, FRAME_RATE,
+                KEY_FRAME_INTERVAL, bitRate);
+        for(float[] values : trace){
+            float complexity = BitrateController.estimateComplexity(values[0], values[1], values[2]);
+            for(int i = 0; i < FRAME_RATE; i++) model.encodeFrame(complexity);
+        }
+        return model;
+    }
+
+    private static float[][] repeat(float[] values, int seconds){
+        float[][] trace = new float[seconds][];
+        for(int i = 0; i < seconds; i++) trace[i] = values;
+        return trace;
+    }
+
+    private static float[][] concat(float[][]... parts){
+        int length = 0;
+        for(float[][] part : parts) length += part.length;
+        float[][] trace = new float[length][];
+        int position = 0;
+        for(float[][] part : parts){
+            System.arraycopy(part, 0, trace, position, part.length);
+            position += part.length;
+        }
+        return trace;
+    }
+}
@@ -0,0 +1,162 @@
+package videohdr.recorder;
+
+/**
+ * Rate model of an H.264 encoder, to evaluate bitrate policies without a device, see
+ * {@link BitrateControllerTest}.
+ *
+ * Every scene needs a certain number of bits per pixel for good quality, growing with its
+ * complexity (see {@link BitrateController#estimateComplexity(float, float, float)}). Frames that
+ * need less than the target still get MIN_FILL of it, like from the rate control of a real
+ * encoder, frames that need more overshoot the target until rate control catches up. Key
+ * frames take KEY_FRAME_FACTOR times the bits of a predicted frame. Quality of a frame is the
+ * ratio of the bits it got to the bits it needed, capped at 1.
+ */
+public class SimulatedEncoderModel {
+
+    //bits per pixel a scene needs, from flat and static to alternating and detailed
+    private static final float MIN_BITS_PER_PIXEL = 0.05f;
+    private static final float MAX_BITS_PER_PIXEL = 1.6f;
+    private static final float KEY_FRAME_FACTOR = 4f;
+    //share of the missing bits that rate control lets through
+    private static final float OVERSHOOT = 0.25f;
+    //share of the target spent on frames that need less
+    private static final float MIN_FILL = 0.5f;
+    //frames below this quality count as visibly degraded
+    private static final float DEGRADED_QUALITY = 0.8f;
+
+    /**
+     * Content source with values set by the simulation
+     */
+    public static class Scene implements BitrateController.ContentSource {
+        public float spread;
+        public float pairDelta;
+        public float temporalDelta;
+
+        public void set(float spread, float pairDelta, float temporalDelta){
+            this.spread = spread;
+            this.pairDelta = pairDelta;
+            this.temporalDelta = temporalDelta;
+        }
+
+        @Override
+        public float getHistogramSpread() {
+            return spread;
+        }
+
+        @Override
+        public float getPairBrightnessDelta() {
+            return pairDelta;
+        }
+
+        @Override
+        public float getTemporalBrightnessDelta() {
+            return temporalDelta;
+        }
+    }
+
+    private final int mPixels;
+    private final int mFrameRate;
+    private final int mKeyFrameInterval;
+    private int mBitRate;
+
+    private long mFrames = 0;
+    private long mTotalBytes = 0;
+    private double mQualitySum = 0;
+    private long mDegradedFrames = 0;
+
+    /**
+     * @param keyFrameInterval frames between key frames
+     */
+    public SimulatedEncoderModel(int width, int height, int frameRate, int keyFrameInterval,
+                                 int bitRate){
+        mPixels = width * height;
+        mFrameRate = frameRate;
+        mKeyFrameInterval = keyFrameInterval;
+        mBitRate = bitRate;
+    }
+
+    public void setBitRate(int bitRate){
+        mBitRate = bitRate;
+    }
+
+    /**
+     * Encode the next frame
+     * @param complexity of the content, 0 - 1
+     * @return size of the encoded frame in bytes
+     */
+    public int encodeFrame(float complexity){
+        boolean keyFrame = mFrames % mKeyFrameInterval == 0;
+        float gopFrames = mKeyFrameInterval - 1 + KEY_FRAME_FACTOR;
+        float frameShare = (keyFrame ? KEY_FRAME_FACTOR : 1f) * mKeyFrameInterval / gopFrames;
+
+        float neededBits = mPixels * (MIN_BITS_PER_PIXEL +
+                (MAX_BITS_PER_PIXEL - MIN_BITS_PER_PIXEL) * complexity) * frameShare;
+        float targetBits = (float) mBitRate / mFrameRate * frameShare;
+
+        float bits = neededBits <= targetBits ? Math.max(neededBits, MIN_FILL * targetBits) :
+                targetBits + OVERSHOOT * (neededBits - targetBits);
+
+        float quality = Math.min(1f, bits / neededBits);
+        mQualitySum += quality;
+        if(quality < DEGRADED_QUALITY) mDegradedFrames++;
+        mFrames++;
+
+        int bytes = (int) (bits / 8);
+        mTotalBytes += bytes;
+        return bytes;
+    }
+
+    /**
+     * Run a bitrate controller against the model
+     * @param controller policy under test, its content source has to be {@code scene}
+     * @param scene content that is changed by {@code sceneChanges}
+     * @param sceneChanges values of the scene per second: spread, pair delta, temporal delta
+     * @return the model with the statistics of the run
+     */
+    public static SimulatedEncoderModel simulate(BitrateController controller, Scene scene,
+                                                 float[][] sceneChanges, int width, int height,
+                                                 int frameRate, int keyFrameInterval){
+        SimulatedEncoderModel model = new SimulatedEncoderModel(width, height, frameRate,
+                keyFrameInterval, controller.getBitRate());
+        long frameDurationUs = 1000000 / frameRate;
+        long timestamp = 0;
+
+        for(float[] values : sceneChanges){
+            scene.set(values[0], values[1], values[2]);
+            float complexity = BitrateController.estimateComplexity(values[0], values[1], values[2]);
+            for(int i = 0; i < frameRate; i++){
+                int size = model.encodeFrame(complexity);
+                int bitRate = controller.onEncodedFrame(size, timestamp);
+                if(bitRate > 0) model.setBitRate(bitRate);
+                timestamp += frameDurationUs;
+            }
+        }
+        return model;
+    }
+
+    /* STATISTICS */
+
+    public long getTotalBytes(){
+        return mTotalBytes;
+    }
+
+    public int getMeanBitRate(){
+        if(mFrames == 0) return 0;
+        return (int) (mTotalBytes * 8 * mFrameRate / mFrames);
+    }
+
+    public float getMeanQuality(){
+        return mFrames > 0 ? (float) (mQualitySum / mFrames) : 0;
+    }
+
+    public long getDegradedFrames(){
+        return mDegradedFrames;
+    }
+
+    @Override
+    public String toString(){
+        return "model: " + mFrames + " frames, " + mTotalBytes / 1024 + "kB, mean " +
+                getMeanBitRate() / 1000 + "kbit/s, quality " + String.format("%.3f", getMeanQuality()) +
+                ", " + mDegradedFrames + " degraded";
+    }
+}
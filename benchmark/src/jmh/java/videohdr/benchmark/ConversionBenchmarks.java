@@ -0,0 +1,65 @@
+package videohdr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import videohdr.fusion.TableYuvConverter;
+import videohdr.fusion.YuvConverter;
+import videohdr.fusion.YuvFrame;
+
+/**
+ * YUV to RGB conversion of a frame with the fixed point transform of {@link YuvConverter} and
+ * with the tables of {@link TableYuvConverter}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ConversionBenchmarks {
+
+    //preview and video size
+    @Param({"960x720", "1920x1080"})
+    public String size;
+
+    private YuvFrame mFrame;
+    private int[] mOut;
+
+    @State(Scope.Thread)
+    public static class Tables {
+        @Param({"BT601_FULL", "BT709_LIMITED"})
+        public String colorSpace;
+
+        private TableYuvConverter mConverter;
+
+        @Setup
+        public void setUp(){
+            mConverter = new TableYuvConverter(TableYuvConverter.ColorSpace.valueOf(colorSpace));
+        }
+    }
+
+    @Setup
+    public void setUp(){
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        mFrame = SyntheticFrames.createPair(dimensions[0], dimensions[1])[1];
+        mOut = new int[dimensions[0] * dimensions[1]];
+    }
+
+    @Benchmark
+    public int fixedPoint(){
+        YuvConverter.convert(mFrame, mOut);
+        return mOut[mOut.length / 2];
+    }
+
+    @Benchmark
+    public int tables(Tables tables){
+        tables.mConverter.convert(mFrame, mOut);
+        return mOut[mOut.length / 2];
+    }
+}
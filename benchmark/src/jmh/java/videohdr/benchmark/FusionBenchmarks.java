@@ -0,0 +1,57 @@
+package videohdr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import videohdr.fusion.CpuFusion;
+import videohdr.fusion.YuvFrame;
+
+/**
+ * Fusion of alternating short and long exposures with the engines of {@link CpuFusion}, the CPU
+ * counterpart of the fuse script
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class FusionBenchmarks {
+
+    //the preview size and the working resolutions of the TIER_SCALES of FusionResolutionGovernor
+    @Param({"960x720", "720x540", "480x360"})
+    public String size;
+
+    @Param({"equal", "pixel", "smoothed"})
+    public String weight;
+
+    private CpuFusion mFusion;
+    private YuvFrame[] mFrames;
+    private int[] mOut;
+    private int mFrame = 0;
+
+    @Setup
+    public void setUp(){
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        mFusion = new CpuFusion(dimensions[0], dimensions[1]);
+        switch (weight) {
+            case "equal": mFusion.setWeightMode(CpuFusion.WEIGHT_EQUAL); break;
+            case "pixel": mFusion.setWeightMode(CpuFusion.WEIGHT_PIXEL); break;
+            case "smoothed": mFusion.setWeightMode(CpuFusion.WEIGHT_SMOOTHED); break;
+            default: throw new IllegalArgumentException("unknown weight " + weight);
+        }
+        mFrames = SyntheticFrames.createPair(dimensions[0], dimensions[1]);
+        mOut = new int[dimensions[0] * dimensions[1]];
+    }
+
+    @Benchmark
+    public int fuse(){
+        mFusion.fuse(mFrames[mFrame++ & 1], mOut);
+        return mOut[mOut.length / 2];
+    }
+}
@@ -0,0 +1,117 @@
+package videohdr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import videohdr.camera.CameraState;
+import videohdr.camera.ExposureMeter;
+import videohdr.fusion.LumaHistogram;
+import videohdr.fusion.ToneCurveCache;
+import videohdr.fusion.YuvFrame;
+
+/**
+ * The work of the metering stage per frame: the luma histogram, what ScriptIntrinsicHistogram
+ * computes on the device, its evaluation by the {@link ExposureMeter} and the tone curve the
+ * fusion derives from it. Manual exposure adjustments go through the same paths of the meter.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MeteringBenchmarks {
+
+    private static final double UP = 1.1;
+    private static final double DOWN = 1 / 1.1;
+
+    @Param({"320x240", "160x120"})
+    public String size;
+
+    private YuvFrame[] mFrames;
+    private final int[] mHistogram = new int[LumaHistogram.BINS];
+    private final int[][] mPairHistograms = new int[2][LumaHistogram.BINS];
+    private ExposureMeter mEvaluatingMeter;
+    private ExposureMeter mAdjustedMeter;
+    private final ToneCurveCache mCurves = new ToneCurveCache();
+    private int mFrame = 0;
+    private int mStep = 0;
+    private long mEvents = 0;
+
+    @Setup
+    public void setUp(){
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        mFrames = SyntheticFrames.createPair(dimensions[0], dimensions[1]);
+        LumaHistogram.compute(mFrames[0], mPairHistograms[0]);
+        LumaHistogram.compute(mFrames[1], mPairHistograms[1]);
+
+        mEvaluatingMeter = createMeter(dimensions[0], dimensions[1]);
+        mEvaluatingMeter.startAutoMetering();
+        mAdjustedMeter = createMeter(dimensions[0], dimensions[1]);
+
+        //never reuse the curve
+        mCurves.setThreshold(-1);
+    }
+
+    @Benchmark
+    public int histogram(){
+        LumaHistogram.compute(mFrames[mFrame++ & 1], mHistogram);
+        return mHistogram[128];
+    }
+
+    /**
+     * Auto metering of alternating dark and bright histograms: content statistics and the
+     * evaluation, which adjusts the exposures through the change*ExpParamAndSignalSuccess paths
+     */
+    @Benchmark
+    public long evaluateExposure(){
+        mEvaluatingMeter.onHistogramAvailable(mPairHistograms[mFrame++ & 1]);
+        return mEvents;
+    }
+
+    /**
+     * One of the under and overexposure in turn, with factors that move them up and down
+     */
+    @Benchmark
+    public long adjustExposure(){
+        int step = mStep++ & 3;
+        double factor = step < 2 ? UP : DOWN;
+        if((step & 1) == 0) {
+            mAdjustedMeter.adjustUnderexposure(factor);
+        } else {
+            mAdjustedMeter.adjustOverexposure(factor);
+        }
+        return mAdjustedMeter.getMeteringValues().getOverexposeDuration();
+    }
+
+    /**
+     * Rebuild of the tone curve from a histogram, what a scene change costs
+     */
+    @Benchmark
+    public int rebuildToneCurve(){
+        mCurves.update(mPairHistograms[1]);
+        return mCurves.getCurve()[128];
+    }
+
+    private ExposureMeter createMeter(int width, int height){
+        ExposureMeter meter = new ExposureMeter(new ExposureMeter.CameraStateSource() {
+            @Override
+            public CameraState getCameraState() {
+                return CameraState.MODE_FUSE;
+            }
+        });
+        meter.setMeteringResolution(width, height);
+        meter.setMeteringEventListener(new ExposureMeter.EventListener() {
+            @Override
+            public void onMeterEvent(ExposureMeter.MeteringParam param) {
+                mEvents++;
+            }
+        });
+        return meter;
+    }
+}
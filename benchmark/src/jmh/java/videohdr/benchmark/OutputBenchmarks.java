@@ -0,0 +1,65 @@
+package videohdr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import videohdr.fusion.FrameBufferPool;
+import videohdr.fusion.PooledFrame;
+import videohdr.fusion.TilePipeline;
+import videohdr.fusion.YuvFrame;
+import videohdr.fusion.YuvOutputStage;
+
+/**
+ * Fusion with the outputs of the preview (ARGB), the recording (NV12) or both, in one traversal
+ * of tiles. The memory traffic of the same outputs is printed by {@link OutputTrafficReport}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class OutputBenchmarks {
+
+    @Param({"960x720", "1920x1080"})
+    public String size;
+
+    @Param({"preview", "record", "both"})
+    public String output;
+
+    private TilePipeline mPipeline;
+    private YuvOutputStage mYuvOutput;
+    private YuvFrame[] mFrames;
+    private int[] mOut;
+    private int mFrame = 0;
+
+    @Setup
+    public void setUp(){
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        int width = dimensions[0];
+        int height = dimensions[1];
+        boolean preview = !"record".equals(output);
+        boolean record = !"preview".equals(output);
+        mYuvOutput = record ? new YuvOutputStage(new FrameBufferPool(
+                FrameBufferPool.Format.NV12.frameBytes(width, height)),
+                FrameBufferPool.Format.NV12) : null;
+        mPipeline = OutputTrafficReport.createFusedOutput(width, height, preview, mYuvOutput);
+        mFrames = SyntheticFrames.createPair(width, height);
+        mOut = preview ? new int[width * height] : null;
+    }
+
+    @Benchmark
+    public long fuse(){
+        mPipeline.process(mFrames[mFrame++ & 1], mOut);
+        if(mYuvOutput == null) return mOut[mOut.length / 2];
+        PooledFrame frame = mYuvOutput.takeFrame();
+        long result = frame.getPlane(0).get(frame.getPlane(0).capacity() / 2);
+        frame.release();
+        return result;
+    }
+}
@@ -0,0 +1,71 @@
+package videohdr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import videohdr.fusion.FusionStage;
+import videohdr.fusion.RgbOutputStage;
+import videohdr.fusion.TilePipeline;
+import videohdr.fusion.ToneCurveStage;
+import videohdr.fusion.YuvFrame;
+
+/**
+ * Fusion, a tone curve and the RGB conversion of alternating exposures, in one traversal of
+ * cache sized tiles of a {@link TilePipeline} or as a separate full frame pass per stage
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PixelStageBenchmarks {
+
+    @Param({"960x720", "1920x1080"})
+    public String size;
+
+    private TilePipeline mTiled;
+    private TilePipeline mSeparatePasses;
+    private YuvFrame[] mFrames;
+    private int[] mOut;
+    private int mFrame = 0;
+
+    @Setup
+    public void setUp(){
+        int[] dimensions = SyntheticFrames.parseSize(size);
+        mTiled = createPipeline(dimensions[0], dimensions[1], true);
+        mSeparatePasses = createPipeline(dimensions[0], dimensions[1], false);
+        mFrames = SyntheticFrames.createPair(dimensions[0], dimensions[1]);
+        mOut = new int[dimensions[0] * dimensions[1]];
+    }
+
+    @Benchmark
+    public int tiled(){
+        mTiled.process(mFrames[mFrame++ & 1], mOut);
+        return mOut[mOut.length / 2];
+    }
+
+    @Benchmark
+    public int separatePasses(){
+        mSeparatePasses.process(mFrames[mFrame++ & 1], mOut);
+        return mOut[mOut.length / 2];
+    }
+
+    private static TilePipeline createPipeline(int width, int height, boolean tiled){
+        ToneCurveStage tone = new ToneCurveStage();
+        int[] curve = new int[ToneCurveStage.CURVE_SIZE];
+        for(int i = 0; i < curve.length; i++){
+            curve[i] = (int) Math.round(255 * Math.sqrt(i / 255.0));
+        }
+        tone.setCurve(curve);
+        FusionStage fusion = new FusionStage(width, height);
+        RgbOutputStage output = new RgbOutputStage();
+        return tiled ? new TilePipeline(width, height, fusion, tone, output) :
+                TilePipeline.separatePasses(width, height, fusion, tone, output);
+    }
+}
@@ -0,0 +1,139 @@
+package videohdr.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import videohdr.fusion.LumaHistogram;
+import videohdr.fusion.YuvFrame;
+import videohdr.pipeline.DropPolicy;
+import videohdr.pipeline.FrameConsumer;
+import videohdr.pipeline.PipelineStage;
+
+/**
+ * Cost of signalling frame arrivals to a stage, seen from the producer. Frames arrive in bursts,
+ * like the camera delivering several buffers at once after a stall, while the worker computes a
+ * metering histogram for every frame it processes. The operation is one burst.
+ *
+ * lockFree is the {@link PipelineStage}: one CAS per frame and one post per run. monitor is the
+ * previous pattern of the processors: a monitor around the pending count and a post of the task
+ * for every frame, the worker removes the extra posts again.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class SignallingBenchmarks {
+
+    //the worker computes histograms of the small metering size
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    //frames signalled back to back per operation
+    @Param({"1", "4", "16"})
+    public int burst;
+
+    private ThreadPoolExecutor mWorker;
+    private PipelineStage mStage;
+    private MonitorTask mTask;
+    private volatile long mProcessed = 0;
+
+    @Setup
+    public void setUp(){
+        mWorker = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SignallingWorker");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        final YuvFrame frame = new YuvFrame(WIDTH, HEIGHT);
+        frame.fillSynthetic(0, 1);
+        final int[] histogram = new int[LumaHistogram.BINS];
+        FrameConsumer consumer = new FrameConsumer() {
+            @Override
+            public void discardFrame() {
+            }
+
+            @Override
+            public void processFrame(long queueWaitNs, int droppedFrames) {
+                LumaHistogram.compute(frame, histogram);
+                mProcessed++;
+            }
+        };
+        mStage = new PipelineStage("signalling", mWorker, 1, DropPolicy.DROP_OLDEST, consumer,
+                null);
+        mTask = new MonitorTask(mWorker, consumer);
+    }
+
+    @TearDown
+    public void tearDown(){
+        mWorker.shutdownNow();
+    }
+
+    @Benchmark
+    public long lockFree(){
+        for(int i = 0; i < burst; i++){
+            mStage.onFrameAvailable();
+        }
+        return mProcessed;
+    }
+
+    @Benchmark
+    public long monitor(){
+        for(int i = 0; i < burst; i++){
+            mTask.onBufferAvailable();
+        }
+        return mProcessed;
+    }
+
+    /* the pattern the processors used before the PipelineStage */
+    private static class MonitorTask implements Runnable {
+        private final ThreadPoolExecutor mWorker;
+        private final FrameConsumer mConsumer;
+        private int mPendingFrames = 0;
+        private long mFirstPendingTime = 0;
+
+        MonitorTask(ThreadPoolExecutor worker, FrameConsumer consumer){
+            mWorker = worker;
+            mConsumer = consumer;
+        }
+
+        void onBufferAvailable(){
+            synchronized (this) {
+                if(mPendingFrames == 0) mFirstPendingTime = System.nanoTime();
+                mPendingFrames++;
+                mWorker.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int pendingFrames;
+            long firstPendingTime;
+            synchronized (this) {
+                pendingFrames = mPendingFrames;
+                firstPendingTime = mFirstPendingTime;
+                mPendingFrames = 0;
+                //like Handler.removeCallbacks
+                while(mWorker.remove(this));
+            }
+            if(pendingFrames == 0) return;
+            for(int i = 1; i < pendingFrames; i++) mConsumer.discardFrame();
+            mConsumer.processFrame(System.nanoTime() - firstPendingTime, pendingFrames - 1);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package videohdr.benchmark;
+
+import videohdr.fusion.YuvFrame;
+
+/**
+ * Input of the benchmarks: the synthetic scene of {@link YuvFrame#fillSynthetic} and the frame
+ * sizes of the parameters
+ */
+final class SyntheticFrames {
+
+    //exposures of the synthetic pair, like the initial short and long exposure of the meter
+    private static final float SHORT_EXPOSURE = 0.25f;
+    private static final float LONG_EXPOSURE = 2f;
+
+    private SyntheticFrames(){
+    }
+
+    /**
+     * @return a short and a long exposure of the scene
+     */
+    static YuvFrame[] createPair(int width, int height){
+        YuvFrame[] frames = {new YuvFrame(width, height), new YuvFrame(width, height)};
+        frames[0].fillSynthetic(0, SHORT_EXPOSURE);
+        frames[1].fillSynthetic(1, LONG_EXPOSURE);
+        return frames;
+    }
+
+    /**
+     * @param size WxH, e.g. "960x720"
+     * @return width and height
+     */
+    static int[] parseSize(String size){
+        String[] parts = size.split("x");
+        return new int[]{Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+}
@@ -0,0 +1,77 @@
+package videohdr.benchmark;
+
+import videohdr.fusion.FrameBufferPool;
+import videohdr.fusion.FusionStage;
+import videohdr.fusion.PixelStage;
+import videohdr.fusion.RgbOutputStage;
+import videohdr.fusion.TilePipeline;
+import videohdr.fusion.YuvOutputStage;
+
+/**
+ * Bytes moved to and from memory per fused frame for the outputs of the fusion: preview only
+ * (ARGB), recording only (NV12), both, and the recording through the ARGB frame, which is
+ * converted back to YUV for the encoder. Counted with {@link TilePipeline#getBytesPerFrame()}:
+ * input, previous frame and outputs, the tiles stay in the cache.
+ *
+ * gradle :benchmark:trafficReport -PreportArgs="..."
+ * Options: --size WxH (default 1920x1080), --fps frame rate for the bandwidth (default 30)
+ */
+public final class OutputTrafficReport {
+
+    private OutputTrafficReport(){
+    }
+
+    public static void main(String[] args){
+        int width = 1920;
+        int height = 1080;
+        int fps = 30;
+        for(int i = 0; i + 1 < args.length; i += 2){
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--size":
+                    String[] size = value.split("x");
+                    width = Integer.parseInt(size[0]);
+                    height = Integer.parseInt(size[1]);
+                    break;
+                case "--fps": fps = Integer.parseInt(value); break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+
+        YuvOutputStage yuvOutput = new YuvOutputStage(new FrameBufferPool(
+                FrameBufferPool.Format.NV12.frameBytes(width, height)), FrameBufferPool.Format.NV12);
+        long preview = createFusedOutput(width, height, true, null)
+                .getBytesPerFrame();
+        long record = createFusedOutput(width, height, false, yuvOutput)
+                .getBytesPerFrame();
+        long both = createFusedOutput(width, height, true, yuvOutput)
+                .getBytesPerFrame();
+        //the ARGB frame is read again and converted to NV12
+        long recordViaRgba = preview + 4L * width * height +
+                FrameBufferPool.Format.NV12.frameBytes(width, height);
+
+        System.out.println("fused output traffic at " + width + "x" + height + ", " + fps + " fps");
+        print("preview only", preview, fps);
+        print("record only", record, fps);
+        print("both", both, fps);
+        print("record via RGBA", recordViaRgba, fps);
+    }
+
+    /**
+     * Tiled fusion pipeline with an ARGB output if {@code preview} and the YUV output if not null
+     */
+    static TilePipeline createFusedOutput(int width, int height, boolean preview,
+                                          YuvOutputStage yuvOutput){
+        PixelStage fusion = new FusionStage(width, height);
+        if(preview && yuvOutput != null) {
+            return new TilePipeline(width, height, fusion, yuvOutput, new RgbOutputStage());
+        }
+        return new TilePipeline(width, height, fusion,
+                yuvOutput != null ? yuvOutput : new RgbOutputStage());
+    }
+
+    private static void print(String name, long bytes, int fps){
+        System.out.println(String.format("%-16s %8.2f MB/frame %8.1f MB/s", name,
+                bytes / 1e6, bytes * fps / 1e6));
+    }
+}
@@ -0,0 +1,33 @@
+package videohdr.simulator;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import videohdr.fusion.YuvFrame;
+
+/**
+ * A buffer of the simulated camera. Stages hold a reference while they wait for or process the
+ * frame, the camera only refills buffers nobody holds, like a BufferQueue of the camera HAL.
+ */
+class FrameBuffer {
+
+    final YuvFrame frame;
+    //System.nanoTime() when the frame was captured
+    long captureTimeNs;
+    private final AtomicInteger mReferences = new AtomicInteger();
+
+    FrameBuffer(int width, int height){
+        frame = new YuvFrame(width, height);
+    }
+
+    void acquire(){
+        mReferences.incrementAndGet();
+    }
+
+    void release(){
+        mReferences.decrementAndGet();
+    }
+
+    boolean isFree(){
+        return mReferences.get() == 0;
+    }
+}
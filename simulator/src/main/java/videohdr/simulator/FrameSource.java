@@ -0,0 +1,20 @@
+package videohdr.simulator;
+
+import videohdr.fusion.YuvFrame;
+
+/**
+ * Delivers the frames of a simulated camera
+ */
+public interface FrameSource {
+
+    /**
+     * Fill {@code frame} with the next frame
+     * @param frameIndex number of the frame, even frames are the short exposure of a pair
+     * @param exposure brightness of the exposure requested for this frame relative to the
+     *                 reference exposure, sources that replay recorded frames ignore it
+     * @return false if the source has no more frames
+     */
+    boolean nextFrame(YuvFrame frame, long frameIndex, float exposure);
+
+    void close();
+}
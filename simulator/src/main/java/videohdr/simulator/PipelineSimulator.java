@@ -0,0 +1,345 @@
+package videohdr.simulator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import videohdr.camera.CameraState;
+import videohdr.camera.ExposureMeter;
+import videohdr.fusion.CpuFusion;
+import videohdr.fusion.FusionStage;
+import videohdr.fusion.LumaHistogram;
+import videohdr.fusion.RgbOutputStage;
+import videohdr.fusion.TilePipeline;
+import videohdr.fusion.ToneMappingStage;
+import videohdr.fusion.YuvFrame;
+import videohdr.metrics.LatencyHistogram;
+import videohdr.metrics.StageMetrics;
+import videohdr.recorder.FrameEncoder;
+import videohdr.recorder.StandInEncoder;
+
+/**
+ * Runs the stage topology of the HdrCamera on plain threads, without camera or RenderScript.
+ * Every captured frame goes to the same three consumers as the camera surfaces:
+ * - metering: luma histogram at the metering size, evaluated by a real {@link ExposureMeter}
+ *   whose new exposures control the following frames of the source
+ * - fusion: {@link CpuFusion} at the frame size, or with tone mapping the {@link FusionStage}
+ *   and a {@link ToneMappingStage} in a {@link TilePipeline}
+ * - recorder: a {@link StandInEncoder} with a fixed encode latency
+ *
+ * The camera holds POOL_BUFFERS buffers. A frame is dropped at capture if all buffers are still
+ * held by stages, like a camera running out of buffers.
+ */
+public class PipelineSimulator {
+
+    private static final int POOL_BUFFERS = 4;
+    //exposure with brightness 1 of the synthetic scene: ISO 80, 8ms
+    private static final double REFERENCE_EXPOSURE = 80 * 8e6;
+    private static final int ENCODED_FRAME_SIZE = 100000;
+    private static final int KEY_FRAME_INTERVAL = 30;
+
+    private final FrameSource mSource;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMeteringWidth;
+    private final int mMeteringHeight;
+    private float mFrameRate = 30;
+    private int mWeightMode = CpuFusion.WEIGHT_PIXEL;
+    private long mEncodeLatencyNs = TimeUnit.MILLISECONDS.toNanos(20);
+    private boolean mToneMapping = false;
+
+    private volatile ExposureMeter.MeteringParam mMeteringParam;
+
+    /**
+     * @param width size of the captured frames, the preview size
+     * @param meteringWidth size the metering stage computes its histogram at
+     */
+    public PipelineSimulator(FrameSource source, int width, int height, int meteringWidth,
+                             int meteringHeight){
+        mSource = source;
+        mWidth = width;
+        mHeight = height;
+        mMeteringWidth = meteringWidth;
+        mMeteringHeight = meteringHeight;
+    }
+
+    /**
+     * @param frameRate captured frames per second, 0 to capture as fast as the source allows
+     */
+    public void setFrameRate(float frameRate){
+        mFrameRate = frameRate;
+    }
+
+    /**
+     * @param weightMode fusion engine, one of the WEIGHT_ constants of {@link CpuFusion}
+     */
+    public void setWeightMode(int weightMode){
+        mWeightMode = weightMode;
+    }
+
+    public void setEncodeLatency(long encodeLatencyNs){
+        mEncodeLatencyNs = encodeLatencyNs;
+    }
+
+    /**
+     * @param toneMapping true to tone map the fused frames with a curve of the scene
+     */
+    public void setToneMapping(boolean toneMapping){
+        mToneMapping = toneMapping;
+    }
+
+    /**
+     * Run the pipeline
+     * @param durationMs capture time
+     */
+    public Report run(long durationMs) throws InterruptedException {
+        //exposure control, evaluated on the metering thread like in the app
+        final ExposureMeter meter = new ExposureMeter(new ExposureMeter.CameraStateSource() {
+            @Override
+            public CameraState getCameraState() {
+                return CameraState.MODE_FUSE;
+            }
+        });
+        meter.setMeteringResolution(mMeteringWidth, mMeteringHeight);
+        mMeteringParam = meter.getMeteringValues();
+        meter.setMeteringEventListener(new ExposureMeter.EventListener() {
+            @Override
+            public void onMeterEvent(ExposureMeter.MeteringParam param) {
+                mMeteringParam = param;
+            }
+        });
+        meter.startAutoMetering();
+
+        SimulatedStage metering = new SimulatedStage("metering") {
+            private final YuvFrame mMeteringFrame = new YuvFrame(mMeteringWidth, mMeteringHeight);
+            private final int[] mHistogram = new int[LumaHistogram.BINS];
+
+            @Override
+            void process(FrameBuffer buffer) {
+                downscaleLuma(buffer.frame, mMeteringFrame);
+                LumaHistogram.compute(mMeteringFrame, mHistogram);
+                meter.onHistogramAvailable(mHistogram);
+            }
+        };
+        final FusionStage fusionStage = new FusionStage(mWidth, mHeight);
+        fusionStage.setWeightMode(mWeightMode);
+        final ToneMappingStage toneMapping = mToneMapping ? new ToneMappingStage() : null;
+        SimulatedStage fusion = new SimulatedStage("fusion") {
+            private final CpuFusion mFusion = new CpuFusion(mWidth, mHeight);
+            private final TilePipeline mPipeline = toneMapping != null ?
+                    new TilePipeline(mWidth, mHeight, fusionStage, toneMapping,
+                            new RgbOutputStage()) : null;
+            private final int[] mOutput = new int[mWidth * mHeight];
+            {
+                mFusion.setWeightMode(mWeightMode);
+            }
+
+            @Override
+            void process(FrameBuffer buffer) {
+                if(mPipeline != null) {
+                    mPipeline.process(buffer.frame, mOutput);
+                } else {
+                    mFusion.fuse(buffer.frame, mOutput);
+                }
+            }
+        };
+
+        //recorder: the encoder gets every frame, its latency is capture to encoded frame
+        final StageMetrics encoderMetrics = new StageMetrics("encoder");
+        StandInEncoder encoder = new StandInEncoder(mWidth, mHeight, ENCODED_FRAME_SIZE,
+                KEY_FRAME_INTERVAL, mEncodeLatencyNs);
+        encoder.setListener(new FrameEncoder.Listener() {
+            @Override
+            public void onEncodedFrame(ByteBuffer data, int offset, int size, long presentationTimeUs,
+                                       boolean keyFrame) {
+                encoderMetrics.onFrameProcessed(System.nanoTime() - presentationTimeUs * 1000,
+                        mEncodeLatencyNs, 0);
+            }
+
+            @Override
+            public void onEncoderError(Exception e) {
+                System.err.println("encoder failed: " + e.getMessage());
+            }
+        });
+
+        FrameBuffer[] buffers = new FrameBuffer[POOL_BUFFERS];
+        for(int i = 0; i < POOL_BUFFERS; i++){
+            buffers[i] = new FrameBuffer(mWidth, mHeight);
+        }
+
+        metering.start();
+        fusion.start();
+        encoder.start();
+
+        long frameIntervalNs = mFrameRate > 0 ? (long) (1e9 / mFrameRate) : 0;
+        long start = System.nanoTime();
+        long end = start + TimeUnit.MILLISECONDS.toNanos(durationMs);
+        long captured = 0;
+        long captureDrops = 0;
+        long frameIndex = 0;
+        int next = 0;
+        while(true) {
+            long now = System.nanoTime();
+            if(frameIntervalNs > 0) {
+                long due = start + frameIndex * frameIntervalNs;
+                if(due > now) {
+                    TimeUnit.NANOSECONDS.sleep(due - now);
+                    now = System.nanoTime();
+                }
+            }
+            if(now >= end) break;
+
+            //the camera writes into the next buffer no stage holds
+            FrameBuffer buffer = null;
+            for(int i = 0; i < POOL_BUFFERS && buffer == null; i++){
+                FrameBuffer candidate = buffers[(next + i) % POOL_BUFFERS];
+                if(candidate.isFree()) {
+                    buffer = candidate;
+                    next = (next + i + 1) % POOL_BUFFERS;
+                }
+            }
+            if(buffer == null) {
+                captureDrops++;
+                frameIndex++;
+                continue;
+            }
+
+            buffer.acquire();
+            if(!mSource.nextFrame(buffer.frame, frameIndex, exposureOf(frameIndex))) {
+                buffer.release();
+                break;
+            }
+            buffer.captureTimeNs = now;
+            buffer.frame.timestamp = now;
+            metering.offer(buffer);
+            fusion.offer(buffer);
+            encoder.submitFrame(now / 1000);
+            buffer.release();
+            captured++;
+            frameIndex++;
+        }
+        long elapsed = System.nanoTime() - start;
+
+        metering.stop();
+        fusion.stop();
+        //frames still waiting for the encoder are reported as its backlog
+        encoder.stop();
+        int encoderBacklog = encoder.getQueuedFrameCount();
+        encoder.release();
+        mSource.close();
+
+        List<StageReport> stages = new ArrayList<>();
+        stages.add(new StageReport(metering.getMetrics(), metering.getEndToEnd(), 0,
+                metering.getBacklog(), elapsed));
+        stages.add(new StageReport(fusion.getMetrics(), fusion.getEndToEnd(), 0,
+                fusion.getBacklog(), elapsed));
+        stages.add(new StageReport(encoderMetrics, null, encoder.getDroppedInputCount(),
+                encoderBacklog, elapsed));
+        return new Report(elapsed, captured, captureDrops, stages, mMeteringParam,
+                toneMapping != null ? toneMapping.getCache().toString() : null);
+    }
+
+    /* brightness of the frame from the exposure the meter chose for it */
+    private float exposureOf(long frameIndex){
+        ExposureMeter.MeteringParam param = mMeteringParam;
+        double exposure = frameIndex % 2 == 0 ?
+                (double) param.getUnderexposeIso() * param.getUnderexposeDuration() :
+                (double) param.getOverexposeIso() * param.getOverexposeDuration();
+        return (float) (exposure / REFERENCE_EXPOSURE);
+    }
+
+    /* nearest neighbour scaling of the Y plane, the camera delivers the metering stream scaled */
+    private static void downscaleLuma(YuvFrame source, YuvFrame target){
+        for(int row = 0; row < target.height; row++){
+            int sourceOffset = (row * source.height / target.height) * source.width;
+            int targetOffset = row * target.width;
+            for(int col = 0; col < target.width; col++){
+                target.y[targetOffset + col] = source.y[sourceOffset + col * source.width / target.width];
+            }
+        }
+    }
+
+    /**
+     * Results of one stage
+     */
+    public static class StageReport {
+        public final String name;
+        public final long processedFrames;
+        public final long droppedFrames;
+        //frames still queued in the stage at the end of the run
+        public final long backlog;
+        public final float framesPerSecond;
+        public final LatencyHistogram.Snapshot queueWait;
+        public final LatencyHistogram.Snapshot processingTime;
+        //capture to end of processing, null for the encoder where it is the queue wait
+        public final LatencyHistogram.Snapshot endToEnd;
+
+        StageReport(StageMetrics metrics, LatencyHistogram endToEnd, long extraDrops, long backlog,
+                    long elapsedNs){
+            StageMetrics.Snapshot snapshot = metrics.snapshot();
+            name = snapshot.stageName;
+            processedFrames = snapshot.processedFrames;
+            droppedFrames = snapshot.droppedFrames + extraDrops;
+            this.backlog = backlog;
+            framesPerSecond = elapsedNs > 0 ? processedFrames * 1e9f / elapsedNs : 0;
+            queueWait = snapshot.queueWait;
+            processingTime = snapshot.processingTime;
+            this.endToEnd = endToEnd != null ? endToEnd.snapshot() : null;
+        }
+
+        @Override
+        public String toString(){
+            return String.format("%-9s %7.1f fps, %6d processed, %6d dropped, %3d left\n", name,
+                    framesPerSecond, processedFrames, droppedFrames, backlog) +
+                    latency("queue wait", queueWait) + latency("processing", processingTime) +
+                    (endToEnd != null ? latency("end to end", endToEnd) : "");
+        }
+
+        private static String latency(String label, LatencyHistogram.Snapshot snapshot){
+            return String.format("    %-11s p50 %8.2fms  p99 %8.2fms  max %8.2fms\n", label,
+                    snapshot.getP50() / 1e6, snapshot.getP99() / 1e6, snapshot.getMax() / 1e6);
+        }
+    }
+
+    /**
+     * Results of a run
+     */
+    public static class Report {
+        public final long elapsedNs;
+        public final long capturedFrames;
+        //frames the camera dropped because all buffers were held by stages
+        public final long captureDrops;
+        public final List<StageReport> stages;
+        public final ExposureMeter.MeteringParam finalExposure;
+        //hit rate and rebuild cost of the tone curves, null without tone mapping
+        public final String toneCurves;
+
+        Report(long elapsedNs, long capturedFrames, long captureDrops, List<StageReport> stages,
+               ExposureMeter.MeteringParam finalExposure, String toneCurves){
+            this.elapsedNs = elapsedNs;
+            this.capturedFrames = capturedFrames;
+            this.captureDrops = captureDrops;
+            this.stages = stages;
+            this.finalExposure = finalExposure;
+            this.toneCurves = toneCurves;
+        }
+
+        public float getCaptureFramesPerSecond(){
+            return elapsedNs > 0 ? capturedFrames * 1e9f / elapsedNs : 0;
+        }
+
+        @Override
+        public String toString(){
+            StringBuilder builder = new StringBuilder();
+            builder.append(String.format("%.1fs, %d frames captured (%.1f fps), %d dropped at capture\n",
+                    elapsedNs / 1e9, capturedFrames, getCaptureFramesPerSecond(), captureDrops));
+            for(StageReport stage : stages){
+                builder.append(stage);
+            }
+            if(toneCurves != null) builder.append(toneCurves).append('\n');
+            builder.append("final exposure: ").append(finalExposure).append('\n');
+            return builder.toString();
+        }
+    }
+}
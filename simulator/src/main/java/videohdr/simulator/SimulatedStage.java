@@ -0,0 +1,121 @@
+package videohdr.simulator;
+
+import videohdr.metrics.LatencyHistogram;
+import videohdr.metrics.StageMetrics;
+
+/**
+ * A processing stage on its own thread that, like the RenderScript processors, always works on
+ * the newest frame: frames arriving while the stage is busy replace the waiting one, which is
+ * counted as dropped.
+ */
+abstract class SimulatedStage implements Runnable {
+
+    private final StageMetrics mMetrics;
+    //capture to end of processing
+    private final LatencyHistogram mEndToEnd = new LatencyHistogram("end to end");
+    private final Thread mThread;
+    private volatile boolean mRunning = false;
+
+    /* guarded by this */
+    private FrameBuffer mPending;
+    private int mPendingFrames = 0;
+    private long mFirstPendingTime = 0;
+    //frame that was still waiting when the stage stopped
+    private volatile long mBacklog = 0;
+
+    SimulatedStage(String name){
+        mMetrics = new StageMetrics(name);
+        mThread = new Thread(this, name);
+    }
+
+    /**
+     * Process the frame, called on the thread of the stage
+     */
+    abstract void process(FrameBuffer buffer);
+
+    void start(){
+        mRunning = true;
+        mThread.start();
+    }
+
+    /**
+     * Stop after the current frame. A waiting frame is not processed and counted as backlog, the
+     * frames it replaced as dropped.
+     */
+    void stop() throws InterruptedException {
+        synchronized (this) {
+            mRunning = false;
+            notifyAll();
+        }
+        mThread.join();
+        synchronized (this) {
+            if(mPending != null) {
+                mPending.release();
+                mMetrics.getDroppedFrames().add(mPendingFrames - 1);
+                mBacklog = 1;
+            }
+            mPending = null;
+            mPendingFrames = 0;
+        }
+    }
+
+    /**
+     * Called by the camera for every captured frame
+     */
+    void offer(FrameBuffer buffer){
+        buffer.acquire();
+        synchronized (this) {
+            if(mPending != null) mPending.release();
+            mPending = buffer;
+            if(mPendingFrames == 0) mFirstPendingTime = System.nanoTime();
+            mPendingFrames++;
+            notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while(true) {
+            FrameBuffer buffer;
+            int pendingFrames;
+            long firstPendingTime;
+            synchronized (this) {
+                while(mRunning && mPending == null) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if(!mRunning) return;
+                buffer = mPending;
+                pendingFrames = mPendingFrames;
+                firstPendingTime = mFirstPendingTime;
+                mPending = null;
+                mPendingFrames = 0;
+            }
+
+            long start = System.nanoTime();
+            process(buffer);
+            long end = System.nanoTime();
+            mEndToEnd.record(end - buffer.captureTimeNs);
+            buffer.release();
+            mMetrics.onFrameProcessed(start - firstPendingTime, end - start, pendingFrames - 1);
+        }
+    }
+
+    StageMetrics getMetrics(){
+        return mMetrics;
+    }
+
+    LatencyHistogram getEndToEnd(){
+        return mEndToEnd;
+    }
+
+    /**
+     * @return frames neither processed nor dropped when the stage stopped
+     */
+    long getBacklog(){
+        return mBacklog;
+    }
+}
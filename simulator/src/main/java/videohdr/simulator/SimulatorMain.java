@@ -0,0 +1,125 @@
+package videohdr.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import videohdr.fusion.CpuFusion;
+
+/**
+ * Command line runner of the {@link PipelineSimulator}. Runs on a plain JVM, the simulator module
+ * builds the android free classes of the app with it: gradle :simulator:run -PsimulatorArgs="..."
+ *
+ * Options:
+ * --source synthetic | path of a raw I420 file (default synthetic)
+ * --size WxH of the captured frames (default 960x720), --metering WxH (default 320x240)
+ * --fps captured frames per second, 0 for unthrottled (default 30)
+ * --duration seconds (default 10), --engine equal | pixel | smoothed (default pixel)
+ * --encode-latency ms (default 20), --tone-mapping on | off (default off)
+ */
+public final class SimulatorMain {
+
+    private static final String USAGE = "usage: SimulatorMain [--source synthetic | FILE] " +
+            "[--size WxH] [--metering WxH]\n    [--fps FPS] [--duration SECONDS] " +
+            "[--engine equal | pixel | smoothed]\n    [--encode-latency MS] [--tone-mapping on | off]";
+
+    private SimulatorMain(){
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        try {
+            run(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+    }
+
+    private static void run(String[] args) throws IOException, InterruptedException {
+        String source = "synthetic";
+        int[] size = {960, 720};
+        int[] meteringSize = {320, 240};
+        float fps = 30;
+        long durationMs = 10000;
+        int weightMode = CpuFusion.WEIGHT_PIXEL;
+        long encodeLatencyMs = 20;
+        boolean toneMapping = false;
+        for(int i = 0; i < args.length; i += 2){
+            if(i + 1 == args.length) {
+                throw new IllegalArgumentException("missing value of " + args[i]);
+            }
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--source": source = value; break;
+                case "--size": size = parseSize(value); break;
+                case "--metering": meteringSize = parseSize(value); break;
+                case "--fps": fps = parseFloat(args[i], value); break;
+                case "--duration": durationMs = (long) (parseFloat(args[i], value) * 1000); break;
+                case "--engine": weightMode = parseEngine(value); break;
+                case "--encode-latency": encodeLatencyMs = (long) parseFloat(args[i], value); break;
+                case "--tone-mapping": toneMapping = parseSwitch(args[i], value); break;
+                default: throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+
+        FrameSource frameSource = "synthetic".equals(source) ? new SyntheticFrameSource() :
+                new YuvFileFrameSource(new File(source), size[0], size[1]);
+        PipelineSimulator simulator = new PipelineSimulator(frameSource, size[0], size[1],
+                meteringSize[0], meteringSize[1]);
+        simulator.setFrameRate(fps);
+        simulator.setWeightMode(weightMode);
+        simulator.setEncodeLatency(TimeUnit.MILLISECONDS.toNanos(encodeLatencyMs));
+        simulator.setToneMapping(toneMapping);
+
+        System.out.println("simulating " + size[0] + "x" + size[1] + " from " + source + " at " +
+                (fps > 0 ? fps + " fps" : "full speed") + " for " + durationMs / 1000f + "s");
+        System.out.print(simulator.run(durationMs));
+    }
+
+    private static float parseFloat(String option, String value){
+        float number;
+        try {
+            number = Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " has to be a number: " + value);
+        }
+        if(number < 0) throw new IllegalArgumentException(option + " can't be negative: " + value);
+        return number;
+    }
+
+    private static boolean parseSwitch(String option, String value){
+        switch (value) {
+            case "on": return true;
+            case "off": return false;
+            default: throw new IllegalArgumentException(option + " has to be on or off: " + value);
+        }
+    }
+
+    private static int[] parseSize(String value){
+        String[] parts = value.toLowerCase().split("x");
+        if(parts.length != 2) throw new IllegalArgumentException("size has to be WxH: " + value);
+        int width;
+        int height;
+        try {
+            width = Integer.parseInt(parts[0]);
+            height = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("size has to be WxH: " + value);
+        }
+        if(width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("width and height have to be even and positive: " +
+                    value);
+        }
+        return new int[]{width, height};
+    }
+
+    private static int parseEngine(String value){
+        switch (value) {
+            case "equal": return CpuFusion.WEIGHT_EQUAL;
+            case "pixel": return CpuFusion.WEIGHT_PIXEL;
+            case "smoothed": return CpuFusion.WEIGHT_SMOOTHED;
+            default: throw new IllegalArgumentException("unknown engine " + value);
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package videohdr.simulator;
+
+import videohdr.fusion.YuvFrame;
+
+/**
+ * Synthetic scene of {@link YuvFrame#fillSynthetic}, brightness follows the requested exposure
+ */
+public class SyntheticFrameSource implements FrameSource {
+
+    @Override
+    public boolean nextFrame(YuvFrame frame, long frameIndex, float exposure) {
+        frame.fillSynthetic(frameIndex, exposure);
+        return true;
+    }
+
+    @Override
+    public void close() {
+    }
+}
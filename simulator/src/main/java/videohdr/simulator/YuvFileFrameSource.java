@@ -0,0 +1,50 @@
+package videohdr.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import videohdr.fusion.YuvFrame;
+
+/**
+ * Frames of a raw I420 file (Y plane, U plane, V plane per frame, no header), e.g. written by
+ * "ffmpeg -pix_fmt yuv420p -f rawvideo". Starts over at the end of the file. The exposure of
+ * recorded frames can't be changed, so exposure control has no effect on them.
+ */
+public class YuvFileFrameSource implements FrameSource {
+
+    private final RandomAccessFile mFile;
+    private final long mFrames;
+
+    public YuvFileFrameSource(File file, int width, int height) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        mFrames = mFile.length() / YuvFrame.frameBytes(width, height);
+        if(mFrames == 0) {
+            mFile.close();
+            throw new IOException(file + " holds no complete " + width + "x" + height + " frame");
+        }
+    }
+
+    @Override
+    public boolean nextFrame(YuvFrame frame, long frameIndex, float exposure) {
+        try {
+            if(frameIndex % mFrames == 0) mFile.seek(0);
+            mFile.readFully(frame.y);
+            mFile.readFully(frame.u);
+            mFile.readFully(frame.v);
+            return true;
+        } catch (IOException e) {
+            System.err.println("reading frame " + frameIndex + " failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            mFile.close();
+        } catch (IOException e) {
+            System.err.println("closing the frame file failed: " + e.getMessage());
+        }
+    }
+}